@@ -0,0 +1,91 @@
+package ru.lagoshny.keycloak.providers.login.captcha.benchmark;
+
+import org.keycloak.Config;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClientFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaLoginFormFactory.*;
+
+/**
+ * Stubbed keycloak objects that the captcha login form needs.
+ */
+public final class BenchmarkContexts {
+
+    public static final String REMOTE_ADDR = "192.0.2.10";
+
+    public static final String REALM_ID = "benchmark-realm";
+
+    public static final String USERNAME = "benchmark-user";
+
+    public static final String PASSWORD = "benchmark-password";
+
+    private BenchmarkContexts() {
+    }
+
+    /**
+     * @param captchaProvider name of the captcha provider
+     * @param captchaMode     name of the captcha mode
+     * @param validateUrl     captcha validation url, e.g. of the {@link ru.lagoshny.keycloak.providers.login.captcha.stub.StubCaptchaServer}
+     * @return enabled captcha authenticator config values
+     */
+    public static Map<String, String> captchaConfig(String captchaProvider, String captchaMode, String validateUrl) {
+        Map<String, String> config = new HashMap<>();
+        config.put(CONFIG_KEY_CAPTCHA_ENABLED, Boolean.TRUE.toString());
+        config.put(CONFIG_KEY_CAPTCHA_PROVIDER, captchaProvider);
+        config.put(CONFIG_KEY_CAPTCHA_MODE, captchaMode);
+        config.put(CONFIG_KEY_CLIENT_KEY, "benchmark-site-key");
+        config.put(CONFIG_KEY_CAPTCHA_SERVER_KEY, "benchmark-server-key");
+        config.put(CONFIG_KEY_CAPTCHA_VALIDATE_URL, validateUrl);
+        return config;
+    }
+
+    /**
+     * @param config SPI config scope of the captcha clients
+     * @return session factory with the captcha client factories found on the classpath, as keycloak registers them
+     */
+    public static KeycloakSessionFactory sessionFactory(Config.Scope config) {
+        List<ProviderFactory<?>> captchaClientFactories = new ArrayList<>();
+        for (CaptchaClientFactory captchaClientFactory : ServiceLoader.load(CaptchaClientFactory.class)) {
+            captchaClientFactory.init(config);
+            captchaClientFactories.add(captchaClientFactory);
+        }
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getProviderFactoriesStream", (Supplier<Stream<ProviderFactory<?>>>) captchaClientFactories::stream);
+        return Stubs.deepStub(KeycloakSessionFactory.class, answers);
+    }
+
+    /**
+     * @param config captcha authenticator config values
+     * @return login flow context of an enabled user with valid password
+     */
+    public static AuthenticationFlowContext loginFlowContext(Map<String, String> config) {
+        AuthenticatorConfigModel configModel = new AuthenticatorConfigModel();
+        configModel.setId("benchmark-captcha-config");
+        configModel.setAlias("benchmark-captcha-config");
+        configModel.setConfig(new HashMap<>(config));
+
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getAuthenticatorConfig", configModel);
+        answers.put("getRemoteAddr", REMOTE_ADDR);
+        answers.put("getId", REALM_ID);
+        answers.put("getUsername", USERNAME);
+        answers.put("isEnabled", true);
+        answers.put("isValid", true);
+        AuthenticationFlowContext context = Stubs.deepStub(AuthenticationFlowContext.class, answers);
+        answers.put("getEvent", new EventBuilder(context.getRealm(), context.getSession(), context.getConnection()));
+        return context;
+    }
+
+}
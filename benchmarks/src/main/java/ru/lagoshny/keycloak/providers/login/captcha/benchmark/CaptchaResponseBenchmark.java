@@ -0,0 +1,75 @@
+package ru.lagoshny.keycloak.providers.login.captcha.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaResponseReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming parsing of captcha api responses the same way captcha clients do it.
+ * Response readers are package-private in the clients, so they are loaded by name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaptchaResponseBenchmark {
+
+    private static final String CLIENTS_PACKAGE = "ru.lagoshny.keycloak.providers.login.captcha.client.";
+
+    private static final int MAX_RESPONSE_SIZE = 8 * 1024;
+
+    @Param({"ReCaptchaV2", "ReCaptchaV3", "YandexSmartCaptcha"})
+    public String captchaProvider;
+
+    private CaptchaResponseReader<?> responseReader;
+
+    private byte[] response;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        String clientClass;
+        String responseBody;
+        switch (captchaProvider) {
+            case "ReCaptchaV2":
+                clientClass = "google.ReCaptchaV2Client";
+                responseBody = "{\"success\":true,\"challenge_ts\":\"2024-01-01T00:00:00Z\",\"hostname\":\"localhost\"}";
+                break;
+            case "ReCaptchaV3":
+                clientClass = "google.ReCaptchaV3Client";
+                responseBody = "{\"success\":true,\"challenge_ts\":\"2024-01-01T00:00:00Z\",\"hostname\":\"localhost\","
+                        + "\"score\":0.9,\"action\":\"submit\"}";
+                break;
+            default:
+                clientClass = "yandex.YandexSmartCaptchaClient";
+                responseBody = "{\"status\":\"ok\",\"message\":\"\",\"host\":\"localhost\"}";
+        }
+        Field readerField = Class.forName(CLIENTS_PACKAGE + clientClass).getDeclaredField("RESPONSE_READER");
+        readerField.setAccessible(true);
+        responseReader = (CaptchaResponseReader<?>) readerField.get(null);
+        response = responseBody.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object readResponse() throws IOException {
+        return responseReader.read(new ByteArrayInputStream(response), MAX_RESPONSE_SIZE);
+    }
+
+}
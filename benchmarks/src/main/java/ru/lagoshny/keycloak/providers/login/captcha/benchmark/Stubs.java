@@ -0,0 +1,96 @@
+package ru.lagoshny.keycloak.providers.login.captcha.benchmark;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Allocation-light deep stubs of keycloak interfaces for benchmarks.
+ * <p>
+ * Mocking libraries record every invocation, what would dominate the measured time and allocation rate,
+ * so stubs are plain {@link Proxy} instances that return configured answers by method name,
+ * a stub of the same handler for interface return types and default values for everything else.
+ */
+public final class Stubs {
+
+    private Stubs() {
+    }
+
+    /**
+     * @param type    stubbed interface
+     * @param answers values to return by method name, e.g. {@code getRemoteAddr -> 127.0.0.1},
+     *                {@link Supplier} answer is called on every invocation, e.g. to return a new {@link Stream}
+     */
+    public static <T> T deepStub(Class<T> type, Map<String, Object> answers) {
+        return new DeepStubHandler(answers).stub(type);
+    }
+
+    private static final class DeepStubHandler implements InvocationHandler {
+
+        private final Map<String, Object> answers;
+
+        private final Map<Class<?>, Object> stubs = new ConcurrentHashMap<>();
+
+        private DeepStubHandler(Map<String, Object> answers) {
+            this.answers = answers;
+        }
+
+        private <T> T stub(Class<T> type) {
+            return type.cast(stubs.computeIfAbsent(type,
+                    value -> Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{value}, this)));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                switch (name) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Stub[" + proxy.getClass().getInterfaces()[0].getSimpleName() + "]";
+                }
+            }
+            if (answers.containsKey(name)) {
+                Object answer = answers.get(name);
+                return answer instanceof Supplier ? ((Supplier<?>) answer).get() : answer;
+            }
+
+            Class<?> returnType = method.getReturnType();
+            if (returnType == void.class) {
+                return null;
+            }
+            if (returnType.isPrimitive()) {
+                return Array.get(Array.newInstance(returnType, 1), 0);
+            }
+            if (returnType == Stream.class) {
+                return Stream.empty();
+            }
+            if (returnType == Optional.class) {
+                return Optional.empty();
+            }
+            if (returnType == Map.class) {
+                return Map.of();
+            }
+            if (returnType == Set.class) {
+                return Set.of();
+            }
+            if (returnType == List.class || returnType == Collection.class) {
+                return List.of();
+            }
+            return returnType.isInterface() ? stub(returnType) : null;
+        }
+    }
+
+}
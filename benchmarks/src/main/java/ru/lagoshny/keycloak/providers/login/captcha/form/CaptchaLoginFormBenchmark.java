@@ -0,0 +1,105 @@
+package ru.lagoshny.keycloak.providers.login.captcha.form;
+
+import org.keycloak.Config;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.lagoshny.keycloak.providers.login.captcha.client.google.ReCaptchaV2ClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.stub.StubCaptchaServer;
+import ru.lagoshny.keycloak.providers.login.captcha.stub.StubCaptchaServerConfig;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static ru.lagoshny.keycloak.providers.login.captcha.benchmark.BenchmarkContexts.*;
+
+/**
+ * Overhead that the captcha login form adds to the login page render and to the login form submit.
+ * <p>
+ * Verdict of the submitted captcha token is cached after the first verification, so {@link #validateForm()}
+ * measures the form itself with stubbed credentials check, without captcha api round-trip.
+ * See {@link CaptchaVerifyBenchmark} for the full verification path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaptchaLoginFormBenchmark {
+
+    @Param({"always", "adaptive"})
+    public String captchaMode;
+
+    private StubCaptchaServer captchaServer;
+
+    private CaptchaLoginFormFactory factory;
+
+    private CaptchaLoginForm form;
+
+    private AuthenticationFlowContext context;
+
+    private MultivaluedMap<String, String> formData;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // keep the verdict cached during the whole trial
+        System.setProperty("captcha.form.benchmark.verdictCacheTtl", String.valueOf(TimeUnit.HOURS.toMillis(1)));
+        // the same token passes every login of the trial, so it must not be rejected as replayed
+        System.setProperty("captcha.form.benchmark.tokenRegistryTtl", "0");
+        // all benchmark logins come from the same user and IP address, they measure the login path, not the rate limiter
+        System.setProperty("captcha.form.benchmark.rateLimitIpRate", "0");
+        System.setProperty("captcha.form.benchmark.rateLimitUsernameRate", "0");
+        captchaServer = new StubCaptchaServer(new StubCaptchaServerConfig().setThreads(1));
+        factory = new CaptchaLoginFormFactory();
+        Config.Scope config = new Config.SystemPropertiesScope("captcha.form.benchmark.");
+        factory.init(config);
+        factory.postInit(sessionFactory(config));
+        form = (CaptchaLoginForm) factory.create(null);
+
+        context = loginFlowContext(captchaConfig(ReCaptchaV2ClientFactory.PROVIDER_ID, captchaMode, captchaServer.getGoogleValidateUrl()));
+        formData = new MultivaluedHashMap<>();
+        formData.putSingle(AuthenticationManager.FORM_USERNAME, USERNAME);
+        formData.putSingle("password", PASSWORD);
+        formData.putSingle(ReCaptchaV2ClientFactory.CAPTCHA_TOKEN_FIELD, "benchmark-captcha-token");
+
+        if (!form.validateForm(context, formData)) {
+            throw new IllegalStateException("Login form is not valid, check benchmark stubs");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        factory.close();
+        captchaServer.close();
+    }
+
+    /**
+     * Login page render, what calls {@code fillCustomFormAttributes}.
+     */
+    @Benchmark
+    public Response fillCustomFormAttributes() {
+        return form.challenge(context, formData);
+    }
+
+    @Benchmark
+    public boolean validateForm() {
+        return form.validateForm(context, formData);
+    }
+
+}
@@ -0,0 +1,131 @@
+package ru.lagoshny.keycloak.providers.login.captcha.form;
+
+import org.keycloak.Config;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClients;
+import ru.lagoshny.keycloak.providers.login.captcha.client.yandex.YandexSmartCaptchaClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.stub.StubCaptchaServer;
+import ru.lagoshny.keycloak.providers.login.captcha.stub.StubCaptchaServerConfig;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static ru.lagoshny.keycloak.providers.login.captcha.benchmark.BenchmarkContexts.*;
+
+/**
+ * Full login form submit: captcha token verification against the local {@link StubCaptchaServer}
+ * with the configured latency and error rate, running concurrently with the stubbed credentials check.
+ * <p>
+ * Verdict cache is disabled and every submit has a new token, so each operation performs an http request.
+ * Run with several threads ({@code -t 8}) to load the connection pool and the verification executor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CaptchaVerifyBenchmark {
+
+    @Param({"ReCaptchaV2", "ReCaptchaV3", "YandexSmartCaptcha"})
+    public String captchaProvider;
+
+    /**
+     * Captcha api latency in milliseconds.
+     */
+    @Param({"0", "20"})
+    public long latency;
+
+    /**
+     * Fraction of captcha api requests that fail with http 500.
+     */
+    @Param({"0"})
+    public double errorRate;
+
+    private StubCaptchaServer captchaServer;
+
+    private CaptchaLoginFormFactory factory;
+
+    private CaptchaLoginForm form;
+
+    private AuthenticationFlowContext context;
+
+    private String captchaTokenField;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("captcha.verify.benchmark.verdictCacheTtl", "0");
+        // all benchmark logins come from the same user and IP address, they measure the login path, not the rate limiter
+        System.setProperty("captcha.verify.benchmark.rateLimitIpRate", "0");
+        System.setProperty("captcha.verify.benchmark.rateLimitUsernameRate", "0");
+        captchaServer = new StubCaptchaServer(new StubCaptchaServerConfig()
+                .setLatency(latency)
+                .setErrorRate(errorRate));
+        factory = new CaptchaLoginFormFactory();
+        Config.Scope config = new Config.SystemPropertiesScope("captcha.verify.benchmark.");
+        KeycloakSessionFactory sessionFactory = sessionFactory(config);
+        factory.init(config);
+        factory.postInit(sessionFactory);
+        form = (CaptchaLoginForm) factory.create(null);
+
+        CaptchaClientFactory captchaClientFactory = CaptchaClients.of(sessionFactory).get(captchaProvider);
+        String validateUrl = YandexSmartCaptchaClientFactory.PROVIDER_ID.equals(captchaProvider)
+                ? captchaServer.getYandexValidateUrl()
+                : captchaServer.getGoogleValidateUrl();
+        context = loginFlowContext(captchaConfig(captchaProvider, CaptchaMode.ALWAYS.getName(), validateUrl));
+        captchaTokenField = captchaClientFactory.getCaptchaTokenField();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        factory.close();
+        captchaServer.close();
+    }
+
+    /**
+     * Login form data of the benchmark thread with a new captcha token for every submit.
+     */
+    @State(Scope.Thread)
+    public static class FormData {
+
+        private final MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+
+        private long tokenNumber;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            formData.putSingle(AuthenticationManager.FORM_USERNAME, USERNAME);
+            formData.putSingle("password", PASSWORD);
+        }
+
+        MultivaluedMap<String, String> next(String captchaTokenField) {
+            // the prefix makes the token long enough to pass the token format check of the captcha client
+            formData.putSingle(captchaTokenField, "benchmark-captcha-token-" + Thread.currentThread().getId() + "-" + tokenNumber++);
+            return formData;
+        }
+    }
+
+    @Benchmark
+    public boolean validateForm(FormData formData) {
+        return form.validateForm(context, formData.next(captchaTokenField));
+    }
+
+}
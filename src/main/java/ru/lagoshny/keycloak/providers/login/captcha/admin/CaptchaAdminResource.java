@@ -0,0 +1,228 @@
+package ru.lagoshny.keycloak.providers.login.captcha.admin;
+
+import org.apache.http.pool.PoolStats;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+import org.keycloak.services.resources.admin.permissions.RealmPermissionEvaluator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaHttpClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerificationHedger;
+import ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaLoginFormFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.metrics.CaptchaMetrics;
+import ru.lagoshny.keycloak.providers.login.captcha.metrics.LatencyHistogram;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaCircuitBreaker;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live state of the captcha subsystem of the node and its runtime controls at {@code /realms/master/captcha-admin}:
+ * <ul>
+ *     <li>{@code GET /} reports latency percentiles, verification outcomes, circuit breakers by validation url,
+ *     connection pool and cache sizes;</li>
+ *     <li>{@code POST /caches/{cache}/flush} flushes one of {@code verdicts}, {@code settings}, {@code rate-limits},
+ *     {@code failed-logins} caches;</li>
+ *     <li>{@code PUT /providers/{provider}/bypass} bypasses the captcha provider, see {@link
+ *     ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaProviderBypass},
+ *     {@code DELETE} removes the bypass.</li>
+ * </ul>
+ * Requests need the bearer token of the master realm admin: reading the state needs the {@code view-realm} role,
+ * actions need the {@code manage-realm} role. State and actions are local to the node that serves the request.
+ */
+public class CaptchaAdminResource implements RealmResourceProvider {
+
+    private final static Logger logger = LoggerFactory.getLogger(CaptchaAdminResource.class);
+
+    public static final String CACHE_VERDICTS = "verdicts";
+
+    public static final String CACHE_SETTINGS = "settings";
+
+    public static final String CACHE_RATE_LIMITS = "rate-limits";
+
+    public static final String CACHE_FAILED_LOGINS = "failed-logins";
+
+    private final KeycloakSession session;
+
+    /**
+     * {@code null} if admin endpoint is disabled or it is requested not in the master realm.
+     */
+    private final CaptchaLoginFormFactory captchaLoginFormFactory;
+
+    public CaptchaAdminResource(KeycloakSession session, CaptchaLoginFormFactory captchaLoginFormFactory) {
+        this.session = session;
+        this.captchaLoginFormFactory = captchaLoginFormFactory;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getState() {
+        authenticate().requireViewRealm();
+
+        CaptchaMetrics metrics = captchaLoginFormFactory.getCaptchaMetrics();
+        // provider has a circuit per validation url it has been called at
+        Map<String, Map<String, Object>> circuits = new TreeMap<>();
+        captchaLoginFormFactory.getCaptchaCircuitBreakers().getAll()
+                .forEach(circuitBreaker -> circuits.computeIfAbsent(circuitBreaker.getProviderName(), name -> new TreeMap<>())
+                        .put(circuitBreaker.getValidateUrl(), circuitState(circuitBreaker)));
+        Map<String, Object> providers = new TreeMap<>();
+        captchaLoginFormFactory.getCaptchaClients().getCaptchaProviderNames().forEach(providerName -> {
+            Map<String, Object> provider = new LinkedHashMap<>();
+            provider.put("bypassed", captchaLoginFormFactory.getCaptchaProviderBypass().isBypassed(providerName));
+            provider.put("latency", latencyState(metrics.getLatencies().get(providerName)));
+            Map<String, Long> outcomes = new TreeMap<>();
+            metrics.getOutcomes().getOrDefault(providerName, Map.of())
+                    .forEach((outcome, counter) -> outcomes.put(outcome, counter.sum()));
+            provider.put("outcomes", outcomes);
+            provider.put("circuits", circuits.getOrDefault(providerName, Map.of()));
+            providers.put(providerName, provider);
+        });
+
+        CaptchaHttpClient httpClient = captchaLoginFormFactory.getCaptchaHttpClient();
+        CaptchaVerificationHedger hedger = httpClient.getVerificationHedger();
+        Map<String, Object> verifications = new LinkedHashMap<>();
+        verifications.put("inFlight", metrics.getInFlight());
+        verifications.put("queueSize", httpClient.getVerificationQueueSize());
+        verifications.put("hedges", hedger == null ? 0 : hedger.getHedges());
+        verifications.put("hedgeWins", hedger == null ? 0 : hedger.getHedgeWins());
+
+        PoolStats poolStats = httpClient.getConnectionManager().getTotalStats();
+        Map<String, Object> httpPool = new LinkedHashMap<>();
+        httpPool.put("leased", poolStats.getLeased());
+        httpPool.put("available", poolStats.getAvailable());
+        httpPool.put("pending", poolStats.getPending());
+        httpPool.put("max", poolStats.getMax());
+
+        Map<String, Object> caches = new LinkedHashMap<>();
+        caches.put(CACHE_VERDICTS, captchaLoginFormFactory.getCaptchaVerdictCache().size());
+        caches.put(CACHE_SETTINGS, captchaLoginFormFactory.getCaptchaSettingsCache().size());
+        caches.put(CACHE_RATE_LIMITS, captchaLoginFormFactory.getLoginRateLimiter().size());
+        caches.put(CACHE_FAILED_LOGINS, captchaLoginFormFactory.getFailedLoginCounter().size());
+        caches.put("tokenRegistrySaturated", captchaLoginFormFactory.getCaptchaTokenRegistry().isSaturated());
+
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("providers", providers);
+        state.put("verifications", verifications);
+        state.put("httpPool", httpPool);
+        state.put("caches", caches);
+        return state;
+    }
+
+    /**
+     * Used captcha tokens are not flushed, so the flush does not let replayed tokens pass.
+     */
+    @POST
+    @Path("caches/{cache}/flush")
+    public Response flushCache(@PathParam("cache") String cache) {
+        authenticate().requireManageRealm();
+        switch (cache) {
+            case CACHE_VERDICTS:
+                captchaLoginFormFactory.getCaptchaVerdictCache().clear();
+                break;
+            case CACHE_SETTINGS:
+                captchaLoginFormFactory.getCaptchaSettingsCache().clear();
+                break;
+            case CACHE_RATE_LIMITS:
+                captchaLoginFormFactory.getLoginRateLimiter().clear();
+                break;
+            case CACHE_FAILED_LOGINS:
+                captchaLoginFormFactory.getFailedLoginCounter().clear();
+                break;
+            default:
+                throw new NotFoundException("Unknown captcha cache: " + cache);
+        }
+        logger.info("Captcha {} cache is flushed by the admin", cache);
+        return Response.noContent().build();
+    }
+
+    @PUT
+    @Path("providers/{provider}/bypass")
+    public Response bypassProvider(@PathParam("provider") String providerName) {
+        authenticate().requireManageRealm();
+        requireProvider(providerName);
+        captchaLoginFormFactory.getCaptchaProviderBypass().bypass(providerName);
+        return Response.noContent().build();
+    }
+
+    @DELETE
+    @Path("providers/{provider}/bypass")
+    public Response restoreProvider(@PathParam("provider") String providerName) {
+        authenticate().requireManageRealm();
+        requireProvider(providerName);
+        captchaLoginFormFactory.getCaptchaProviderBypass().restore(providerName);
+        return Response.noContent().build();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return permissions of the admin on the master realm
+     * @throws NotFoundException      if admin endpoint is disabled
+     * @throws NotAuthorizedException if the request has no valid bearer token
+     */
+    private RealmPermissionEvaluator authenticate() {
+        if (captchaLoginFormFactory == null) {
+            throw new NotFoundException();
+        }
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        RealmModel realm = session.getContext().getRealm();
+        AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+        return AdminPermissions.evaluator(session, realm, adminAuth).realm();
+    }
+
+    private void requireProvider(String providerName) {
+        if (captchaLoginFormFactory.getCaptchaClients().get(providerName) == null) {
+            throw new NotFoundException("Unknown captcha provider: " + providerName);
+        }
+    }
+
+    private static Map<String, Object> latencyState(LatencyHistogram latency) {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("count", latency == null ? 0 : latency.getCount());
+        state.put("p50Millis", latency == null ? 0 : latency.getPercentile(0.5));
+        state.put("p95Millis", latency == null ? 0 : latency.getPercentile(0.95));
+        state.put("p99Millis", latency == null ? 0 : latency.getPercentile(0.99));
+        return state;
+    }
+
+    private static Map<String, Object> circuitState(CaptchaCircuitBreaker circuitBreaker) {
+        Map<String, Object> state = new LinkedHashMap<>();
+        CaptchaCircuitBreaker.WindowStats stats = circuitBreaker.getWindowStats();
+        state.put("state", circuitBreaker.getState());
+        state.put("calls", stats.getCalls());
+        state.put("failures", stats.getFailures());
+        state.put("slowCalls", stats.getSlowCalls());
+        state.put("failureRate", stats.getFailureRate());
+        state.put("meanDurationMillis", TimeUnit.NANOSECONDS.toMillis(stats.getMeanDurationNanos()));
+        return state;
+    }
+
+}
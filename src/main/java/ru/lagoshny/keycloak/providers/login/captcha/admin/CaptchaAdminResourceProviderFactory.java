@@ -0,0 +1,55 @@
+package ru.lagoshny.keycloak.providers.login.captcha.admin;
+
+import org.keycloak.Config;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaLoginFormFactory;
+
+/**
+ * Factory of the captcha admin endpoint.
+ * <p>
+ * Endpoint is disabled by default, enable it with {@code --spi-realm-restapi-extension-captcha-admin-enabled=true}.
+ * It is served only in the master realm, because the captcha state is shared by all realms of the node.
+ */
+public class CaptchaAdminResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "captcha-admin";
+
+    public static final String SPI_ENABLED = "enabled";
+
+    private boolean enabled;
+
+    private CaptchaLoginFormFactory captchaLoginFormFactory;
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        RealmModel realm = session.getContext().getRealm();
+        boolean served = enabled && realm != null && Config.getAdminRealm().equals(realm.getName());
+        return new CaptchaAdminResource(session, served ? captchaLoginFormFactory : null);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        this.enabled = config.getBoolean(SPI_ENABLED, false);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.captchaLoginFormFactory = (CaptchaLoginFormFactory) factory
+                .getProviderFactory(Authenticator.class, CaptchaLoginFormFactory.PROVIDER_ID);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+}
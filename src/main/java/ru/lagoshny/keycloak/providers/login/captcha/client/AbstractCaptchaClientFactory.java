@@ -0,0 +1,46 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Base {@link CaptchaClientFactory} that creates the single client on {@link #init} and closes it on {@link #close()}.
+ */
+public abstract class AbstractCaptchaClientFactory implements CaptchaClientFactory {
+
+    private CaptchaClient captchaClient;
+
+    /**
+     * @param config factory SPI config scope
+     * @return thread safe client shared by all logins
+     */
+    protected abstract CaptchaClient createCaptchaClient(Config.Scope config);
+
+    @Override
+    public void init(Config.Scope config) {
+        this.captchaClient = createCaptchaClient(config);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public CaptchaClient create(KeycloakSession session) {
+        return captchaClient;
+    }
+
+    @Override
+    public CaptchaClient getCaptchaClient() {
+        return captchaClient;
+    }
+
+    @Override
+    public void close() {
+        if (captchaClient != null) {
+            captchaClient.close();
+        }
+    }
+
+}
@@ -1,25 +1,58 @@
 package ru.lagoshny.keycloak.providers.login.captcha.client;
 
+import org.keycloak.provider.Provider;
 
-import org.keycloak.authentication.AuthenticationFlowContext;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Captcha client that uses to perform request for user's captcha validation.
+ * <p>
+ * Client is created once by its {@link CaptchaClientFactory} and shared by all logins, so it must be thread safe.
  */
-public interface CaptchaClient {
+public interface CaptchaClient extends Provider {
 
     /**
-     * Performing a request to the captcha api provider to verify user's captcha token.
+     * Performing a blocking request to the captcha api provider to verify user's captcha token.
      *
-     * @param context      execution {@link AuthenticationFlowContext}
-     * @param captchaToken string value of user's captcha token obtained after captcha form passing
-     * @return {@code true} if captcha validation is successful, {@code false} otherwise
+     * @param request    data to verify user's captcha token
+     * @param httpClient dedicated {@link CaptchaHttpClient} to perform validation request
+     * @return {@link CaptchaVerdict} of captcha validation, never {@code null}
      */
-    boolean validateCaptchaToken(AuthenticationFlowContext context, String captchaToken);
+    CaptchaVerdict validateCaptchaToken(CaptchaVerificationRequest request, CaptchaHttpClient httpClient);
 
     /**
-     * URL to verify user's captcha code
+     * Performing a non-blocking request to the captcha api provider to verify user's captcha token.
+     * <p>
+     * Verification is performed on the {@link CaptchaHttpClient} verification executor, so the caller thread is free
+     * to do other work until it needs the result.
+     *
+     * @param request    data to verify user's captcha token
+     * @param httpClient dedicated {@link CaptchaHttpClient} to perform validation request
+     * @return future that completes with {@link CaptchaVerdict} of captcha validation, never exceptionally
+     */
+    default CompletableFuture<CaptchaVerdict> validateCaptchaTokenAsync(CaptchaVerificationRequest request,
+                                                                       CaptchaHttpClient httpClient) {
+        return httpClient.submit(request.getValidateUrl(), () -> validateCaptchaToken(request, httpClient));
+    }
+
+    /**
+     * Cheap structural check of the user's captcha token that is done before any request to the captcha api,
+     * see {@link CaptchaTokenFormat}.
+     *
+     * @param token not blank captcha token of the login form
+     * @return {@code false} if the token is obviously malformed and must not be sent to the captcha api
+     */
+    default boolean isWellFormedToken(String token) {
+        return true;
+    }
+
+    /**
+     * Default URL to verify user's captcha code, can be overridden in the authenticator config.
      */
     String getCaptchaValidateUrl();
 
+    @Override
+    default void close() {
+    }
+
 }
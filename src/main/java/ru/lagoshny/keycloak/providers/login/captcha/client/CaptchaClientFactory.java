@@ -0,0 +1,56 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import org.keycloak.provider.ProviderFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaProviderSettings;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaSettings;
+
+/**
+ * Factory of the captcha provider: its {@link CaptchaClient} and how its captcha is rendered on the login page.
+ * <p>
+ * Factory id is the captcha provider name that admin chooses in the {@code Captcha Login Form} settings.
+ * Factory is initialized once per keycloak server, so it should create its client and any resources the client
+ * needs in {@link #init}, see {@link AbstractCaptchaClientFactory}.
+ */
+public interface CaptchaClientFactory extends ProviderFactory<CaptchaClient> {
+
+    /**
+     * @return thread safe client shared by all logins
+     */
+    CaptchaClient getCaptchaClient();
+
+    /**
+     * Captcha token field name of the login form, you can get it from captcha provider documentation.
+     */
+    String getCaptchaTokenField();
+
+    /**
+     * Script url that captcha uses to put its code to your page. You can get it from captcha provider documentation.
+     */
+    String getCaptchaScriptUrl();
+
+    /**
+     * How and where to show captcha block. You can get it from captcha provider documentation.
+     *
+     * @param captchaSiteKey site key of the realm
+     */
+    String getCaptchaHtmlBlock(String captchaSiteKey);
+
+    /**
+     * Captcha block of the rendered login page, by default the same block of the realm rendered once
+     * by {@link #getCaptchaHtmlBlock(String)}. Captcha that needs a new challenge for every login page overrides it.
+     *
+     * @param providerSettings settings of the shown captcha provider
+     * @param settings         captcha settings of the realm
+     */
+    default String getCaptchaHtmlBlock(CaptchaProviderSettings providerSettings, CaptchaSettings settings) {
+        return providerSettings.getCaptchaHtmlBlock();
+    }
+
+    /**
+     * @return {@code false} if captcha does not use the site key, e.g. self-hosted captcha
+     */
+    default boolean isSiteKeyRequired() {
+        return true;
+    }
+
+}
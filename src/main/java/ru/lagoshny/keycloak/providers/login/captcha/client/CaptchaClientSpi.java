@@ -0,0 +1,39 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+/**
+ * Keycloak SPI of captcha providers.
+ * <p>
+ * A captcha provider is added by a {@link CaptchaClientFactory} registered in
+ * {@code META-INF/services/ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClientFactory}
+ * of any jar in the keycloak providers folder. Factory options are passed as
+ * {@code --spi-captcha-client-<factory id>-<option>}.
+ */
+public class CaptchaClientSpi implements Spi {
+
+    public static final String SPI_NAME = "captcha-client";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return SPI_NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return CaptchaClient.class;
+    }
+
+    @Override
+    public Class<? extends ProviderFactory<CaptchaClient>> getProviderFactoryClass() {
+        return CaptchaClientFactory.class;
+    }
+
+}
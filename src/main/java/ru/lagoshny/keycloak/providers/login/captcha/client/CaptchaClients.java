@@ -0,0 +1,48 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Registry of {@link CaptchaClientFactory}s registered in keycloak by captcha provider name.
+ */
+public final class CaptchaClients {
+
+    private final Map<String, CaptchaClientFactory> factories;
+
+    private CaptchaClients(Map<String, CaptchaClientFactory> factories) {
+        this.factories = Collections.unmodifiableMap(factories);
+    }
+
+    public static CaptchaClients of(KeycloakSessionFactory sessionFactory) {
+        return of(sessionFactory.getProviderFactoriesStream(CaptchaClient.class));
+    }
+
+    @SuppressWarnings("rawtypes")
+    public static CaptchaClients of(Stream<ProviderFactory> factories) {
+        // sorted, so captcha providers are listed in the same order on every server
+        Map<String, CaptchaClientFactory> factoriesByName = new TreeMap<>();
+        factories.map(CaptchaClientFactory.class::cast)
+                .forEach(factory -> factoriesByName.put(factory.getId(), factory));
+        return new CaptchaClients(factoriesByName);
+    }
+
+    /**
+     * @return factory of the captcha provider, {@code null} if provider is not registered
+     */
+    public CaptchaClientFactory get(String providerName) {
+        return providerName == null ? null : factories.get(providerName);
+    }
+
+    public List<String> getCaptchaProviderNames() {
+        return new ArrayList<>(factories.keySet());
+    }
+
+}
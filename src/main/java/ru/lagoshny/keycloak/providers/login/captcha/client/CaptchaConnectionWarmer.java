@@ -0,0 +1,177 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.keycloak.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a few open keep-alive connections to the captcha validation urls in the {@link CaptchaHttpClient} pool,
+ * so the first logins of a new node do not pay for the DNS lookup, TCP and TLS handshakes.
+ * <p>
+ * Connections are opened in background by the same connection manager that performs verifications, so they are
+ * leased by the first verification requests. All connections of the pool share one {@code SSLContext}, its client
+ * session cache lets new connections to the same captcha api resume the TLS session of the warmed ones.
+ * Connections the pool evicts after the keep-alive time are reopened every refresh interval,
+ * only when the route has less idle connections than configured, so busy routes are not touched.
+ */
+public class CaptchaConnectionWarmer implements Closeable {
+
+    private final static Logger logger = LoggerFactory.getLogger(CaptchaConnectionWarmer.class);
+
+    public static final String SPI_WARMUP_CONNECTIONS = "warmupConnections";
+
+    public static final String SPI_WARMUP_REFRESH_INTERVAL = "warmupRefreshInterval";
+
+    private static final int DEFAULT_WARMUP_CONNECTIONS = 2;
+
+    private static final long DEFAULT_WARMUP_REFRESH_INTERVAL = 10_000L;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    /**
+     * Open connections to keep per captcha validation url, {@code 0} if warm up is disabled.
+     */
+    private final int connections;
+
+    private final int connectTimeout;
+
+    private final long keepAlive;
+
+    private final Set<HttpRoute> routes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * {@code null} if warm up is disabled.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param connectTimeout connect timeout of the pool connections in milliseconds
+     * @param keepAlive      time in milliseconds the warmed connection stays in the pool
+     */
+    public CaptchaConnectionWarmer(PoolingHttpClientConnectionManager connectionManager, Config.Scope config,
+                                   int connectTimeout, long keepAlive) {
+        this.connectionManager = connectionManager;
+        this.connections = Math.min(config.getInt(SPI_WARMUP_CONNECTIONS, DEFAULT_WARMUP_CONNECTIONS),
+                connectionManager.getDefaultMaxPerRoute());
+        this.connectTimeout = connectTimeout;
+        this.keepAlive = keepAlive;
+        if (connections > 0) {
+            long refreshInterval = config.getLong(SPI_WARMUP_REFRESH_INTERVAL, DEFAULT_WARMUP_REFRESH_INTERVAL);
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "captcha-connection-warmer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.scheduler.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * Opens connections to the passed urls in background and keeps them open until the warmer is closed.
+     *
+     * @param validateUrls captcha validation urls, urls without a host are skipped
+     */
+    public void warmUp(Collection<String> validateUrls) {
+        if (scheduler == null) {
+            return;
+        }
+        for (String validateUrl : validateUrls) {
+            HttpRoute route = route(validateUrl);
+            if (route != null && routes.add(route)) {
+                logger.info("Warming up {} connections to {}", connections, route.getTargetHost());
+                scheduler.execute(() -> fill(route));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        routes.clear();
+    }
+
+    private void refresh() {
+        connectionManager.closeExpiredConnections();
+        routes.forEach(this::fill);
+    }
+
+    /**
+     * Leases idle connections of the route together with new ones up to the configured number, so the pool
+     * has to open the missing ones, and returns all of them to the pool.
+     */
+    private void fill(HttpRoute route) {
+        PoolStats stats = connectionManager.getStats(route);
+        if (stats.getAvailable() + stats.getLeased() >= connections) {
+            return;
+        }
+        List<HttpClientConnection> leased = new ArrayList<>();
+        try {
+            for (int i = stats.getLeased(); i < connections; i++) {
+                ConnectionRequest request = connectionManager.requestConnection(route, null);
+                leased.add(request.get(connectTimeout, TimeUnit.MILLISECONDS));
+            }
+            for (HttpClientConnection connection : leased) {
+                if (!connection.isOpen()) {
+                    HttpClientContext context = HttpClientContext.create();
+                    connectionManager.connect(connection, route, connectTimeout, context);
+                    connectionManager.routeComplete(connection, route, context);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | ExecutionException e) {
+            logger.warn("Failed to warm up connections to {}: {}", route.getTargetHost(), e.toString());
+        } finally {
+            // not connected ones are closed by the pool on release
+            for (HttpClientConnection connection : leased) {
+                connectionManager.releaseConnection(connection, null, keepAlive, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return route the http client plans for the url, {@code null} if the url has no host
+     */
+    private static HttpRoute route(String validateUrl) {
+        if (validateUrl == null) {
+            return null;
+        }
+        URI uri;
+        try {
+            uri = URI.create(validateUrl);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (uri.getHost() == null) {
+            return null;
+        }
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80;
+        return new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme()), null, secure);
+    }
+
+}
@@ -0,0 +1,346 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.keycloak.Config;
+import org.keycloak.connections.httpclient.HttpClientProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.CaptchaSpan;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.CaptchaTracer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Pooled keep-alive http client that captcha clients use to perform captcha validation requests.
+ * <p>
+ * It is isolated from the server-wide {@link HttpClientProvider}, so a slow captcha api can not exhaust
+ * connections that the rest of keycloak needs. All settings are read from the authenticator SPI config, e.g.
+ * {@code --spi-authenticator-captcha-login-form-socket-timeout=2000}.
+ * <p>
+ * Requests can be submitted to the bounded verification executor via {@link #submit(Supplier)},
+ * so keycloak worker threads do not wait for the captcha api while they can do other work.
+ * <p>
+ * Connections to the captcha apis can be opened in advance via {@link #warmUp(Collection)},
+ * see {@link CaptchaConnectionWarmer}.
+ * <p>
+ * Every request is traced by the {@code captcha.http} span, which context is sent to the captcha api
+ * in the {@code traceparent} header, see {@link CaptchaTracer}.
+ */
+public class CaptchaHttpClient implements Closeable {
+
+    private final static Logger logger = LoggerFactory.getLogger(CaptchaHttpClient.class);
+
+    public static final String SPI_CONNECT_TIMEOUT = "connectTimeout";
+
+    public static final String SPI_SOCKET_TIMEOUT = "socketTimeout";
+
+    public static final String SPI_CONNECTION_REQUEST_TIMEOUT = "connectionRequestTimeout";
+
+    public static final String SPI_MAX_CONNECTIONS = "maxConnections";
+
+    public static final String SPI_MAX_CONNECTIONS_PER_ROUTE = "maxConnectionsPerRoute";
+
+    public static final String SPI_KEEP_ALIVE = "keepAlive";
+
+    public static final String SPI_VERIFICATION_THREADS = "verificationThreads";
+
+    public static final String SPI_VERIFICATION_QUEUE_SIZE = "verificationQueueSize";
+
+    public static final String SPI_VERIFICATION_TIMEOUT = "verificationTimeout";
+
+    public static final String SPI_MAX_RESPONSE_SIZE = "maxResponseSize";
+
+    public static final String SPI_HEDGE_BUDGET = "hedgeBudget";
+
+    public static final String SPI_HEDGE_DELAY = "hedgeDelay";
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 1000;
+
+    private static final int DEFAULT_SOCKET_TIMEOUT = 2000;
+
+    private static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 500;
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 32;
+
+    private static final long DEFAULT_KEEP_ALIVE = 30_000L;
+
+    private static final int DEFAULT_VERIFICATION_QUEUE_SIZE = 512;
+
+    /**
+     * Captcha api responses are a few hundred bytes.
+     */
+    private static final int DEFAULT_MAX_RESPONSE_SIZE = 8 * 1024;
+
+    /**
+     * Verifications are not hedged by default.
+     */
+    private static final int DEFAULT_HEDGE_BUDGET = 0;
+
+    /**
+     * Marks verifications that run as hedges, so their requests are traced as hedged.
+     */
+    private static final ThreadLocal<Boolean> hedgeVerification = new ThreadLocal<>();
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final CloseableHttpClient httpClient;
+
+    private final RequestConfig defaultRequestConfig;
+
+    private final ThreadPoolExecutor verificationExecutor;
+
+    private final CaptchaConnectionWarmer connectionWarmer;
+
+    /**
+     * {@code null} if verifications are not hedged.
+     */
+    private final CaptchaVerificationHedger verificationHedger;
+
+    /**
+     * Max time in milliseconds to wait for the submitted verification result.
+     */
+    private final long verificationTimeout;
+
+    /**
+     * Max captcha api response body size in bytes.
+     */
+    private final int maxResponseSize;
+
+    private final Config.Scope config;
+
+    private final CaptchaTracer tracer;
+
+    /**
+     * Request configs with overridden timeouts for specific captcha providers, created on the first request.
+     */
+    private final Map<String, RequestConfig> providerRequestConfigs = new ConcurrentHashMap<>();
+
+    /**
+     * @param config authenticator SPI config scope. Connect and socket timeouts can be overridden per captcha provider
+     *               by prefixing option name with the provider name, e.g. {@code YandexSmartCaptchaSocketTimeout}
+     * @param tracer tracer of the captcha api requests
+     */
+    public CaptchaHttpClient(Config.Scope config, CaptchaTracer tracer) {
+        this.config = config;
+        this.tracer = tracer;
+        int connectTimeout = config.getInt(SPI_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT);
+        int socketTimeout = config.getInt(SPI_SOCKET_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+        int connectionRequestTimeout = config.getInt(SPI_CONNECTION_REQUEST_TIMEOUT, DEFAULT_CONNECTION_REQUEST_TIMEOUT);
+        long keepAlive = config.getLong(SPI_KEEP_ALIVE, DEFAULT_KEEP_ALIVE);
+
+        this.defaultRequestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .build();
+
+        this.connectionManager = new PoolingHttpClientConnectionManager(keepAlive, TimeUnit.MILLISECONDS);
+        this.connectionManager.setMaxTotal(config.getInt(SPI_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS));
+        this.connectionManager.setDefaultMaxPerRoute(config.getInt(SPI_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(defaultRequestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy(keepAlive))
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                .disableCookieManagement()
+                .disableAuthCaching()
+                .build();
+
+        // verification can not run faster than connections are leased, so more threads than connections are useless
+        int verificationThreads = config.getInt(SPI_VERIFICATION_THREADS, connectionManager.getMaxTotal());
+        this.verificationExecutor = new ThreadPoolExecutor(verificationThreads, verificationThreads,
+                keepAlive, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getInt(SPI_VERIFICATION_QUEUE_SIZE, DEFAULT_VERIFICATION_QUEUE_SIZE)),
+                new VerificationThreadFactory());
+        this.verificationExecutor.allowCoreThreadTimeOut(true);
+        this.verificationTimeout = config.getLong(SPI_VERIFICATION_TIMEOUT,
+                (long) connectionRequestTimeout + connectTimeout + socketTimeout);
+        this.maxResponseSize = config.getInt(SPI_MAX_RESPONSE_SIZE, DEFAULT_MAX_RESPONSE_SIZE);
+        int hedgeBudget = Math.min(config.getInt(SPI_HEDGE_BUDGET, DEFAULT_HEDGE_BUDGET), 100);
+        this.verificationHedger = hedgeBudget > 0
+                ? new CaptchaVerificationHedger(hedgeBudget, config.getLong(SPI_HEDGE_DELAY, 0L))
+                : null;
+
+        this.connectionWarmer = new CaptchaConnectionWarmer(connectionManager, config, connectTimeout, keepAlive);
+
+        logger.debug("Captcha http client created with config: {}, maxTotal={}, maxPerRoute={}, keepAlive={}ms",
+                defaultRequestConfig, connectionManager.getMaxTotal(), connectionManager.getDefaultMaxPerRoute(), keepAlive);
+    }
+
+    /**
+     * Executes the request using timeouts configured for the passed captcha provider.
+     * <p>
+     * Caller is responsible to close returned response to release the connection back to the pool.
+     *
+     * @param providerName name of the captcha provider that performs the request
+     * @param request      captcha validation request
+     */
+    public CloseableHttpResponse execute(String providerName, HttpUriRequest request) throws IOException {
+        HttpClientContext httpContext = HttpClientContext.create();
+        httpContext.setRequestConfig(providerRequestConfigs.computeIfAbsent(providerName, this::providerRequestConfig));
+        try (CaptchaSpan span = tracer.startSpan(CaptchaTracer.SPAN_HTTP)) {
+            if (span.isRecording()) {
+                span.setAttribute(CaptchaTracer.ATTRIBUTE_PROVIDER, providerName)
+                        .setAttribute(CaptchaTracer.ATTRIBUTE_HEDGE, hedgeVerification.get() != null);
+                request.setHeader(CaptchaTracer.TRACEPARENT_HEADER, span.getTraceparent());
+            }
+            try {
+                CloseableHttpResponse response = httpClient.execute(request, httpContext);
+                span.setAttribute(CaptchaTracer.ATTRIBUTE_HTTP_STATUS, response.getStatusLine().getStatusCode());
+                return response;
+            } catch (IOException e) {
+                span.setAttribute(CaptchaTracer.ATTRIBUTE_ERROR, e.getClass().getSimpleName());
+                throw e;
+            }
+        }
+    }
+
+    private RequestConfig providerRequestConfig(String providerName) {
+        return RequestConfig.copy(defaultRequestConfig)
+                .setConnectTimeout(config.getInt(providerName + "ConnectTimeout", defaultRequestConfig.getConnectTimeout()))
+                .setSocketTimeout(config.getInt(providerName + "SocketTimeout", defaultRequestConfig.getSocketTimeout()))
+                .build();
+    }
+
+    /**
+     * Runs the passed verification on the bounded verification executor.
+     *
+     * @param verification blocking captcha verification
+     * @return future that completes with verification result, or with {@link CaptchaVerdict.Outcome#PROVIDER_ERROR}
+     * verdict when the verification executor is saturated
+     */
+    public CompletableFuture<CaptchaVerdict> submit(Supplier<CaptchaVerdict> verification) {
+        try {
+            // exception is converted inside the task, so cancelling the returned future before the task starts skips it
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return verification.get();
+                } catch (RuntimeException e) {
+                    return CaptchaVerdict.error(e);
+                }
+            }, verificationExecutor);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Captcha verification rejected, verification queue is full");
+            return CompletableFuture.completedFuture(CaptchaVerdict.error(e));
+        }
+    }
+
+    /**
+     * Runs the passed verification on the bounded verification executor, hedged when verification hedging is enabled.
+     * Each verification runs on its own thread with its own pooled connection, concurrent verifications of the same
+     * token are coalesced before, see {@link ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaVerdictCache}.
+     *
+     * @param apiKey       key of the captcha api, e.g. captcha validation url
+     * @param verification blocking captcha verification
+     * @see CaptchaVerificationHedger
+     */
+    public CompletableFuture<CaptchaVerdict> submit(String apiKey, Supplier<CaptchaVerdict> verification) {
+        // verification threads continue the trace of the login
+        Supplier<CaptchaVerdict> tracedVerification = tracer.wrap(verification);
+        if (verificationHedger == null) {
+            return submit(tracedVerification);
+        }
+        return verificationHedger.submit(apiKey, () -> submit(tracedVerification),
+                () -> submit(() -> hedge(tracedVerification)));
+    }
+
+    private static CaptchaVerdict hedge(Supplier<CaptchaVerdict> verification) {
+        hedgeVerification.set(Boolean.TRUE);
+        try {
+            return verification.get();
+        } finally {
+            hedgeVerification.remove();
+        }
+    }
+
+    /**
+     * Opens keep-alive connections to the passed captcha validation urls in background,
+     * so the first verifications do not wait for the connection to be established.
+     */
+    public void warmUp(Collection<String> validateUrls) {
+        connectionWarmer.warmUp(validateUrls);
+    }
+
+    public long getVerificationTimeout() {
+        return verificationTimeout;
+    }
+
+    public int getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * @return number of verifications waiting for a free verification thread
+     */
+    public int getVerificationQueueSize() {
+        return verificationExecutor.getQueue().size();
+    }
+
+    /**
+     * @return verification hedger, {@code null} if verifications are not hedged
+     */
+    public CaptchaVerificationHedger getVerificationHedger() {
+        return verificationHedger;
+    }
+
+    public PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (verificationHedger != null) {
+            verificationHedger.close();
+        }
+        connectionWarmer.close();
+        verificationExecutor.shutdownNow();
+        httpClient.close();
+    }
+
+    /**
+     * Uses keep-alive timeout that server sends, but no longer than the configured one.
+     */
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(long keepAlive) {
+        return (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+        };
+    }
+
+    private static class VerificationThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "captcha-verification-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.apache.http.HttpEntity;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Streaming reader of captcha api json responses.
+ * <p>
+ * Response is read by {@link JsonParser} right from the http entity stream without building the body string or
+ * binding the whole document: only fields that captcha verdict needs are read, all other fields (e.g. {@code challenge_ts})
+ * are skipped without parsing. Response body is limited by size, so a broken or malicious captcha api
+ * can not make keycloak read an endless response: the body is read to its end only within the limit, a response that
+ * fails to be read must be closed without consuming it, so its connection is closed instead of being reused.
+ * <p>
+ * Instances are immutable and thread safe, each captcha client keeps its own one.
+ *
+ * @param <T> response object type
+ */
+public class CaptchaResponseReader<T> {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ObjectReader objectReader;
+
+    private final Supplier<T> responseFactory;
+
+    private final Map<String, FieldReader<T>> fieldReaders;
+
+    /**
+     * @param responseClass   response object type
+     * @param responseFactory creates an empty response object
+     * @param fieldReaders    readers of the needed fields by json field name
+     */
+    public CaptchaResponseReader(Class<T> responseClass,
+                                 Supplier<T> responseFactory,
+                                 Map<String, FieldReader<T>> fieldReaders) {
+        this.objectReader = objectMapper.readerFor(responseClass);
+        this.responseFactory = responseFactory;
+        this.fieldReaders = Map.copyOf(fieldReaders);
+    }
+
+    /**
+     * @param entity          captcha api response entity, it is read to the end when the response is valid
+     * @param maxResponseSize max response body size in bytes
+     * @throws IOException when response is not a json object or it is larger than max size
+     */
+    public T read(HttpEntity entity, int maxResponseSize) throws IOException {
+        if (entity == null) {
+            throw new IOException("Captcha response has no body");
+        }
+        if (entity.getContentLength() > maxResponseSize) {
+            throw new IOException("Captcha response is too large: " + entity.getContentLength() + " bytes");
+        }
+        return read(entity.getContent(), maxResponseSize);
+    }
+
+    /**
+     * @param content         captcha api response body, it is read to the end when the response is valid and not closed
+     * @param maxResponseSize max response body size in bytes
+     * @throws IOException when response is not a json object or it is larger than max size
+     */
+    public T read(InputStream content, int maxResponseSize) throws IOException {
+        LimitedInputStream limitedContent = new LimitedInputStream(content, maxResponseSize);
+        try (JsonParser parser = objectReader.createParser(limitedContent)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Captcha response is not a json object");
+            }
+            T response = responseFactory.get();
+            String fieldName;
+            while ((fieldName = parser.nextFieldName()) != null) {
+                parser.nextToken();
+                FieldReader<T> fieldReader = fieldReaders.get(fieldName);
+                if (fieldReader == null) {
+                    parser.skipChildren();
+                } else {
+                    fieldReader.read(parser, response);
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                throw new JsonParseException(parser, "Captcha response is not a json object");
+            }
+            // trailing bytes after the object are read within the limit too
+            limitedContent.drain();
+            return response;
+        }
+    }
+
+    /**
+     * @return current boolean value, {@code null} if it is not a boolean
+     */
+    public static Boolean readBoolean(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token != null && token.isBoolean()) {
+            return parser.getBooleanValue();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    /**
+     * @return current number value, {@code null} if it is not a number
+     */
+    public static Double readDouble(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token != null && token.isNumeric()) {
+            return parser.getDoubleValue();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    /**
+     * @return current string value, {@code null} if it is not a string
+     */
+    public static String readString(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    /**
+     * @return string values of the current array, {@code null} if it is not an array
+     */
+    public static List<String> readStrings(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        List<String> values = new ArrayList<>(2);
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            String value = readString(parser);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads value of the field the parser points to into the response object.
+     */
+    @FunctionalInterface
+    public interface FieldReader<T> {
+
+        void read(JsonParser parser, T response) throws IOException;
+    }
+
+    /**
+     * Fails when more than max bytes are read, so too large response is not silently truncated.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private final int maxSize;
+
+        private int remaining;
+
+        LimitedInputStream(InputStream in, int maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+            this.remaining = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                consumed(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // read one byte more than allowed to detect the overflow
+            int count = super.read(b, off, Math.min(len, remaining + 1));
+            if (count > 0) {
+                consumed(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = super.skip(Math.min(n, remaining + 1L));
+            consumed((int) count);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            // entity stream is closed by the caller
+        }
+
+        /**
+         * Reads the rest of the stream, fails when it exceeds the max size.
+         */
+        void drain() throws IOException {
+            byte[] buffer = new byte[256];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // skip
+            }
+        }
+
+        private void consumed(int count) throws IOException {
+            remaining -= count;
+            if (remaining < 0) {
+                throw new IOException("Captcha response is larger than " + maxSize + " bytes");
+            }
+        }
+    }
+}
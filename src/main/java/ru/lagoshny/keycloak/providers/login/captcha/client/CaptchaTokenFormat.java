@@ -0,0 +1,76 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+/**
+ * Structure of the captcha provider token: length bounds, allowed characters and prefix.
+ * <p>
+ * It is checked before the token is sent to captcha api, so garbage tokens of scripted logins are rejected
+ * without an api round-trip. Check is a single pass over the token chars without allocations.
+ */
+public final class CaptchaTokenFormat {
+
+    /**
+     * Characters of base64 and base64url encoded tokens and their usual separators.
+     */
+    public static final String TOKEN_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_+/=.:";
+
+    private final int minLength;
+
+    private final int maxLength;
+
+    /**
+     * Allowed chars by ascii code, tokens with non-ascii chars are malformed.
+     */
+    private final boolean[] allowedChars;
+
+    private final String prefix;
+
+    private CaptchaTokenFormat(int minLength, int maxLength, boolean[] allowedChars, String prefix) {
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.allowedChars = allowedChars;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param minLength    min token length
+     * @param maxLength    max token length
+     * @param allowedChars ascii chars the token consists of
+     */
+    public static CaptchaTokenFormat of(int minLength, int maxLength, String allowedChars) {
+        boolean[] allowed = new boolean[128];
+        for (int i = 0; i < allowedChars.length(); i++) {
+            char c = allowedChars.charAt(i);
+            if (c >= allowed.length) {
+                throw new IllegalArgumentException("Captcha token chars must be ascii: " + c);
+            }
+            allowed[c] = true;
+        }
+        return new CaptchaTokenFormat(minLength, maxLength, allowed, "");
+    }
+
+    /**
+     * @param prefix prefix every token starts with
+     * @return format with the same length and chars, which tokens start with the prefix
+     */
+    public CaptchaTokenFormat withPrefix(String prefix) {
+        return new CaptchaTokenFormat(minLength, maxLength, allowedChars, prefix);
+    }
+
+    /**
+     * @return {@code true} if the token has the format, it does not mean that the token is valid
+     */
+    public boolean matches(String token) {
+        int length = token.length();
+        if (length < minLength || length > maxLength || !token.startsWith(prefix)) {
+            return false;
+        }
+        for (int i = prefix.length(); i < length; i++) {
+            char c = token.charAt(i);
+            if (c >= allowedChars.length || !allowedChars[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
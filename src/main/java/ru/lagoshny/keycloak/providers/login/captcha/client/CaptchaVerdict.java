@@ -0,0 +1,121 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of the user's captcha token verification.
+ */
+public final class CaptchaVerdict {
+
+    public static final CaptchaVerdict SUCCESS = new CaptchaVerdict(Outcome.SUCCESS, List.of());
+
+    public static final CaptchaVerdict CIRCUIT_OPEN = new CaptchaVerdict(Outcome.CIRCUIT_OPEN, List.of());
+
+    public static final CaptchaVerdict REPLAYED = new CaptchaVerdict(Outcome.REPLAYED, List.of());
+
+    public enum Outcome {
+        /**
+         * Captcha api confirmed that the token is valid.
+         */
+        SUCCESS,
+        /**
+         * Captcha api rejected the token.
+         */
+        INVALID,
+        /**
+         * Captcha api is not reachable or returned unexpected response.
+         */
+        PROVIDER_ERROR,
+        /**
+         * Captcha api did not respond in time.
+         */
+        TIMEOUT,
+        /**
+         * Captcha api was not called because captcha provider circuit is open.
+         */
+        CIRCUIT_OPEN,
+        /**
+         * Captcha api accepted the token, but its score is below the threshold.
+         */
+        SCORE_REJECTED,
+        /**
+         * Captcha api accepted the token, but its score is ambiguous and an interactive captcha has to be passed.
+         */
+        STEP_UP_REQUIRED,
+        /**
+         * Captcha token is valid, but it has already passed another login.
+         */
+        REPLAYED
+    }
+
+    private final Outcome outcome;
+
+    /**
+     * Error codes returned by captcha api, empty when captcha api did not return any.
+     */
+    private final List<String> errorCodes;
+
+    private CaptchaVerdict(Outcome outcome, List<String> errorCodes) {
+        this.outcome = outcome;
+        this.errorCodes = errorCodes;
+    }
+
+    public static CaptchaVerdict invalid(List<String> errorCodes) {
+        return new CaptchaVerdict(Outcome.INVALID, errorCodes == null ? List.of() : List.copyOf(errorCodes));
+    }
+
+    /**
+     * @param score token score returned by captcha api
+     */
+    public static CaptchaVerdict scoreRejected(double score) {
+        return new CaptchaVerdict(Outcome.SCORE_REJECTED, List.of("score-" + score));
+    }
+
+    /**
+     * @param score token score returned by captcha api
+     */
+    public static CaptchaVerdict stepUpRequired(double score) {
+        return new CaptchaVerdict(Outcome.STEP_UP_REQUIRED, List.of("score-" + score));
+    }
+
+    /**
+     * @param e exception thrown while performing captcha validation request
+     * @return {@link Outcome#TIMEOUT} verdict when captcha api did not respond in time,
+     * {@link Outcome#PROVIDER_ERROR} verdict otherwise
+     */
+    public static CaptchaVerdict error(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        boolean timeout = cause instanceof SocketTimeoutException
+                || cause instanceof ConnectTimeoutException
+                || cause instanceof ConnectionPoolTimeoutException
+                || cause instanceof TimeoutException;
+        return new CaptchaVerdict(timeout ? Outcome.TIMEOUT : Outcome.PROVIDER_ERROR, List.of(cause.getClass().getSimpleName()));
+    }
+
+    public boolean isSuccess() {
+        return outcome == Outcome.SUCCESS;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public List<String> getErrorCodes() {
+        return errorCodes;
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", CaptchaVerdict.class.getSimpleName() + "[", "]")
+                .add("outcome=" + outcome)
+                .add("errorCodes=" + errorCodes)
+                .toString();
+    }
+}
@@ -0,0 +1,256 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Sends the same verification again when the captcha api does not answer within the hedge delay, so a single slow
+ * request does not set the login latency.
+ * <p>
+ * The hedge delay is either fixed or the observed 95th percentile latency of the captcha api, so only the slowest
+ * verifications are hedged. Hedges are limited by the budget: each verification earns a share of a hedge,
+ * so hedges never exceed the budget percent of verifications and the load of a slow captcha api grows by
+ * that percent at most.
+ * <p>
+ * Captcha tokens are single use, the captcha api rejects the request that comes second as a duplicate. So the hedge
+ * wins only with a successful verdict, otherwise the verdict of the first request is taken. The losing request
+ * is cancelled: it is not sent when it still waits for a verification thread, and its verdict is ignored when it is
+ * already in flight, so its kept-alive connection is returned to the pool instead of being aborted.
+ */
+public class CaptchaVerificationHedger implements Closeable {
+
+    private final static Logger logger = LoggerFactory.getLogger(CaptchaVerificationHedger.class);
+
+    /**
+     * Hedges the budget can save up while the captcha api is fast.
+     */
+    private static final int MAX_SAVED_HEDGES = 10;
+
+    /**
+     * One hedge in budget credits, each verification earns the budget percent of credits.
+     */
+    private static final int HEDGE_CREDITS = 100;
+
+    /**
+     * Verifications latencies the percentile is computed from.
+     */
+    private static final int LATENCY_SAMPLES = 256;
+
+    /**
+     * Latencies recorded before the percentile is computed and then between its updates.
+     */
+    private static final int PERCENTILE_UPDATE_INTERVAL = 32;
+
+    /**
+     * Percent of verifications that can be hedged.
+     */
+    private final int budget;
+
+    /**
+     * Fixed hedge delay in nanoseconds, {@code 0} to use the observed 95th percentile latency.
+     */
+    private final long delay;
+
+    private final AtomicLong credits = new AtomicLong();
+
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    private final ScheduledThreadPoolExecutor hedgeScheduler;
+
+    private final LongAdder hedges = new LongAdder();
+
+    private final LongAdder hedgeWins = new LongAdder();
+
+    /**
+     * @param budget percent of verifications that can be hedged, from 1 to 100
+     * @param delay  hedge delay in milliseconds, {@code 0} to use the observed 95th percentile latency
+     */
+    public CaptchaVerificationHedger(int budget, long delay) {
+        this.budget = budget;
+        this.delay = TimeUnit.MILLISECONDS.toNanos(delay);
+        this.hedgeScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "captcha-verification-hedger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // most verifications complete before the hedge delay, so their hedges must not stay in the queue
+        this.hedgeScheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @param key          verifications with the same key share latency statistics, e.g. captcha validation url
+     * @param verification sends the verification, its future never completes exceptionally
+     * @param hedge        sends the same verification on another verification thread
+     * @return future that completes with the first successful verdict, or the verdict of the first request
+     */
+    public CompletableFuture<CaptchaVerdict> submit(String key,
+                                                    Supplier<CompletableFuture<CaptchaVerdict>> verification,
+                                                    Supplier<CompletableFuture<CaptchaVerdict>> hedge) {
+        credits.accumulateAndGet(budget, (current, earned) -> Math.min(current + earned, MAX_SAVED_HEDGES * HEDGE_CREDITS));
+        LatencyWindow latency = latencies.computeIfAbsent(key, name -> new LatencyWindow());
+        long hedgeDelay = delay > 0 ? delay : latency.getPercentile();
+
+        long start = System.nanoTime();
+        CompletableFuture<CaptchaVerdict> first = verification.get();
+        first.whenComplete((verdict, e) -> {
+            // cancelled request has no latency
+            if (e == null) {
+                latency.record(System.nanoTime() - start);
+            }
+        });
+        if (hedgeDelay <= 0 || first.isDone()) {
+            return first;
+        }
+
+        HedgedVerification hedged = new HedgedVerification(first);
+        ScheduledFuture<?> scheduledHedge = hedgeScheduler.schedule(() -> hedged.hedge(hedge), hedgeDelay, TimeUnit.NANOSECONDS);
+        first.whenComplete((verdict, e) -> scheduledHedge.cancel(false));
+        return hedged.result;
+    }
+
+    /**
+     * @return number of sent hedges
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return number of hedges which verdict was taken
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    @Override
+    public void close() {
+        hedgeScheduler.shutdownNow();
+    }
+
+    private boolean tryAcquireHedge() {
+        while (true) {
+            long current = credits.get();
+            if (current < HEDGE_CREDITS) {
+                return false;
+            }
+            if (credits.compareAndSet(current, current - HEDGE_CREDITS)) {
+                return true;
+            }
+        }
+    }
+
+    private static CaptchaVerdict verdictOf(CompletableFuture<CaptchaVerdict> verification) {
+        try {
+            return verification.join();
+        } catch (RuntimeException e) {
+            return CaptchaVerdict.error(e);
+        }
+    }
+
+    /**
+     * Verification with at most one hedge, all state changes are guarded by the instance lock.
+     */
+    private final class HedgedVerification {
+
+        private final CompletableFuture<CaptchaVerdict> result = new CompletableFuture<>();
+
+        private final CompletableFuture<CaptchaVerdict> first;
+
+        /**
+         * {@code null} until the hedge is sent.
+         */
+        private CompletableFuture<CaptchaVerdict> second;
+
+        private HedgedVerification(CompletableFuture<CaptchaVerdict> first) {
+            this.first = first;
+            first.whenComplete((verdict, e) -> onFirst());
+        }
+
+        private synchronized void hedge(Supplier<CompletableFuture<CaptchaVerdict>> hedge) {
+            if (result.isDone() || first.isDone() || !tryAcquireHedge()) {
+                return;
+            }
+            logger.debug("Captcha verification is hedged");
+            hedges.increment();
+            second = hedge.get();
+            second.whenComplete((verdict, e) -> onSecond());
+        }
+
+        private synchronized void onFirst() {
+            if (result.isDone()) {
+                return;
+            }
+            CaptchaVerdict verdict = verdictOf(first);
+            // the hedge can be processed by the captcha api first, then the first request is rejected as a duplicate
+            if (verdict.isSuccess() || second == null || second.isDone()) {
+                result.complete(verdict);
+                if (second != null) {
+                    second.cancel(false);
+                }
+            }
+        }
+
+        private synchronized void onSecond() {
+            if (result.isDone()) {
+                return;
+            }
+            CaptchaVerdict verdict = verdictOf(second);
+            if (verdict.isSuccess()) {
+                hedgeWins.increment();
+                result.complete(verdict);
+                first.cancel(false);
+            } else if (first.isDone()) {
+                result.complete(verdictOf(first));
+            }
+        }
+    }
+
+    /**
+     * Latencies of the last verifications, the 95th percentile is recomputed from them periodically,
+     * so reading it is a volatile read.
+     */
+    private static final class LatencyWindow {
+
+        private final AtomicLongArray samples = new AtomicLongArray(LATENCY_SAMPLES);
+
+        private final AtomicInteger recorded = new AtomicInteger();
+
+        /**
+         * Nanoseconds, {@code 0} until enough latencies are recorded.
+         */
+        private volatile long percentile;
+
+        void record(long nanos) {
+            int index = recorded.getAndIncrement();
+            samples.set(Math.floorMod(index, LATENCY_SAMPLES), nanos);
+            if ((index + 1) % PERCENTILE_UPDATE_INTERVAL == 0) {
+                int size = Math.min(index + 1, LATENCY_SAMPLES);
+                long[] sorted = new long[size];
+                for (int i = 0; i < size; i++) {
+                    sorted[i] = samples.get(i);
+                }
+                Arrays.sort(sorted);
+                percentile = Math.max(1, sorted[size * 95 / 100]);
+            }
+        }
+
+        long getPercentile() {
+            return percentile;
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.ClientModel;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaProviderSettings;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaScorePolicy;
+
+/**
+ * Immutable data that captcha client needs to verify user's captcha token.
+ * <p>
+ * It is resolved from {@link AuthenticationFlowContext} on the request thread, so the verification itself
+ * can be performed on another thread without touching the context.
+ */
+public final class CaptchaVerificationRequest {
+
+    /**
+     * String value of user's captcha token obtained after captcha form passing.
+     */
+    private final String captchaToken;
+
+    /**
+     * Captcha provider server key.
+     */
+    private final String serverKey;
+
+    /**
+     * User's IP address.
+     */
+    private final String remoteAddr;
+
+    /**
+     * Captcha provider url to verify user's captcha token.
+     */
+    private final String validateUrl;
+
+    /**
+     * Id of the client the user logs in to, {@code null} if it is unknown.
+     */
+    private final String clientId;
+
+    /**
+     * Policy to judge score based captcha tokens.
+     */
+    private final CaptchaScorePolicy scorePolicy;
+
+    public CaptchaVerificationRequest(String captchaToken,
+                                      String serverKey,
+                                      String remoteAddr,
+                                      String validateUrl,
+                                      String clientId,
+                                      CaptchaScorePolicy scorePolicy) {
+        this.captchaToken = captchaToken;
+        this.serverKey = serverKey;
+        this.remoteAddr = remoteAddr;
+        this.validateUrl = validateUrl;
+        this.clientId = clientId;
+        this.scorePolicy = scorePolicy;
+    }
+
+    public static CaptchaVerificationRequest of(AuthenticationFlowContext context,
+                                                String captchaToken,
+                                                CaptchaProviderSettings providerSettings,
+                                                CaptchaScorePolicy scorePolicy) {
+        ClientModel client = context.getAuthenticationSession() == null ? null : context.getAuthenticationSession().getClient();
+        return new CaptchaVerificationRequest(captchaToken, providerSettings.getServerKey(),
+                context.getConnection().getRemoteAddr(), providerSettings.getValidateUrl(),
+                client == null ? null : client.getClientId(), scorePolicy);
+    }
+
+    public String getCaptchaToken() {
+        return captchaToken;
+    }
+
+    public String getServerKey() {
+        return serverKey;
+    }
+
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+    public String getValidateUrl() {
+        return validateUrl;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public CaptchaScorePolicy getScorePolicy() {
+        return scorePolicy;
+    }
+
+    @Override
+    public String toString() {
+        // do not expose captcha token and server key to logs
+        return CaptchaVerificationRequest.class.getSimpleName() + "[remoteAddr='" + remoteAddr + "', validateUrl='" + validateUrl
+                + "', clientId='" + clientId + "']";
+    }
+}
@@ -1,65 +1,83 @@
 package ru.lagoshny.keycloak.providers.login.captcha.client.google;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
-import org.keycloak.authentication.AuthenticationFlowContext;
-import org.keycloak.connections.httpclient.HttpClientProvider;
 import org.keycloak.services.ServicesLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaHttpClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaResponseReader;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaTokenFormat;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerificationRequest;
 
-import static ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaLoginFormFactory.CONFIG_KEY_CAPTCHA_SERVER_KEY;
-import static ru.lagoshny.keycloak.providers.login.captcha.util.ConfigUtils.getConfigVal;
+import java.io.IOException;
 
 public interface GoogleCaptchaClient<T> extends CaptchaClient {
 
     Logger logger = LoggerFactory.getLogger(GoogleCaptchaClient.class);
 
-    ObjectMapper objectMapper = new ObjectMapper();
+    /**
+     * Google tokens are base64url strings of several hundred chars, bounds are loose to not depend on their length.
+     */
+    CaptchaTokenFormat TOKEN_FORMAT = CaptchaTokenFormat.of(20, 4096, CaptchaTokenFormat.TOKEN_CHARS);
 
     /**
      * Common code to perform captcha validation request.
      *
      * @return response object that depends on passed <T> type
+     * @throws IOException when captcha api is not reachable or returned unexpected response
      */
-    default T verifyGoogleCaptchaRequest(AuthenticationFlowContext context,
-                                         String captchaToken,
-                                         Class<T> responseClass) {
-        try {
-            HttpUriRequest request = RequestBuilder.post(getCaptchaValidateUrl())
-                    .addParameter("secret", getConfigVal(context, CONFIG_KEY_CAPTCHA_SERVER_KEY))
-                    .addParameter("response", captchaToken)
-                    .addParameter("remoteip", context.getConnection().getRemoteAddr())
-                    .build();
+    default T verifyGoogleCaptchaRequest(CaptchaVerificationRequest verificationRequest,
+                                         CaptchaHttpClient httpClient,
+                                         CaptchaResponseReader<T> responseReader) throws IOException {
+        HttpUriRequest request = RequestBuilder.post(verificationRequest.getValidateUrl())
+                .addParameter("secret", verificationRequest.getServerKey())
+                .addParameter("response", verificationRequest.getCaptchaToken())
+                .addParameter("remoteip", verificationRequest.getRemoteAddr())
+                .build();
 
-            logger.debug("Captcha validation request: {}", request);
+        logger.debug("Captcha validation request: {}", request);
 
-            CloseableHttpClient httpClient = context.getSession()
-                    .getProvider(HttpClientProvider.class)
-                    .getHttpClient();
-            try (CloseableHttpResponse response = httpClient.execute(request)) {
-                try {
-                    T captchaResponse = objectMapper.readValue(EntityUtils.toString(response.getEntity()),
-                            responseClass);
-                    logger.debug("Captcha validation result: {}", captchaResponse);
-
-                    return captchaResponse;
-                } finally {
-                    EntityUtils.consumeQuietly(response.getEntity());
-                }
+        // response that is not read to the end is closed with its connection, so an oversized body is not read
+        try (CloseableHttpResponse response = httpClient.execute(getProviderName(), request)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_OK) {
+                throw new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase());
             }
-        } catch (Exception e) {
-            logger.error("Captcha validation exception {}", e.getMessage(), e);
-            ServicesLogger.LOGGER.failedAuthentication(e);
-            return null;
+            T captchaResponse = responseReader.read(response.getEntity(), httpClient.getMaxResponseSize());
+            logger.debug("Captcha validation result: {}", captchaResponse);
+            // body is already read to the end, so the kept-alive connection is returned to the pool
+            EntityUtils.consumeQuietly(response.getEntity());
+
+            return captchaResponse;
         }
     }
 
+    /**
+     * Converts exception thrown by {@link #verifyGoogleCaptchaRequest} to the failed {@link CaptchaVerdict}.
+     */
+    default CaptchaVerdict handleValidationException(Exception e) {
+        logger.error("Captcha validation exception {}", e.getMessage(), e);
+        ServicesLogger.LOGGER.failedAuthentication(e);
+        return CaptchaVerdict.error(e);
+    }
+
+    /**
+     * Name of the captcha provider that uses to apply provider specific http client settings.
+     */
+    String getProviderName();
+
+    @Override
+    default boolean isWellFormedToken(String token) {
+        return TOKEN_FORMAT.matches(token);
+    }
+
     @Override
     default String getCaptchaValidateUrl() {
         return "https://www.google.com/recaptcha/api/siteverify";
@@ -1,40 +1,55 @@
 package ru.lagoshny.keycloak.providers.login.captcha.client.google;
 
-import com.fasterxml.jackson.annotation.JsonProperty;
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.http.client.HttpClient;
-import org.keycloak.authentication.AuthenticationFlowContext;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaHttpClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaResponseReader;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerificationRequest;
 
-import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.StringJoiner;
 
 /**
  * Google ReCaptchaV2 client that uses {@link HttpClient} to perform request for captcha validation.
  * <p>
- * Instance of {@link HttpClient} obtains from current {@link AuthenticationFlowContext} session.
+ * Instance of {@link HttpClient} is the dedicated pooled {@link CaptchaHttpClient}.
  * <p>
  * See more about ReCaptchaV2 validation in <a href="https://developers.google.com/recaptcha/docs/verify">documentation</a>.
  */
 public class ReCaptchaV2Client implements GoogleCaptchaClient<ReCaptchaV2Client.CaptchaResponse> {
 
+    /**
+     * Reads only fields that captcha verdict needs.
+     */
+    static final CaptchaResponseReader<CaptchaResponse> RESPONSE_READER = new CaptchaResponseReader<>(
+            CaptchaResponse.class, CaptchaResponse::new, Map.of(
+                    "success", (parser, response) -> response.success = CaptchaResponseReader.readBoolean(parser),
+                    "hostname", (parser, response) -> response.hostname = CaptchaResponseReader.readString(parser),
+                    "error-codes", (parser, response) -> response.errorCodes = CaptchaResponseReader.readStrings(parser)));
+
     @Override
-    public boolean validateCaptchaToken(AuthenticationFlowContext context, String captchaToken) {
-        CaptchaResponse result = verifyGoogleCaptchaRequest(context, captchaToken, CaptchaResponse.class);
-        return result != null && BooleanUtils.isTrue(result.getSuccess());
+    public CaptchaVerdict validateCaptchaToken(CaptchaVerificationRequest request, CaptchaHttpClient httpClient) {
+        try {
+            CaptchaResponse result = verifyGoogleCaptchaRequest(request, httpClient, RESPONSE_READER);
+            return BooleanUtils.isTrue(result.getSuccess()) ? CaptchaVerdict.SUCCESS : CaptchaVerdict.invalid(result.getErrorCodes());
+        } catch (Exception e) {
+            return handleValidationException(e);
+        }
+    }
+
+    @Override
+    public String getProviderName() {
+        return ReCaptchaV2ClientFactory.PROVIDER_ID;
     }
 
     /**
      * ReCaptchaV2 <a href="https://developers.google.com/recaptcha/docs/verify#api-response">response object</a> that contains captcha validation result.
      */
     static class CaptchaResponse {
-        @JsonProperty("success")
         Boolean success;
-        @JsonProperty("challenge_ts")
-        Date challengeTs;
-        @JsonProperty("hostname")
         String hostname;
-        @JsonProperty("error-codes")
         List<String> errorCodes;
 
         public CaptchaResponse() {
@@ -44,10 +59,6 @@ public class ReCaptchaV2Client implements GoogleCaptchaClient<ReCaptchaV2Client.
             return success;
         }
 
-        public Date getChallengeTs() {
-            return challengeTs;
-        }
-
         public String getHostname() {
             return hostname;
         }
@@ -60,7 +71,6 @@ public class ReCaptchaV2Client implements GoogleCaptchaClient<ReCaptchaV2Client.
         public String toString() {
             return new StringJoiner(", ", CaptchaResponse.class.getSimpleName() + "[", "]")
                     .add("success=" + success)
-                    .add("challengeTs=" + challengeTs)
                     .add("hostname='" + hostname + "'")
                     .add("errorCodes=" + errorCodes)
                     .toString();
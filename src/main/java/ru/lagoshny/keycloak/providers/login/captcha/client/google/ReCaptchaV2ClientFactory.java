@@ -0,0 +1,43 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client.google;
+
+import org.keycloak.Config;
+import ru.lagoshny.keycloak.providers.login.captcha.client.AbstractCaptchaClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClient;
+
+/**
+ * Factory of the Google ReCaptchaV2 "I'm not a robot" checkbox.
+ */
+public class ReCaptchaV2ClientFactory extends AbstractCaptchaClientFactory {
+
+    public static final String PROVIDER_ID = "ReCaptchaV2";
+
+    public static final String CAPTCHA_TOKEN_FIELD = "g-recaptcha-response";
+
+    public static final String CAPTCHA_SCRIPT_URL = "https://www.google.com/recaptcha/api.js";
+
+    @Override
+    protected CaptchaClient createCaptchaClient(Config.Scope config) {
+        return new ReCaptchaV2Client();
+    }
+
+    @Override
+    public String getCaptchaTokenField() {
+        return CAPTCHA_TOKEN_FIELD;
+    }
+
+    @Override
+    public String getCaptchaScriptUrl() {
+        return CAPTCHA_SCRIPT_URL;
+    }
+
+    @Override
+    public String getCaptchaHtmlBlock(String captchaSiteKey) {
+        return "<div class=\"g-recaptcha\" data-sitekey=" + captchaSiteKey + "></div>";
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+}
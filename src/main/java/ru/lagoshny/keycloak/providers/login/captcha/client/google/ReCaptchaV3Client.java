@@ -1,49 +1,71 @@
 package ru.lagoshny.keycloak.providers.login.captcha.client.google;
 
-import com.fasterxml.jackson.annotation.JsonProperty;
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.http.client.HttpClient;
-import org.keycloak.authentication.AuthenticationFlowContext;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaHttpClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaResponseReader;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerificationRequest;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaScorePolicy;
 
-import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.StringJoiner;
 
 /**
  * Google ReCaptchaV3 client that uses {@link HttpClient} to perform request for captcha validation.
  * <p>
- * Instance of {@link HttpClient} obtains from current {@link AuthenticationFlowContext} session.
+ * Instance of {@link HttpClient} is the dedicated pooled {@link CaptchaHttpClient}.
  * <p>
  * IMPORTANT!
- * ReCaptchaV3 does not show to user any verification form, you should analyze response.score value to perform suited verification actions.
+ * ReCaptchaV3 does not show to user any verification form, token score, action and hostname are judged by
+ * {@link CaptchaScorePolicy} of the request.
  * See more about <a href="https://developers.google.com/recaptcha/docs/v3#interpreting_the_score">here</a>.
  * <p>
  * See more about ReCaptchaV3 validation in <a href="https://developers.google.com/recaptcha/docs/v3#site_verify_response">documentation</a>.
  */
 public class ReCaptchaV3Client implements GoogleCaptchaClient<ReCaptchaV3Client.CaptchaResponse> {
 
+    /**
+     * Reads only fields that captcha verdict needs.
+     */
+    static final CaptchaResponseReader<CaptchaResponse> RESPONSE_READER = new CaptchaResponseReader<>(
+            CaptchaResponse.class, CaptchaResponse::new, Map.of(
+                    "success", (parser, response) -> response.success = CaptchaResponseReader.readBoolean(parser),
+                    "hostname", (parser, response) -> response.hostname = CaptchaResponseReader.readString(parser),
+                    "error-codes", (parser, response) -> response.errorCodes = CaptchaResponseReader.readStrings(parser),
+                    "score", (parser, response) -> response.score = CaptchaResponseReader.readDouble(parser),
+                    "action", (parser, response) -> response.action = CaptchaResponseReader.readString(parser)));
+
     @Override
-    public boolean validateCaptchaToken(AuthenticationFlowContext context, String captchaToken) {
-        ReCaptchaV3Client.CaptchaResponse result = verifyGoogleCaptchaRequest(context, captchaToken, ReCaptchaV3Client.CaptchaResponse.class);
-        logger.debug("Validate captcha token result: {}", result);
-        return result != null && BooleanUtils.isTrue(result.getSuccess());
+    public CaptchaVerdict validateCaptchaToken(CaptchaVerificationRequest request, CaptchaHttpClient httpClient) {
+        try {
+            ReCaptchaV3Client.CaptchaResponse result = verifyGoogleCaptchaRequest(request, httpClient, RESPONSE_READER);
+            logger.debug("Validate captcha token result: {}", result);
+            if (BooleanUtils.isNotTrue(result.getSuccess())) {
+                return CaptchaVerdict.invalid(result.getErrorCodes());
+            }
+            return request.getScorePolicy() == null
+                    ? CaptchaVerdict.SUCCESS
+                    : request.getScorePolicy().evaluate(request.getClientId(), result.getScore(), result.getAction(), result.getHostname());
+        } catch (Exception e) {
+            return handleValidationException(e);
+        }
+    }
+
+    @Override
+    public String getProviderName() {
+        return ReCaptchaV3ClientFactory.PROVIDER_ID;
     }
 
     /**
      * ReCaptchaV3 <a href="https://developers.google.com/recaptcha/docs/v3#site_verify_response">response object</a> that contains captcha validation result.
      */
     static class CaptchaResponse {
-        @JsonProperty("success")
         Boolean success;
-        @JsonProperty("challenge_ts")
-        Date challengeTs;
-        @JsonProperty("hostname")
         String hostname;
-        @JsonProperty("error-codes")
         List<String> errorCodes;
-        @JsonProperty("score")
-        String score;
-        @JsonProperty("action")
+        Double score;
         String action;
 
         public CaptchaResponse() {
@@ -53,10 +75,6 @@ public class ReCaptchaV3Client implements GoogleCaptchaClient<ReCaptchaV3Client.
             return success;
         }
 
-        public Date getChallengeTs() {
-            return challengeTs;
-        }
-
         public String getHostname() {
             return hostname;
         }
@@ -65,7 +83,7 @@ public class ReCaptchaV3Client implements GoogleCaptchaClient<ReCaptchaV3Client.
             return errorCodes;
         }
 
-        public String getScore() {
+        public Double getScore() {
             return score;
         }
 
@@ -77,10 +95,9 @@ public class ReCaptchaV3Client implements GoogleCaptchaClient<ReCaptchaV3Client.
         public String toString() {
             return new StringJoiner(", ", CaptchaResponse.class.getSimpleName() + "[", "]")
                     .add("success=" + success)
-                    .add("challengeTs=" + challengeTs)
                     .add("hostname='" + hostname + "'")
                     .add("errorCodes=" + errorCodes)
-                    .add("score='" + score + "'")
+                    .add("score=" + score)
                     .add("action='" + action + "'")
                     .toString();
         }
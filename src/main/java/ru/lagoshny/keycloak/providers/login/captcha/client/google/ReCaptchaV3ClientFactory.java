@@ -0,0 +1,41 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client.google;
+
+import org.keycloak.Config;
+import ru.lagoshny.keycloak.providers.login.captcha.client.AbstractCaptchaClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClient;
+
+/**
+ * Factory of the Google ReCaptchaV3 invisible score based captcha.
+ * <p>
+ * ReCaptchaV3 has no captcha block, the login theme binds it to the submit button by the site key.
+ */
+public class ReCaptchaV3ClientFactory extends AbstractCaptchaClientFactory {
+
+    public static final String PROVIDER_ID = "ReCaptchaV3";
+
+    @Override
+    protected CaptchaClient createCaptchaClient(Config.Scope config) {
+        return new ReCaptchaV3Client();
+    }
+
+    @Override
+    public String getCaptchaTokenField() {
+        return ReCaptchaV2ClientFactory.CAPTCHA_TOKEN_FIELD;
+    }
+
+    @Override
+    public String getCaptchaScriptUrl() {
+        return ReCaptchaV2ClientFactory.CAPTCHA_SCRIPT_URL;
+    }
+
+    @Override
+    public String getCaptchaHtmlBlock(String captchaSiteKey) {
+        return captchaSiteKey;
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+}
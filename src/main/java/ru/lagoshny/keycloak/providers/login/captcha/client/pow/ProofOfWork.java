@@ -0,0 +1,293 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client.pow;
+
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaTokenFormat;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.function.LongSupplier;
+
+/**
+ * Stateless HMAC-signed proof-of-work challenges.
+ * <p>
+ * Challenge is {@code version.expiresAt.difficulty.salt.signature}, where the signature is HMAC-SHA256 of the preceding
+ * part keyed by the realm captcha server key, so the server does not store issued challenges. The browser searches
+ * a nonce, so SHA-256 of {@code challenge.nonce} starts with {@code difficulty} zero bits, and sends it back as
+ * the captcha token. Expected work of the browser is {@code 2^difficulty} hashes, the server checks it by two hashes.
+ * <p>
+ * Verification does not allocate: the token is copied into buffers of the thread, signature is compared in constant
+ * time and both hashes are computed into preallocated arrays.
+ */
+public class ProofOfWork {
+
+    public static final String ERROR_MALFORMED_TOKEN = "malformed-token";
+
+    public static final String ERROR_INVALID_SIGNATURE = "invalid-signature";
+
+    public static final String ERROR_CHALLENGE_EXPIRED = "challenge-expired";
+
+    public static final String ERROR_INSUFFICIENT_WORK = "insufficient-work";
+
+    public static final int MIN_DIFFICULTY = 1;
+
+    /**
+     * About a billion hashes, more than a browser solves in a reasonable time.
+     */
+    public static final int MAX_DIFFICULTY = 30;
+
+    private static final String VERSION = "1";
+
+    private static final int SALT_LENGTH = 12;
+
+    /**
+     * Length of the base64url encoded HMAC-SHA256 signature without padding.
+     */
+    private static final int SIGNATURE_LENGTH = 43;
+
+    private static final int MAX_NONCE_LENGTH = 16;
+
+    private static final int MAX_TOKEN_LENGTH = 128;
+
+    /**
+     * Version, one digit expiration time, difficulty and nonce, base64url salt, signature and four dots.
+     */
+    private static final int MIN_TOKEN_LENGTH = VERSION.length() + 3 + SALT_LENGTH / 3 * 4 + SIGNATURE_LENGTH + 4;
+
+    /**
+     * Structure of the solved challenge, it is checked without keys and hashing.
+     */
+    public static final CaptchaTokenFormat TOKEN_FORMAT = CaptchaTokenFormat.of(MIN_TOKEN_LENGTH, MAX_TOKEN_LENGTH,
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_.").withPrefix(VERSION + '.');
+
+    private static final byte[] BASE64_URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(Hasher::new);
+
+    /**
+     * Time in seconds the challenge can be solved and sent within.
+     */
+    private final long challengeTtl;
+
+    private final LongSupplier currentTimeMillis;
+
+    public ProofOfWork(long challengeTtl) {
+        this(challengeTtl, System::currentTimeMillis);
+    }
+
+    ProofOfWork(long challengeTtl, LongSupplier currentTimeMillis) {
+        this.challengeTtl = challengeTtl;
+        this.currentTimeMillis = currentTimeMillis;
+    }
+
+    /**
+     * @param serverKey  realm captcha server key to sign the challenge with
+     * @param difficulty leading zero bits of the solution hash
+     * @return new signed challenge
+     */
+    public String issueChallenge(String serverKey, int difficulty) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        String challenge = VERSION + '.' + (currentTime() + challengeTtl) + '.' + difficulty + '.'
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(salt);
+
+        Hasher hasher = hashers.get();
+        byte[] signed = challenge.getBytes(StandardCharsets.US_ASCII);
+        hasher.sign(serverKey, signed, signed.length);
+        return challenge + '.' + new String(hasher.encodedSignature, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param token     solved challenge {@code challenge.nonce}
+     * @param serverKey realm captcha server key the challenge was signed with
+     * @return error code, {@code null} if the token is signed by the server key, is not expired
+     * and its hash has enough leading zero bits
+     */
+    public String verify(String token, String serverKey) {
+        int length = token.length();
+        if (length > MAX_TOKEN_LENGTH) {
+            return ERROR_MALFORMED_TOKEN;
+        }
+        Hasher hasher = hashers.get();
+        byte[] input = hasher.input;
+        for (int i = 0; i < length; i++) {
+            char c = token.charAt(i);
+            if (c > 0x7f) {
+                return ERROR_MALFORMED_TOKEN;
+            }
+            input[i] = (byte) c;
+        }
+
+        int versionEnd = nextDot(input, 0, length);
+        int expiresEnd = nextDotAfter(input, versionEnd, length);
+        int difficultyEnd = nextDotAfter(input, expiresEnd, length);
+        int saltEnd = nextDotAfter(input, difficultyEnd, length);
+        int signatureEnd = nextDotAfter(input, saltEnd, length);
+        if (signatureEnd < 0 || versionEnd != VERSION.length() || input[0] != VERSION.charAt(0)
+                || signatureEnd - saltEnd - 1 != SIGNATURE_LENGTH
+                || length - signatureEnd - 1 > MAX_NONCE_LENGTH || nextDotAfter(input, signatureEnd, length) >= 0) {
+            return ERROR_MALFORMED_TOKEN;
+        }
+        long expiresAt = parseNumber(input, versionEnd + 1, expiresEnd);
+        long difficulty = parseNumber(input, expiresEnd + 1, difficultyEnd);
+        if (expiresAt < 0 || difficulty < MIN_DIFFICULTY || difficulty > MAX_DIFFICULTY
+                || parseNumber(input, signatureEnd + 1, length) < 0) {
+            return ERROR_MALFORMED_TOKEN;
+        }
+
+        hasher.sign(serverKey, input, saltEnd);
+        int diff = 0;
+        for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            diff |= hasher.encodedSignature[i] ^ input[saltEnd + 1 + i];
+        }
+        if (diff != 0) {
+            return ERROR_INVALID_SIGNATURE;
+        }
+        if (expiresAt < currentTime()) {
+            return ERROR_CHALLENGE_EXPIRED;
+        }
+        return leadingZeroBits(hasher.hash(input, length)) >= difficulty ? null : ERROR_INSUFFICIENT_WORK;
+    }
+
+    private long currentTime() {
+        return currentTimeMillis.getAsLong() / 1000;
+    }
+
+    /**
+     * @return index of the next {@code .} from the passed index, {@code -1} if there is no one
+     */
+    private static int nextDot(byte[] input, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (input[i] == '.') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param previous index of the previous {@code .}, {@code -1} if it is not found
+     */
+    private static int nextDotAfter(byte[] input, int previous, int to) {
+        return previous < 0 ? -1 : nextDot(input, previous + 1, to);
+    }
+
+    /**
+     * @return decimal number of up to 18 digits, {@code -1} if it is empty or not a number
+     */
+    private static long parseNumber(byte[] input, int from, int to) {
+        if (from >= to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = input[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int leadingZeroBits(byte[] hash) {
+        int bits = 0;
+        for (byte b : hash) {
+            if (b != 0) {
+                return bits + Integer.numberOfLeadingZeros(b & 0xff) - 24;
+            }
+            bits += 8;
+        }
+        return bits;
+    }
+
+    /**
+     * Encodes 32 bytes of the signature as base64url without padding.
+     */
+    static void encodeBase64Url(byte[] data, byte[] encoded) {
+        int out = 0;
+        int i = 0;
+        for (; i + 3 <= data.length; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | data[i + 2] & 0xff;
+            encoded[out++] = BASE64_URL[bits >>> 18 & 0x3f];
+            encoded[out++] = BASE64_URL[bits >>> 12 & 0x3f];
+            encoded[out++] = BASE64_URL[bits >>> 6 & 0x3f];
+            encoded[out++] = BASE64_URL[bits & 0x3f];
+        }
+        // 32 bytes leave 2 bytes, what is 3 chars without padding
+        int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8;
+        encoded[out++] = BASE64_URL[bits >>> 18 & 0x3f];
+        encoded[out++] = BASE64_URL[bits >>> 12 & 0x3f];
+        encoded[out] = BASE64_URL[bits >>> 6 & 0x3f];
+    }
+
+    /**
+     * Hash functions and buffers of the thread, {@link Mac} is re-keyed only when the server key changes.
+     */
+    private static class Hasher {
+
+        private final MessageDigest sha256;
+
+        private final Mac hmac;
+
+        private String hmacKey;
+
+        private final byte[] input = new byte[MAX_TOKEN_LENGTH];
+
+        private final byte[] hash = new byte[32];
+
+        private final byte[] signature = new byte[32];
+
+        private final byte[] encodedSignature = new byte[SIGNATURE_LENGTH];
+
+        Hasher() {
+            try {
+                this.sha256 = MessageDigest.getInstance("SHA-256");
+                this.hmac = Mac.getInstance("HmacSHA256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("SHA-256 is not supported", e);
+            }
+        }
+
+        byte[] hash(byte[] data, int length) {
+            sha256.update(data, 0, length);
+            try {
+                sha256.digest(hash, 0, hash.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            return hash;
+        }
+
+        /**
+         * Signs the data into {@link #encodedSignature}.
+         */
+        void sign(String serverKey, byte[] data, int length) {
+            if (!serverKey.equals(hmacKey)) {
+                try {
+                    hmac.init(new SecretKeySpec(serverKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+                } catch (InvalidKeyException e) {
+                    throw new IllegalArgumentException("Invalid captcha server key", e);
+                }
+                hmacKey = serverKey;
+            }
+            hmac.update(data, 0, length);
+            try {
+                hmac.doFinal(signature, 0);
+            } catch (ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+            encodeBase64Url(signature, encodedSignature);
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client.pow;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaHttpClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerificationRequest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Self-hosted proof-of-work captcha client, it verifies the solved challenge locally without any captcha api call.
+ */
+public class ProofOfWorkClient implements CaptchaClient {
+
+    private final static Logger logger = LoggerFactory.getLogger(ProofOfWorkClient.class);
+
+    /**
+     * Prebuilt verdicts by error code, so rejected tokens are judged without allocations too.
+     */
+    private static final Map<String, CaptchaVerdict> INVALID_VERDICTS = Map.of(
+            ProofOfWork.ERROR_MALFORMED_TOKEN, CaptchaVerdict.invalid(List.of(ProofOfWork.ERROR_MALFORMED_TOKEN)),
+            ProofOfWork.ERROR_INVALID_SIGNATURE, CaptchaVerdict.invalid(List.of(ProofOfWork.ERROR_INVALID_SIGNATURE)),
+            ProofOfWork.ERROR_CHALLENGE_EXPIRED, CaptchaVerdict.invalid(List.of(ProofOfWork.ERROR_CHALLENGE_EXPIRED)),
+            ProofOfWork.ERROR_INSUFFICIENT_WORK, CaptchaVerdict.invalid(List.of(ProofOfWork.ERROR_INSUFFICIENT_WORK)));
+
+    private final ProofOfWork proofOfWork;
+
+    public ProofOfWorkClient(ProofOfWork proofOfWork) {
+        this.proofOfWork = proofOfWork;
+    }
+
+    @Override
+    public CaptchaVerdict validateCaptchaToken(CaptchaVerificationRequest request, CaptchaHttpClient httpClient) {
+        String error = proofOfWork.verify(request.getCaptchaToken(), request.getServerKey());
+        if (error == null) {
+            return CaptchaVerdict.SUCCESS;
+        }
+        logger.debug("Proof-of-work captcha token is rejected: {}", error);
+        return INVALID_VERDICTS.get(error);
+    }
+
+    /**
+     * Verification takes microseconds, so it runs on the caller thread instead of the verification executor.
+     */
+    @Override
+    public CompletableFuture<CaptchaVerdict> validateCaptchaTokenAsync(CaptchaVerificationRequest request,
+                                                                       CaptchaHttpClient httpClient) {
+        return CompletableFuture.completedFuture(validateCaptchaToken(request, httpClient));
+    }
+
+    @Override
+    public boolean isWellFormedToken(String token) {
+        return ProofOfWork.TOKEN_FORMAT.matches(token);
+    }
+
+    /**
+     * Proof-of-work captcha has no validation url.
+     */
+    @Override
+    public String getCaptchaValidateUrl() {
+        return null;
+    }
+
+    public ProofOfWork getProofOfWork() {
+        return proofOfWork;
+    }
+
+}
@@ -0,0 +1,74 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client.pow;
+
+import org.keycloak.Config;
+import ru.lagoshny.keycloak.providers.login.captcha.client.AbstractCaptchaClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClient;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaProviderSettings;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaSettings;
+
+/**
+ * Factory of the self-hosted proof-of-work captcha.
+ * <p>
+ * Login page gets a new signed challenge on every render, the login theme script solves it in a web worker
+ * and puts the solution to the {@link #CAPTCHA_TOKEN_FIELD} field. Realm captcha server key signs the challenges,
+ * site key is not used.
+ */
+public class ProofOfWorkClientFactory extends AbstractCaptchaClientFactory {
+
+    public static final String PROVIDER_ID = "ProofOfWork";
+
+    public static final String CAPTCHA_TOKEN_FIELD = "proof-of-work-solution";
+
+    /**
+     * Script of the login theme resources that solves the challenge.
+     */
+    public static final String CAPTCHA_SCRIPT_URL = "js/proof-of-work.js";
+
+    public static final String SPI_CHALLENGE_TTL = "challengeTtl";
+
+    /**
+     * Default time in seconds to solve the challenge and submit the login form.
+     */
+    private static final long DEFAULT_CHALLENGE_TTL = 600;
+
+    private ProofOfWork proofOfWork;
+
+    @Override
+    protected CaptchaClient createCaptchaClient(Config.Scope config) {
+        proofOfWork = new ProofOfWork(config.getLong(SPI_CHALLENGE_TTL, DEFAULT_CHALLENGE_TTL));
+        return new ProofOfWorkClient(proofOfWork);
+    }
+
+    @Override
+    public String getCaptchaTokenField() {
+        return CAPTCHA_TOKEN_FIELD;
+    }
+
+    @Override
+    public String getCaptchaScriptUrl() {
+        return CAPTCHA_SCRIPT_URL;
+    }
+
+    @Override
+    public String getCaptchaHtmlBlock(String captchaSiteKey) {
+        return "";
+    }
+
+    @Override
+    public String getCaptchaHtmlBlock(CaptchaProviderSettings providerSettings, CaptchaSettings settings) {
+        String challenge = proofOfWork.issueChallenge(providerSettings.getServerKey(), settings.getProofOfWorkDifficulty());
+        return "<div class=\"proof-of-work\" data-challenge=\"" + challenge + "\">"
+                + "<input type=\"hidden\" name=\"" + CAPTCHA_TOKEN_FIELD + "\"/></div>";
+    }
+
+    @Override
+    public boolean isSiteKeyRequired() {
+        return false;
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+}
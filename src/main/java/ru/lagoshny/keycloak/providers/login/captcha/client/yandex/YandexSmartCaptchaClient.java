@@ -1,31 +1,32 @@
 package ru.lagoshny.keycloak.providers.login.captcha.client.yandex;
 
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
-import org.keycloak.authentication.AuthenticationFlowContext;
-import org.keycloak.connections.httpclient.HttpClientProvider;
 import org.keycloak.services.ServicesLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaHttpClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaResponseReader;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaTokenFormat;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerificationRequest;
 
 import java.net.URI;
+import java.util.List;
+import java.util.Map;
 import java.util.StringJoiner;
 
-import static ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaLoginFormFactory.CONFIG_KEY_CAPTCHA_SERVER_KEY;
-import static ru.lagoshny.keycloak.providers.login.captcha.util.ConfigUtils.getConfigVal;
-
 /**
  * Yandex Smart Captcha client that uses {@link HttpClient} to perform request for captcha validation.
  * <p>
- * Instance of {@link HttpClient} obtains from current {@link AuthenticationFlowContext} session.
+ * Instance of {@link HttpClient} is the dedicated pooled {@link CaptchaHttpClient}.
  * <p>
  * See more about yandex captcha validation in <a href="https://cloud.yandex.ru/docs/smartcaptcha/concepts/validation#validation-result">documentation</a>.
  */
@@ -35,38 +36,56 @@ public class YandexSmartCaptchaClient implements CaptchaClient {
 
     private final static String SUCCESS_RESPONSE_STATUS = "ok";
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final static String PROVIDER_NAME = YandexSmartCaptchaClientFactory.PROVIDER_ID;
+
+    /**
+     * Yandex tokens are base64 encoded strings, bounds are loose to not depend on their length.
+     */
+    private final static CaptchaTokenFormat TOKEN_FORMAT = CaptchaTokenFormat.of(20, 4096, CaptchaTokenFormat.TOKEN_CHARS);
+
+    /**
+     * Reads only fields that captcha verdict needs.
+     */
+    static final CaptchaResponseReader<CaptchaResponse> RESPONSE_READER = new CaptchaResponseReader<>(
+            CaptchaResponse.class, CaptchaResponse::new, Map.of(
+                    "status", (parser, response) -> response.status = CaptchaResponseReader.readString(parser),
+                    "message", (parser, response) -> response.message = CaptchaResponseReader.readString(parser)));
 
     @Override
-    public boolean validateCaptchaToken(AuthenticationFlowContext context, String captchaToken) {
+    public CaptchaVerdict validateCaptchaToken(CaptchaVerificationRequest request, CaptchaHttpClient httpClient) {
         try {
-            var uriBuilder = new URIBuilder(getConfigVal(context, getCaptchaValidateUrl()));
-            uriBuilder.addParameter("secret", getConfigVal(context, CONFIG_KEY_CAPTCHA_SERVER_KEY));
-            uriBuilder.addParameter("token", captchaToken);
-            uriBuilder.addParameter("ip", context.getConnection().getRemoteAddr());
+            var uriBuilder = new URIBuilder(request.getValidateUrl());
+            uriBuilder.addParameter("secret", request.getServerKey());
+            uriBuilder.addParameter("token", request.getCaptchaToken());
+            uriBuilder.addParameter("ip", request.getRemoteAddr());
             URI uri = uriBuilder.build();
-            logger.debug("Captcha validation URL: {}", uri);
-
-            CloseableHttpClient httpClient = context.getSession()
-                    .getProvider(HttpClientProvider.class)
-                    .getHttpClient();
-            try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
-                try {
-                    CaptchaResponse captchaResponse = objectMapper.readValue(EntityUtils.toString(response.getEntity()),
-                            CaptchaResponse.class);
-                    logger.debug("Captcha validation result: {}", captchaResponse);
-
-                    return StringUtils.equalsIgnoreCase(SUCCESS_RESPONSE_STATUS, captchaResponse.getStatus());
-                } finally {
-                    EntityUtils.consumeQuietly(response.getEntity());
+            logger.debug("Captcha validation request: {}", request);
+
+            // response that is not read to the end is closed with its connection, so an oversized body is not read
+            try (CloseableHttpResponse response = httpClient.execute(PROVIDER_NAME, new HttpGet(uri))) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode != HttpStatus.SC_OK) {
+                    throw new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase());
                 }
+                CaptchaResponse captchaResponse = RESPONSE_READER.read(response.getEntity(), httpClient.getMaxResponseSize());
+                logger.debug("Captcha validation result: {}", captchaResponse);
+                // body is already read to the end, so the kept-alive connection is returned to the pool
+                EntityUtils.consumeQuietly(response.getEntity());
+
+                return StringUtils.equalsIgnoreCase(SUCCESS_RESPONSE_STATUS, captchaResponse.getStatus())
+                        ? CaptchaVerdict.SUCCESS
+                        : CaptchaVerdict.invalid(captchaResponse.getMessage() == null ? null : List.of(captchaResponse.getMessage()));
             }
         } catch (Exception e) {
             logger.error("Captcha validation exception {}", e.getMessage(), e);
             ServicesLogger.LOGGER.failedAuthentication(e);
+            return CaptchaVerdict.error(e);
         }
+    }
 
-        return false;
+    @Override
+    public boolean isWellFormedToken(String token) {
+        return TOKEN_FORMAT.matches(token);
     }
 
     @Override
@@ -78,11 +97,7 @@ public class YandexSmartCaptchaClient implements CaptchaClient {
      * Yandex captcha <a href="https://yandex.cloud/en-ru/docs/smartcaptcha/operations/validate-captcha#service-response">response object</a> that contains captcha validation result.
      */
     static class CaptchaResponse {
-        @JsonProperty("status")
         String status;
-        @JsonProperty("self")
-        String self;
-        @JsonProperty("message")
         String message;
 
         public CaptchaResponse() {
@@ -92,10 +107,6 @@ public class YandexSmartCaptchaClient implements CaptchaClient {
             return status;
         }
 
-        public String getSelf() {
-            return self;
-        }
-
         public String getMessage() {
             return message;
         }
@@ -104,7 +115,6 @@ public class YandexSmartCaptchaClient implements CaptchaClient {
         public String toString() {
             return new StringJoiner(", ", CaptchaResponse.class.getSimpleName() + "[", "]")
                     .add("status='" + status + "'")
-                    .add("self='" + self + "'")
                     .add("message='" + message + "'")
                     .toString();
         }
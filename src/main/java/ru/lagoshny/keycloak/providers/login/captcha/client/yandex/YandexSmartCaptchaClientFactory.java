@@ -0,0 +1,39 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client.yandex;
+
+import org.keycloak.Config;
+import ru.lagoshny.keycloak.providers.login.captcha.client.AbstractCaptchaClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClient;
+
+/**
+ * Factory of the Yandex Smart Captcha.
+ */
+public class YandexSmartCaptchaClientFactory extends AbstractCaptchaClientFactory {
+
+    public static final String PROVIDER_ID = "YandexSmartCaptcha";
+
+    @Override
+    protected CaptchaClient createCaptchaClient(Config.Scope config) {
+        return new YandexSmartCaptchaClient();
+    }
+
+    @Override
+    public String getCaptchaTokenField() {
+        return "smart-token";
+    }
+
+    @Override
+    public String getCaptchaScriptUrl() {
+        return "https://captcha-api.yandex.ru/captcha.js";
+    }
+
+    @Override
+    public String getCaptchaHtmlBlock(String captchaSiteKey) {
+        return "<div id=\"captcha-container\" class=\"captcha-style smart-captcha\" data-sitekey=\"" + captchaSiteKey + "\"></div>";
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+}
@@ -0,0 +1,77 @@
+package ru.lagoshny.keycloak.providers.login.captcha.config;
+
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Cache of immutable objects built from {@link AuthenticatorConfigModel}, keyed by authenticator config id.
+ * <p>
+ * Cached object is rebuilt when the config values change, e.g. admin updates authenticator settings.
+ * Keycloak realm cache returns the same config instance until the realm is invalidated, so in most cases
+ * the lookup is a single map get and a reference comparison, the config values are compared only for a new instance.
+ *
+ * @param <T> type of cached object
+ */
+public class AuthenticatorConfigCache<T> {
+
+    private final Map<String, Entry<T>> entries = new ConcurrentHashMap<>();
+
+    private final Function<Map<String, String>, T> builder;
+
+    /**
+     * @param builder builds cached object from the authenticator config values
+     */
+    public AuthenticatorConfigCache(Function<Map<String, String>, T> builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * @return cached object for the authenticator config, built if it is not cached yet or config values changed
+     */
+    public T get(AuthenticatorConfigModel configModel) {
+        Map<String, String> config = configModel.getConfig() == null ? Map.of() : configModel.getConfig();
+        Entry<T> entry = entries.get(configModel.getId());
+        if (entry != null && (entry.configRef == config || entry.config.equals(config))) {
+            return entry.value;
+        }
+
+        Map<String, String> configCopy = new HashMap<>(config);
+        T value = builder.apply(configCopy);
+        entries.put(configModel.getId(), new Entry<>(config, configCopy, value));
+        return value;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static class Entry<T> {
+
+        /**
+         * Config instance the value was built from, to detect the same config without comparing values.
+         */
+        private final Map<String, String> configRef;
+
+        /**
+         * Copy of config values the value was built from, the instance from keycloak can be mutated.
+         */
+        private final Map<String, String> config;
+
+        private final T value;
+
+        private Entry(Map<String, String> configRef, Map<String, String> config, T value) {
+            this.configRef = configRef;
+            this.config = config;
+            this.value = value;
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package ru.lagoshny.keycloak.providers.login.captcha.config;
+
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClientFactory;
+
+/**
+ * Immutable settings of the captcha provider configured for the realm: keys, validation endpoint
+ * and pre-rendered login form attributes.
+ */
+public final class CaptchaProviderSettings {
+
+    private final CaptchaClientFactory captchaClientFactory;
+
+    private final String serverKey;
+
+    /**
+     * Captcha validation url, either overridden in the config or the default one of the captcha client.
+     */
+    private final String validateUrl;
+
+    private final String captchaScriptUrl;
+
+    private final String captchaHtmlBlock;
+
+    public CaptchaProviderSettings(CaptchaClientFactory captchaClientFactory, String siteKey, String serverKey, String validateUrl) {
+        this.captchaClientFactory = captchaClientFactory;
+        this.serverKey = serverKey;
+        this.validateUrl = validateUrl == null ? captchaClientFactory.getCaptchaClient().getCaptchaValidateUrl() : validateUrl;
+        this.captchaScriptUrl = captchaClientFactory.getCaptchaScriptUrl();
+        this.captchaHtmlBlock = captchaClientFactory.getCaptchaHtmlBlock(siteKey);
+    }
+
+    public CaptchaClientFactory getCaptchaClientFactory() {
+        return captchaClientFactory;
+    }
+
+    public CaptchaClient getCaptchaClient() {
+        return captchaClientFactory.getCaptchaClient();
+    }
+
+    public String getCaptchaProviderName() {
+        return captchaClientFactory.getId();
+    }
+
+    public String getCaptchaTokenField() {
+        return captchaClientFactory.getCaptchaTokenField();
+    }
+
+    public String getServerKey() {
+        return serverKey;
+    }
+
+    public String getValidateUrl() {
+        return validateUrl;
+    }
+
+    public String getCaptchaScriptUrl() {
+        return captchaScriptUrl;
+    }
+
+    public String getCaptchaHtmlBlock() {
+        return captchaHtmlBlock;
+    }
+
+    @Override
+    public String toString() {
+        // do not expose server key to logs
+        return CaptchaProviderSettings.class.getSimpleName() + "[captchaProvider=" + captchaClientFactory.getId()
+                + ", validateUrl='" + validateUrl + "']";
+    }
+}
@@ -0,0 +1,33 @@
+package ru.lagoshny.keycloak.providers.login.captcha.config;
+
+/**
+ * Captcha provider that logins can be routed to with its relative weight.
+ */
+public final class CaptchaRoute {
+
+    private final CaptchaProviderSettings providerSettings;
+
+    private final int weight;
+
+    public CaptchaRoute(CaptchaProviderSettings providerSettings, int weight) {
+        this.providerSettings = providerSettings;
+        this.weight = weight;
+    }
+
+    public CaptchaProviderSettings getProviderSettings() {
+        return providerSettings;
+    }
+
+    public String getCaptchaProviderName() {
+        return providerSettings.getCaptchaProviderName();
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return CaptchaRoute.class.getSimpleName() + "[" + providerSettings + ", weight=" + weight + "]";
+    }
+}
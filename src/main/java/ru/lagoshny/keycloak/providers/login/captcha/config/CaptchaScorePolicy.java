@@ -0,0 +1,103 @@
+package ru.lagoshny.keycloak.providers.login.captcha.config;
+
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable policy to judge score based captcha tokens, e.g. ReCaptchaV3.
+ * <p>
+ * Token passes when its score is not below the min score of the realm or of the client the user logs in to.
+ * Token with score in the grey band {@code [stepUpScore, minScore)} requires an interactive captcha,
+ * token with lower score is rejected.
+ */
+public final class CaptchaScorePolicy {
+
+    public static final double DEFAULT_MIN_SCORE = 0.5;
+
+    /**
+     * Action that login theme passes to ReCaptchaV3.
+     */
+    public static final String DEFAULT_EXPECTED_ACTION = "submit";
+
+    private final double minScore;
+
+    /**
+     * Lower bound of the grey band, {@code null} if step up is disabled.
+     */
+    private final Double stepUpScore;
+
+    /**
+     * {@code null} if action is not checked.
+     */
+    private final String expectedAction;
+
+    /**
+     * Empty if hostname is not checked.
+     */
+    private final Set<String> expectedHostnames;
+
+    /**
+     * Min scores by client id that override the realm min score.
+     */
+    private final Map<String, Double> clientMinScores;
+
+    public CaptchaScorePolicy(double minScore,
+                              Double stepUpScore,
+                              String expectedAction,
+                              Set<String> expectedHostnames,
+                              Map<String, Double> clientMinScores) {
+        this.minScore = minScore;
+        this.stepUpScore = stepUpScore;
+        this.expectedAction = expectedAction;
+        this.expectedHostnames = Set.copyOf(expectedHostnames);
+        this.clientMinScores = Map.copyOf(clientMinScores);
+    }
+
+    /**
+     * @param clientId id of the client the user logs in to, {@code null} if it is unknown
+     * @param score    token score returned by captcha api, {@code null} if it is not returned
+     * @param action   token action returned by captcha api
+     * @param hostname hostname of the page where the token was issued
+     * @return verdict of the token that captcha api accepted
+     */
+    public CaptchaVerdict evaluate(String clientId, Double score, String action, String hostname) {
+        if (!expectedHostnames.isEmpty() && !expectedHostnames.contains(hostname)) {
+            return CaptchaVerdict.invalid(List.of("hostname-mismatch"));
+        }
+        if (expectedAction != null && !expectedAction.equals(action)) {
+            return CaptchaVerdict.invalid(List.of("action-mismatch"));
+        }
+        if (score == null) {
+            return CaptchaVerdict.invalid(List.of("missing-score"));
+        }
+        if (score >= getMinScore(clientId)) {
+            return CaptchaVerdict.SUCCESS;
+        }
+        return stepUpScore != null && score >= stepUpScore
+                ? CaptchaVerdict.stepUpRequired(score)
+                : CaptchaVerdict.scoreRejected(score);
+    }
+
+    public double getMinScore(String clientId) {
+        return clientId == null ? minScore : clientMinScores.getOrDefault(clientId, minScore);
+    }
+
+    public Double getStepUpScore() {
+        return stepUpScore;
+    }
+
+    public String getExpectedAction() {
+        return expectedAction;
+    }
+
+    public Set<String> getExpectedHostnames() {
+        return expectedHostnames;
+    }
+
+    public Map<String, Double> getClientMinScores() {
+        return clientMinScores;
+    }
+}
@@ -0,0 +1,482 @@
+package ru.lagoshny.keycloak.providers.login.captcha.config;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClients;
+import ru.lagoshny.keycloak.providers.login.captcha.client.google.ReCaptchaV2ClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.google.ReCaptchaV3ClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.pow.ProofOfWork;
+import ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaFailurePolicy;
+import ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaMode;
+import ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaRouting;
+import ru.lagoshny.keycloak.providers.login.captcha.util.IpRange;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaLoginFormFactory.*;
+
+/**
+ * Immutable typed snapshot of the captcha authenticator config.
+ * <p>
+ * It is built and validated once per config version, see {@link AuthenticatorConfigCache}, so the login form
+ * and captcha clients do not look up and parse config values on every request.
+ * Invalid snapshot keeps all found config errors, see {@link #getErrors()}.
+ */
+public final class CaptchaSettings {
+
+    private static final int DEFAULT_FAILURES_THRESHOLD = 3;
+
+    private static final int DEFAULT_ROUTE_WEIGHT = 1;
+
+    public static final int DEFAULT_PROOF_OF_WORK_DIFFICULTY = 18;
+
+    public static final int MAX_PASS_COOKIE_TTL = 3600;
+
+    /**
+     * Delimiter of multivalued config values.
+     */
+    private static final String MULTIVALUED_DELIMITER = "##";
+
+    private final boolean captchaEnabled;
+
+    private final CaptchaMode captchaMode;
+
+    private final CaptchaFailurePolicy failurePolicy;
+
+    private final CaptchaRouting routing;
+
+    /**
+     * Number of failed logins after which captcha is shown in the {@link CaptchaMode#ADAPTIVE} mode.
+     */
+    private final int failuresThreshold;
+
+    /**
+     * IP ranges that always get captcha in the {@link CaptchaMode#ADAPTIVE} mode.
+     */
+    private final List<IpRange> challengeIpRanges;
+
+    /**
+     * Max time in milliseconds to wait for captcha verification, {@code 0} to use the SPI default.
+     */
+    private final long verificationTimeout;
+
+    /**
+     * {@code null} if captcha provider is not configured.
+     */
+    private final CaptchaProviderSettings primary;
+
+    /**
+     * {@code null} if failure policy is not {@link CaptchaFailurePolicy#FALLBACK}, routing is {@link CaptchaRouting#PRIMARY}
+     * or fallback provider is not configured.
+     */
+    private final CaptchaProviderSettings fallback;
+
+    /**
+     * Configured primary and fallback providers in order.
+     */
+    private final List<CaptchaRoute> routes;
+
+    /**
+     * Interactive captcha to show when score based captcha token is in the grey band, {@code null} if step up is disabled.
+     */
+    private final CaptchaProviderSettings stepUp;
+
+    private final CaptchaScorePolicy scorePolicy;
+
+    /**
+     * Leading zero bits of the proof-of-work captcha solution hash.
+     */
+    private final int proofOfWorkDifficulty;
+
+    /**
+     * Time in seconds the user skips captcha after passing it, {@code 0} if the pass cookie is disabled.
+     */
+    private final int passCookieTtl;
+
+    private final List<String> errors;
+
+    private CaptchaSettings(Parser parser) {
+        this.captchaEnabled = parser.captchaEnabled;
+        this.captchaMode = parser.captchaMode;
+        this.failurePolicy = parser.failurePolicy;
+        this.routing = parser.routing;
+        this.failuresThreshold = parser.failuresThreshold;
+        this.challengeIpRanges = parser.challengeIpRanges;
+        this.verificationTimeout = parser.verificationTimeout;
+        this.primary = parser.primary;
+        this.fallback = parser.fallback;
+        this.routes = List.copyOf(parser.routes);
+        this.stepUp = parser.stepUp;
+        this.scorePolicy = parser.scorePolicy;
+        this.proofOfWorkDifficulty = parser.proofOfWorkDifficulty;
+        this.passCookieTtl = parser.passCookieTtl;
+        this.errors = Collections.unmodifiableList(parser.errors);
+    }
+
+    /**
+     * Parses and validates authenticator config values.
+     * Provider and its keys are required only when captcha is enabled.
+     *
+     * @param config         authenticator config values
+     * @param captchaClients registered captcha providers
+     * @return settings snapshot, check {@link #isValid()} before use
+     */
+    public static CaptchaSettings of(Map<String, String> config, CaptchaClients captchaClients) {
+        return new CaptchaSettings(new Parser(config, captchaClients).parse());
+    }
+
+    public boolean isCaptchaEnabled() {
+        return captchaEnabled;
+    }
+
+    public CaptchaMode getCaptchaMode() {
+        return captchaMode;
+    }
+
+    public CaptchaFailurePolicy getFailurePolicy() {
+        return failurePolicy;
+    }
+
+    public CaptchaRouting getRouting() {
+        return routing;
+    }
+
+    public int getFailuresThreshold() {
+        return failuresThreshold;
+    }
+
+    public List<IpRange> getChallengeIpRanges() {
+        return challengeIpRanges;
+    }
+
+    public long getVerificationTimeout() {
+        return verificationTimeout;
+    }
+
+    public CaptchaProviderSettings getPrimary() {
+        return primary;
+    }
+
+    public CaptchaProviderSettings getFallback() {
+        return fallback;
+    }
+
+    public List<CaptchaRoute> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * @return settings of the configured primary or fallback provider, {@code null} if it is not configured
+     */
+    public CaptchaProviderSettings getRoutedProvider(String providerName) {
+        for (CaptchaRoute route : routes) {
+            if (route.getCaptchaProviderName().equals(providerName)) {
+                return route.getProviderSettings();
+            }
+        }
+        return null;
+    }
+
+    public CaptchaProviderSettings getStepUp() {
+        return stepUp;
+    }
+
+    public CaptchaScorePolicy getScorePolicy() {
+        return scorePolicy;
+    }
+
+    public int getProofOfWorkDifficulty() {
+        return proofOfWorkDifficulty;
+    }
+
+    public int getPassCookieTtl() {
+        return passCookieTtl;
+    }
+
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * @return human readable config errors, empty if config is valid
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Collects all config errors instead of failing on the first one, so admin can fix them at once.
+     */
+    private static class Parser {
+
+        private final Map<String, String> config;
+
+        private final CaptchaClients captchaClients;
+
+        private final List<String> errors = new ArrayList<>();
+
+        private boolean captchaEnabled;
+
+        private CaptchaMode captchaMode;
+
+        private CaptchaFailurePolicy failurePolicy;
+
+        private CaptchaRouting routing;
+
+        private int failuresThreshold;
+
+        private List<IpRange> challengeIpRanges = List.of();
+
+        private long verificationTimeout;
+
+        private CaptchaProviderSettings primary;
+
+        private CaptchaProviderSettings fallback;
+
+        private final List<CaptchaRoute> routes = new ArrayList<>();
+
+        private CaptchaProviderSettings stepUp;
+
+        private CaptchaScorePolicy scorePolicy;
+
+        private int proofOfWorkDifficulty;
+
+        private int passCookieTtl;
+
+        private Parser(Map<String, String> config, CaptchaClients captchaClients) {
+            this.config = config;
+            this.captchaClients = captchaClients;
+        }
+
+        private Parser parse() {
+            captchaEnabled = BooleanUtils.toBoolean(value(CONFIG_KEY_CAPTCHA_ENABLED));
+            captchaMode = parseEnum(CONFIG_KEY_CAPTCHA_MODE, CaptchaMode.getCaptchaModeNames())
+                    ? CaptchaMode.of(value(CONFIG_KEY_CAPTCHA_MODE))
+                    : CaptchaMode.ALWAYS;
+            failurePolicy = parseEnum(CONFIG_KEY_CAPTCHA_FAILURE_POLICY, CaptchaFailurePolicy.getCaptchaFailurePolicyNames())
+                    ? CaptchaFailurePolicy.of(value(CONFIG_KEY_CAPTCHA_FAILURE_POLICY))
+                    : CaptchaFailurePolicy.FAIL_CLOSED;
+            routing = parseEnum(CONFIG_KEY_CAPTCHA_ROUTING, CaptchaRouting.getCaptchaRoutingNames())
+                    ? CaptchaRouting.of(value(CONFIG_KEY_CAPTCHA_ROUTING))
+                    : CaptchaRouting.PRIMARY;
+            failuresThreshold = (int) parseNumber(CONFIG_KEY_CAPTCHA_FAILURES_THRESHOLD, DEFAULT_FAILURES_THRESHOLD, 1, Integer.MAX_VALUE);
+            verificationTimeout = parseNumber(CONFIG_KEY_CAPTCHA_VERIFICATION_TIMEOUT, 0, 0, Long.MAX_VALUE);
+            String ranges = value(CONFIG_KEY_CAPTCHA_CHALLENGE_IPS);
+            if (ranges != null) {
+                try {
+                    challengeIpRanges = IpRange.parseList(ranges);
+                } catch (IllegalArgumentException e) {
+                    errors.add(CONFIG_KEY_CAPTCHA_CHALLENGE_IPS + ": " + e.getMessage());
+                }
+            }
+
+            primary = parseProvider(CONFIG_KEY_CAPTCHA_PROVIDER, CONFIG_KEY_CLIENT_KEY,
+                    CONFIG_KEY_CAPTCHA_SERVER_KEY, CONFIG_KEY_CAPTCHA_VALIDATE_URL, captchaEnabled);
+            if (failurePolicy == CaptchaFailurePolicy.FALLBACK || routing != CaptchaRouting.PRIMARY) {
+                fallback = parseProvider(CONFIG_KEY_CAPTCHA_FALLBACK_PROVIDER, CONFIG_KEY_FALLBACK_CLIENT_KEY,
+                        CONFIG_KEY_CAPTCHA_FALLBACK_SERVER_KEY, CONFIG_KEY_CAPTCHA_FALLBACK_VALIDATE_URL, captchaEnabled);
+            }
+            parseRoutes();
+            parseScorePolicy();
+            proofOfWorkDifficulty = (int) parseNumber(CONFIG_KEY_CAPTCHA_PROOF_OF_WORK_DIFFICULTY, DEFAULT_PROOF_OF_WORK_DIFFICULTY,
+                    ProofOfWork.MIN_DIFFICULTY, ProofOfWork.MAX_DIFFICULTY);
+            passCookieTtl = (int) parseNumber(CONFIG_KEY_CAPTCHA_PASS_COOKIE_TTL, 0, 0, MAX_PASS_COOKIE_TTL);
+            return this;
+        }
+
+        private void parseRoutes() {
+            if (primary != null) {
+                routes.add(new CaptchaRoute(primary,
+                        (int) parseNumber(CONFIG_KEY_CAPTCHA_WEIGHT, DEFAULT_ROUTE_WEIGHT, 0, 1000)));
+            }
+            if (fallback != null) {
+                // circuit breakers and the chosen captcha of the authentication session are tracked by provider name
+                if (primary != null && primary.getCaptchaProviderName().equals(fallback.getCaptchaProviderName())) {
+                    errors.add(CONFIG_KEY_CAPTCHA_FALLBACK_PROVIDER + ": fallback provider must differ from the primary one");
+                }
+                routes.add(new CaptchaRoute(fallback,
+                        (int) parseNumber(CONFIG_KEY_CAPTCHA_FALLBACK_WEIGHT, DEFAULT_ROUTE_WEIGHT, 0, 1000)));
+            }
+            if (routing == CaptchaRouting.WEIGHTED && routes.stream().allMatch(route -> route.getWeight() == 0)) {
+                errors.add(CONFIG_KEY_CAPTCHA_WEIGHT + ": at least one provider weight must be positive");
+            }
+        }
+
+        private void parseScorePolicy() {
+            double minScore = parseScore(CONFIG_KEY_CAPTCHA_MIN_SCORE, CaptchaScorePolicy.DEFAULT_MIN_SCORE);
+            Double stepUpScore = value(CONFIG_KEY_CAPTCHA_STEP_UP_SCORE) == null
+                    ? null
+                    : parseScore(CONFIG_KEY_CAPTCHA_STEP_UP_SCORE, 0);
+            if (stepUpScore != null) {
+                if (stepUpScore >= minScore) {
+                    errors.add(CONFIG_KEY_CAPTCHA_STEP_UP_SCORE + ": step up score must be less than min score " + minScore);
+                }
+                String siteKey = value(CONFIG_KEY_CAPTCHA_STEP_UP_SITE_KEY);
+                String serverKey = value(CONFIG_KEY_CAPTCHA_STEP_UP_SERVER_KEY);
+                CaptchaClientFactory stepUpProvider = captchaClients.get(ReCaptchaV2ClientFactory.PROVIDER_ID);
+                if (stepUpProvider == null) {
+                    errors.add(CONFIG_KEY_CAPTCHA_STEP_UP_SCORE + ": step up requires "
+                            + ReCaptchaV2ClientFactory.PROVIDER_ID + " captcha provider, it is not registered");
+                } else if (siteKey == null || serverKey == null) {
+                    errors.add(CONFIG_KEY_CAPTCHA_STEP_UP_SCORE + ": step up requires "
+                            + ReCaptchaV2ClientFactory.PROVIDER_ID + " site and server keys");
+                } else {
+                    // step up captcha is verified by the same google api as the score based one
+                    String validateUrl = primary != null && ReCaptchaV3ClientFactory.PROVIDER_ID.equals(primary.getCaptchaProviderName())
+                            ? primary.getValidateUrl()
+                            : null;
+                    stepUp = new CaptchaProviderSettings(stepUpProvider, siteKey, serverKey, validateUrl);
+                }
+            }
+
+            Map<String, Double> clientMinScores = new HashMap<>();
+            for (String clientMinScore : values(CONFIG_KEY_CAPTCHA_CLIENT_MIN_SCORES)) {
+                int separator = clientMinScore.lastIndexOf(':');
+                Double score = separator > 0 ? parseScore(clientMinScore.substring(separator + 1)) : null;
+                if (score == null) {
+                    errors.add(CONFIG_KEY_CAPTCHA_CLIENT_MIN_SCORES + ": 'clientId:score' is expected, got '" + clientMinScore + "'");
+                } else {
+                    clientMinScores.put(clientMinScore.substring(0, separator).trim(), score);
+                }
+            }
+
+            String expectedAction = value(CONFIG_KEY_CAPTCHA_EXPECTED_ACTION);
+            scorePolicy = new CaptchaScorePolicy(minScore, stepUpScore,
+                    expectedAction == null ? CaptchaScorePolicy.DEFAULT_EXPECTED_ACTION : expectedAction,
+                    Set.copyOf(values(CONFIG_KEY_CAPTCHA_EXPECTED_HOSTNAMES)), clientMinScores);
+        }
+
+        private double parseScore(String key, double defaultValue) {
+            String score = value(key);
+            if (score == null) {
+                return defaultValue;
+            }
+            Double value = parseScore(score);
+            if (value == null) {
+                errors.add(key + ": score from 0.0 to 1.0 is expected, got '" + score + "'");
+                return defaultValue;
+            }
+            return value;
+        }
+
+        /**
+         * @return score from 0.0 to 1.0, {@code null} if value is not a valid score
+         */
+        private static Double parseScore(String score) {
+            try {
+                double value = Double.parseDouble(score.trim());
+                return value >= 0 && value <= 1 ? value : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private CaptchaProviderSettings parseProvider(String providerKey, String siteKeyKey, String serverKeyKey,
+                                                      String validateUrlKey, boolean required) {
+            String providerName = value(providerKey);
+            if (providerName == null) {
+                if (required) {
+                    errors.add(providerKey + ": captcha provider is not set");
+                }
+                return null;
+            }
+            CaptchaClientFactory captchaProvider = captchaClients.get(providerName);
+            if (captchaProvider == null) {
+                errors.add(providerKey + ": unknown captcha provider '" + providerName
+                        + "', expected one of " + captchaClients.getCaptchaProviderNames());
+                return null;
+            }
+
+            String siteKey = value(siteKeyKey);
+            String serverKey = value(serverKeyKey);
+            if (required && siteKey == null && captchaProvider.isSiteKeyRequired()) {
+                errors.add(siteKeyKey + ": site key of " + providerName + " is not set");
+            }
+            if (required && serverKey == null) {
+                errors.add(serverKeyKey + ": server key of " + providerName + " is not set");
+            }
+            return new CaptchaProviderSettings(captchaProvider, StringUtils.defaultString(siteKey),
+                    serverKey, parseUrl(validateUrlKey));
+        }
+
+        private String parseUrl(String key) {
+            String url = value(key);
+            if (url == null) {
+                return null;
+            }
+            try {
+                URI uri = new URI(url);
+                if (!"https".equalsIgnoreCase(uri.getScheme()) && !"http".equalsIgnoreCase(uri.getScheme())
+                        || uri.getHost() == null) {
+                    errors.add(key + ": absolute http(s) url is expected, got '" + url + "'");
+                    return null;
+                }
+                return url;
+            } catch (URISyntaxException e) {
+                errors.add(key + ": invalid url '" + url + "'");
+                return null;
+            }
+        }
+
+        private boolean parseEnum(String key, List<String> names) {
+            String name = value(key);
+            if (name == null) {
+                return false;
+            }
+            if (!names.contains(name)) {
+                errors.add(key + ": unknown value '" + name + "', expected one of " + names);
+                return false;
+            }
+            return true;
+        }
+
+        private long parseNumber(String key, long defaultValue, long min, long max) {
+            String number = value(key);
+            if (number == null) {
+                return defaultValue;
+            }
+            try {
+                long value = Long.parseLong(number);
+                if (value >= min && value <= max) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            errors.add(key + ": number from " + min + " to " + max + " is expected, got '" + number + "'");
+            return defaultValue;
+        }
+
+        /**
+         * @return non-blank values of the multivalued config value
+         */
+        private List<String> values(String key) {
+            String value = value(key);
+            if (value == null) {
+                return List.of();
+            }
+            List<String> values = new ArrayList<>();
+            for (String item : value.split(MULTIVALUED_DELIMITER)) {
+                if (StringUtils.isNotBlank(item)) {
+                    values.add(item.trim());
+                }
+            }
+            return values;
+        }
+
+        /**
+         * @return trimmed config value, {@code null} if it is blank
+         */
+        private String value(String key) {
+            return StringUtils.trimToNull(config.get(key));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ru.lagoshny.keycloak.providers.login.captcha.form;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * What to do with the login when the captcha provider circuit is open.
+ */
+public enum CaptchaFailurePolicy {
+
+    /**
+     * Reject the login as if captcha is not passed.
+     */
+    FAIL_CLOSED("fail-closed"),
+
+    /**
+     * Skip captcha verification and validate only user's credentials.
+     */
+    FAIL_OPEN("fail-open"),
+
+    /**
+     * Show captcha of the fallback provider instead of the primary one, reject the login if it is not possible.
+     */
+    FALLBACK("fallback");
+
+    private final String name;
+
+    CaptchaFailurePolicy(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return policy by its name, {@link #FAIL_CLOSED} if name is unknown
+     */
+    public static CaptchaFailurePolicy of(String name) {
+        return Arrays.stream(values())
+                .filter(policy -> policy.name.equals(name))
+                .findFirst()
+                .orElse(FAIL_CLOSED);
+    }
+
+    public static List<String> getCaptchaFailurePolicyNames() {
+        return Arrays.stream(values()).map(CaptchaFailurePolicy::getName).collect(Collectors.toList());
+    }
+}
@@ -1,20 +1,47 @@
 package ru.lagoshny.keycloak.providers.login.captcha.form;
 
 import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.authenticators.browser.UsernamePasswordForm;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.util.CookieHelper;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaHttpClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerificationRequest;
+import ru.lagoshny.keycloak.providers.login.captcha.config.AuthenticatorConfigCache;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaProviderSettings;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaSettings;
+import ru.lagoshny.keycloak.providers.login.captcha.metrics.CaptchaMetrics;
+import ru.lagoshny.keycloak.providers.login.captcha.risk.AdaptiveCaptchaPolicy;
+import ru.lagoshny.keycloak.providers.login.captcha.risk.LoginRateLimiter;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.CaptchaSpan;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.CaptchaTracer;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaCircuitBreakers;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaPassCookie;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaProviderBypass;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaRouter;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaTokenRegistry;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaVerdictCache;
 
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.keycloak.utils.StringUtil.isBlank;
 import static ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaLoginFormFactory.*;
-import static ru.lagoshny.keycloak.providers.login.captcha.util.ConfigUtils.getConfigVal;
+import static ru.lagoshny.keycloak.providers.login.captcha.util.ConfigUtils.getConfig;
 
 /**
  * Custom {@link UsernamePasswordForm} provider that adds the captcha validation step.
@@ -24,13 +51,89 @@ import static ru.lagoshny.keycloak.providers.login.captcha.util.ConfigUtils.getC
  */
 public class CaptchaLoginForm extends UsernamePasswordForm {
 
+    private final static Logger logger = LoggerFactory.getLogger(CaptchaLoginForm.class);
+
     public static final String CAPTCHA_FORM_NOT_PASSED_MSG_KEY = "captchaFormNotPassed";
 
     public static final String CAPTCHA_INVALID_TOKEN_MSG_KEY = "captchaInvalidToken";
 
-    private final Map<String, CaptchaProvider> captchaProviders = Arrays.stream(CaptchaProvider.values())
-            .collect(Collectors.toMap(CaptchaProvider::getName, value -> value));
+    public static final String CAPTCHA_STEP_UP_MSG_KEY = "captchaStepUpRequired";
+
+    public static final String CAPTCHA_RATE_LIMITED_MSG_KEY = "captchaRateLimited";
+
+    /**
+     * Authentication session note with the name of the captcha provider shown to the user,
+     * so the captcha token is verified by the same provider that rendered the captcha.
+     */
+    public static final String AUTH_NOTE_CAPTCHA_PROVIDER = "captchaProvider";
+
+    /**
+     * Authentication session note that marks the captcha is required for this authentication session
+     * in the {@link CaptchaMode#ADAPTIVE} captcha mode.
+     */
+    public static final String AUTH_NOTE_CAPTCHA_REQUIRED = "captchaRequired";
+
+    /**
+     * Authentication session note that marks the user has to pass the interactive step up captcha
+     * because the score of the score based captcha token is ambiguous.
+     */
+    public static final String AUTH_NOTE_CAPTCHA_STEP_UP = "captchaStepUp";
+
+    /**
+     * Keycloak session attribute with the captcha verification of the login request, see {@link PendingVerification}.
+     */
+    private static final String SESSION_ATTRIBUTE_CAPTCHA_VERIFICATION = CaptchaLoginForm.class.getName() + ".verification";
+
+    private final CaptchaHttpClient captchaHttpClient;
+
+    private final CaptchaVerdictCache captchaVerdictCache;
+
+    private final CaptchaCircuitBreakers captchaCircuitBreakers;
+
+    private final CaptchaTokenRegistry captchaTokenRegistry;
+
+    private final AdaptiveCaptchaPolicy adaptiveCaptchaPolicy;
+
+    private final LoginRateLimiter loginRateLimiter;
 
+    private final CaptchaRouter captchaRouter;
+
+    private final CaptchaProviderBypass captchaProviderBypass;
+
+    private final CaptchaPassCookie captchaPassCookie = new CaptchaPassCookie();
+
+    /**
+     * Typed captcha settings per authenticator config, so config values are not parsed on every request.
+     */
+    private final AuthenticatorConfigCache<CaptchaSettings> captchaSettingsCache;
+
+    private final CaptchaMetrics captchaMetrics;
+
+    private final CaptchaTracer captchaTracer;
+
+    public CaptchaLoginForm(AuthenticatorConfigCache<CaptchaSettings> captchaSettingsCache,
+                            CaptchaHttpClient captchaHttpClient,
+                            CaptchaVerdictCache captchaVerdictCache,
+                            CaptchaCircuitBreakers captchaCircuitBreakers,
+                            CaptchaTokenRegistry captchaTokenRegistry,
+                            AdaptiveCaptchaPolicy adaptiveCaptchaPolicy,
+                            LoginRateLimiter loginRateLimiter,
+                            CaptchaRouter captchaRouter,
+                            CaptchaProviderBypass captchaProviderBypass,
+                            CaptchaMetrics captchaMetrics,
+                            CaptchaTracer captchaTracer) {
+        this.captchaHttpClient = captchaHttpClient;
+        this.captchaVerdictCache = captchaVerdictCache;
+        this.captchaCircuitBreakers = captchaCircuitBreakers;
+        this.captchaTokenRegistry = captchaTokenRegistry;
+        this.adaptiveCaptchaPolicy = adaptiveCaptchaPolicy;
+        this.loginRateLimiter = loginRateLimiter;
+        this.captchaRouter = captchaRouter;
+        this.captchaProviderBypass = captchaProviderBypass;
+        this.captchaSettingsCache = captchaSettingsCache;
+        this.captchaMetrics = captchaMetrics;
+        this.captchaTracer = captchaTracer;
+    }
 
     @Override
     protected Response challenge(AuthenticationFlowContext context, MultivaluedMap<String, String> formData) {
@@ -47,45 +150,387 @@ public class CaptchaLoginForm extends UsernamePasswordForm {
     }
 
     private void fillCustomFormAttributes(AuthenticationFlowContext context) {
-        if ((context != null) && (context.form() != null) &&
-                BooleanUtils.toBoolean(getConfigVal(context, CONFIG_KEY_CAPTCHA_ENABLED))) {
-            CaptchaProvider captchaProvider = captchaProviders.get(getConfigVal(context, CONFIG_KEY_CAPTCHA_PROVIDER));
-            context.form().setAttribute(CONFIG_KEY_CAPTCHA_ENABLED, getConfigVal(context, CONFIG_KEY_CAPTCHA_ENABLED));
-            context.form().setAttribute(CONFIG_KEY_CAPTCHA_SCRIPT_URL, captchaProvider.getCaptchaScriptUrl());
-            context.form().setAttribute(CAPTCHA_HTML_BLOCK, captchaProvider.getCaptchaHtmlBlock(getConfigVal(context, CONFIG_KEY_CLIENT_KEY)));
-            context.form().setAttribute(CONFIG_KEY_CAPTCHA_PROVIDER, captchaProvider.getName());
+        if ((context == null) || (context.form() == null)) {
+            return;
+        }
+        CaptchaSettings settings = getSettings(context);
+        try (CaptchaSpan span = startSpan(context, CaptchaTracer.SPAN_RENDER)) {
+            String attemptedUsername = context.getAuthenticationSession().getAuthNote(ATTEMPTED_USERNAME);
+            boolean required = settings.isCaptchaEnabled()
+                    && isCaptchaRequired(context, settings, attemptedUsername)
+                    && !isCaptchaPassed(context, settings)
+                    && !hasPassCookie(context, settings, attemptedUsername);
+            CaptchaProviderSettings providerSettings = required ? chooseShownCaptcha(context, settings) : null;
+            // captcha of the bypassed provider is not shown, it is not verified either
+            boolean rendered = providerSettings != null
+                    && !captchaProviderBypass.isBypassed(providerSettings.getCaptchaProviderName());
+            span.setAttribute(CaptchaTracer.ATTRIBUTE_RENDERED, rendered);
+            if (rendered) {
+                span.setAttribute(CaptchaTracer.ATTRIBUTE_PROVIDER, providerSettings.getCaptchaProviderName());
+                context.form().setAttribute(CONFIG_KEY_CAPTCHA_ENABLED, Boolean.TRUE.toString());
+                context.form().setAttribute(CONFIG_KEY_CAPTCHA_SCRIPT_URL, providerSettings.getCaptchaScriptUrl());
+                context.form().setAttribute(CAPTCHA_HTML_BLOCK,
+                        providerSettings.getCaptchaClientFactory().getCaptchaHtmlBlock(providerSettings, settings));
+                context.form().setAttribute(CONFIG_KEY_CAPTCHA_PROVIDER, providerSettings.getCaptchaProviderName());
+            }
+        }
+    }
+
+    /**
+     * Starts the span that continues the trace of the login request when it is sent by the reverse proxy.
+     */
+    private CaptchaSpan startSpan(AuthenticationFlowContext context, String name) {
+        if (!captchaTracer.isEnabled()) {
+            return CaptchaSpan.NOOP;
+        }
+        return captchaTracer.startSpan(name,
+                context.getHttpRequest().getHttpHeaders().getHeaderString(CaptchaTracer.TRACEPARENT_HEADER));
+    }
+
+    /**
+     * @return valid captcha settings of the authenticator
+     * @throws IllegalArgumentException if authenticator config is not set or invalid
+     */
+    private CaptchaSettings getSettings(AuthenticationFlowContext context) {
+        CaptchaSettings settings = captchaSettingsCache.get(getConfig(context));
+        if (!settings.isValid()) {
+            throw new IllegalArgumentException("Config error: " + String.join("; ", settings.getErrors()));
+        }
+        return settings;
+    }
+
+    /**
+     * Chooses captcha to show: the step up captcha once the user is stepped up, otherwise the captcha
+     * of the provider chosen by {@link CaptchaRouter}.
+     */
+    private CaptchaProviderSettings chooseShownCaptcha(AuthenticationFlowContext context, CaptchaSettings settings) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        if (settings.getStepUp() != null && BooleanUtils.toBoolean(authSession.getAuthNote(AUTH_NOTE_CAPTCHA_STEP_UP))) {
+            return settings.getStepUp();
+        }
+        CaptchaProviderSettings providerSettings = captchaRouter.route(settings);
+        authSession.setAuthNote(AUTH_NOTE_CAPTCHA_PROVIDER, providerSettings.getCaptchaProviderName());
+        return providerSettings;
+    }
+
+    /**
+     * @return settings of the captcha that was shown to the user
+     */
+    private CaptchaProviderSettings getShownCaptcha(AuthenticationFlowContext context, CaptchaSettings settings) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        if (settings.getStepUp() != null && BooleanUtils.toBoolean(authSession.getAuthNote(AUTH_NOTE_CAPTCHA_STEP_UP))) {
+            return settings.getStepUp();
+        }
+        String shownProvider = authSession.getAuthNote(AUTH_NOTE_CAPTCHA_PROVIDER);
+        CaptchaProviderSettings providerSettings = shownProvider == null ? null : settings.getRoutedProvider(shownProvider);
+        return providerSettings == null ? settings.getPrimary() : providerSettings;
+    }
+
+    /**
+     * In the {@link CaptchaMode#ADAPTIVE} captcha mode captcha is required only for suspicious logins.
+     * Once required, captcha stays required until the end of the authentication session.
+     *
+     * @param username username the user tries to login with, {@code null} if it is not known yet
+     */
+    private boolean isCaptchaRequired(AuthenticationFlowContext context, CaptchaSettings settings, String username) {
+        if (settings.getCaptchaMode() == CaptchaMode.ALWAYS
+                || BooleanUtils.toBoolean(context.getAuthenticationSession().getAuthNote(AUTH_NOTE_CAPTCHA_REQUIRED))) {
+            return true;
         }
+        if (adaptiveCaptchaPolicy.isSuspicious(context, settings, username)) {
+            context.getAuthenticationSession().setAuthNote(AUTH_NOTE_CAPTCHA_REQUIRED, Boolean.TRUE.toString());
+            return true;
+        }
+        return false;
     }
 
+    /**
+     * Starts captcha verification first, validates user's credentials while captcha api is processing the request
+     * and then joins both results, so the captcha api round-trip does not add up to the password hashing time.
+     */
     @Override
     protected boolean validateForm(AuthenticationFlowContext context, MultivaluedMap<String, String> formData) {
-        return validateCaptcha(context, formData)
-                && super.validateForm(context, formData);
+        CaptchaSettings settings = getSettings(context);
+        if (!settings.isCaptchaEnabled()) {
+            return super.validateForm(context, formData);
+        }
+
+        String username = formData.getFirst(AuthenticationManager.FORM_USERNAME);
+        String exceededLimit = loginRateLimiter.tryAcquire(context.getRealm().getId(),
+                context.getConnection().getRemoteAddr(), username);
+        if (exceededLimit != null) {
+            // rejected before any captcha api call and password hashing
+            logger.debug("Login is rejected by the {} rate limit", exceededLimit);
+            captchaMetrics.recordRateLimited(exceededLimit);
+            Response failure = challenge(context, CAPTCHA_RATE_LIMITED_MSG_KEY, null);
+            context.failureChallenge(AuthenticationFlowError.GENERIC_AUTHENTICATION_ERROR, failure);
+            return false;
+        }
+
+        boolean valid;
+        if (settings.getCaptchaMode() == CaptchaMode.ALWAYS) {
+            valid = validateCaptchaAndCredentials(context, settings, formData);
+        } else {
+            valid = isCaptchaRequired(context, settings, username)
+                    ? validateCaptchaAndCredentials(context, settings, formData)
+                    : super.validateForm(context, formData);
+            if (valid) {
+                adaptiveCaptchaPolicy.onLoginSucceeded(context, username);
+            } else {
+                adaptiveCaptchaPolicy.onLoginFailed(context, username);
+            }
+        }
+        if (valid) {
+            removePassCookie(context, settings);
+        }
+        return valid;
     }
 
-    private boolean validateCaptcha(AuthenticationFlowContext context, MultivaluedMap<String, String> formData) {
-        if (!BooleanUtils.toBoolean(getConfigVal(context, CONFIG_KEY_CAPTCHA_ENABLED))) {
-            return true;
+    private boolean validateCaptchaAndCredentials(AuthenticationFlowContext context,
+                                                  CaptchaSettings settings,
+                                                  MultivaluedMap<String, String> formData) {
+        try (CaptchaSpan span = startSpan(context, CaptchaTracer.SPAN_VERIFY)) {
+            return validateCaptchaAndCredentials(context, settings, formData, span);
+        }
+    }
+
+    private boolean validateCaptchaAndCredentials(AuthenticationFlowContext context,
+                                                  CaptchaSettings settings,
+                                                  MultivaluedMap<String, String> formData,
+                                                  CaptchaSpan span) {
+        String username = StringUtils.trimToNull(formData.getFirst(AuthenticationManager.FORM_USERNAME));
+        if (username != null) {
+            // the form rendered on failure shows captcha unless this username has the pass cookie,
+            // keycloak sets the same note when it looks the user up
+            context.getAuthenticationSession().setAuthNote(ATTEMPTED_USERNAME, username);
+        }
+        if (hasPassCookie(context, settings, username)) {
+            // the browser has recently passed captcha, so captcha is not shown and only credentials are validated
+            captchaMetrics.recordPassCookie(settings.getPrimary().getCaptchaProviderName());
+            span.setAttribute(CaptchaTracer.ATTRIBUTE_OUTCOME, CaptchaMetrics.OUTCOME_PASS_COOKIE);
+            return validateCredentials(context, formData);
         }
 
-        CaptchaProvider captchaProvider = captchaProviders.get(getConfigVal(context, CONFIG_KEY_CAPTCHA_PROVIDER));
-        String captchaToken = formData.getFirst(captchaProvider.getCaptchaTokenField());
+        CaptchaProviderSettings providerSettings = getShownCaptcha(context, settings);
+        String providerName = providerSettings.getCaptchaProviderName();
+        span.setAttribute(CaptchaTracer.ATTRIBUTE_PROVIDER, providerName);
+        if (captchaProviderBypass.isBypassed(providerName)) {
+            // the admin has bypassed the provider during an incident, so only credentials are validated
+            captchaMetrics.recordBypassed(providerName);
+            span.setAttribute(CaptchaTracer.ATTRIBUTE_OUTCOME, CaptchaMetrics.OUTCOME_BYPASSED);
+            return validateCredentials(context, formData);
+        }
+        String captchaToken = formData.getFirst(providerSettings.getCaptchaTokenField());
         if (isBlank(captchaToken)) {
+            captchaMetrics.recordMissingToken(providerName);
+            span.setAttribute(CaptchaTracer.ATTRIBUTE_OUTCOME, CaptchaMetrics.OUTCOME_MISSING_TOKEN);
             Response failure = challenge(context, CAPTCHA_FORM_NOT_PASSED_MSG_KEY, null);
             context.failureChallenge(AuthenticationFlowError.GENERIC_AUTHENTICATION_ERROR, failure);
             return false;
         }
 
+        CaptchaClient captchaClient = providerSettings.getCaptchaClient();
+        if (!captchaClient.isWellFormedToken(captchaToken)) {
+            // rejected before any captcha api call and password hashing
+            logger.debug("Captcha token of {} is malformed", providerName);
+            captchaMetrics.recordMalformedToken(providerName);
+            span.setAttribute(CaptchaTracer.ATTRIBUTE_OUTCOME, CaptchaMetrics.OUTCOME_MALFORMED_TOKEN);
+            Response failure = challenge(context, CAPTCHA_INVALID_TOKEN_MSG_KEY, null);
+            context.failureChallenge(AuthenticationFlowError.GENERIC_AUTHENTICATION_ERROR, failure);
+            return false;
+        }
+
+        CaptchaVerificationRequest verificationRequest = CaptchaVerificationRequest.of(context, captchaToken, providerSettings,
+                settings.getScorePolicy());
+        CompletableFuture<CaptchaVerdict> captchaVerification = captchaVerdictCache.verify(providerSettings.getServerKey(), captchaToken,
+                () -> captchaCircuitBreakers.execute(providerSettings,
+                        () -> captchaMetrics.timeVerification(providerName,
+                                () -> captchaClient.validateCaptchaTokenAsync(verificationRequest, captchaHttpClient))));
+        // the error page of invalid credentials is rendered while credentials are validated,
+        // it joins the verification to not show captcha again to the user who has just passed it
+        PendingVerification pendingVerification = new PendingVerification(providerSettings, captchaToken, username,
+                captchaVerification);
+        context.getSession().setAttribute(SESSION_ATTRIBUTE_CAPTCHA_VERIFICATION, pendingVerification);
 
-        CaptchaClient captchaClient = captchaProvider.getCaptchaClient();
-        if (!captchaClient.validateCaptchaToken(context, captchaToken)) {
+        boolean credentialsValid = validateCredentials(context, formData);
+
+        // the pass cookie of the successful login would be removed at once, so it is not issued
+        CaptchaVerdict captchaVerdict = joinCaptchaVerification(context, settings, pendingVerification, !credentialsValid);
+        captchaMetrics.recordOutcome(providerName, captchaVerdict.getOutcome());
+        span.setAttribute(CaptchaTracer.ATTRIBUTE_OUTCOME, CaptchaMetrics.outcomeName(captchaVerdict.getOutcome()));
+        if (captchaVerdict.getOutcome() == CaptchaVerdict.Outcome.CIRCUIT_OPEN
+                && settings.getFailurePolicy() == CaptchaFailurePolicy.FAIL_OPEN) {
+            logger.warn("Captcha provider {} circuit is open, captcha verification is skipped", providerName);
+            return credentialsValid;
+        }
+        if (captchaVerdict.getOutcome() == CaptchaVerdict.Outcome.CIRCUIT_OPEN
+                && settings.getFailurePolicy() == CaptchaFailurePolicy.FALLBACK) {
+            // the circuit was opened after the captcha was shown, the user solves the captcha of the fallback provider
+            // that the router chooses now instead of failing the login
+            context.clearUser();
+            context.challenge(challenge(context, CAPTCHA_FORM_NOT_PASSED_MSG_KEY, null));
+            return false;
+        }
+        if (captchaVerdict.getOutcome() == CaptchaVerdict.Outcome.STEP_UP_REQUIRED && settings.getStepUp() != null) {
+            // not a failure, the user has to login again with the interactive captcha
+            context.clearUser();
+            context.getAuthenticationSession().setAuthNote(AUTH_NOTE_CAPTCHA_STEP_UP, Boolean.TRUE.toString());
+            context.challenge(challenge(context, CAPTCHA_STEP_UP_MSG_KEY, null));
+            return false;
+        }
+        if (!captchaVerdict.isSuccess()) {
+            // captcha error replaces any credentials error, so credentials validity is not disclosed without captcha
+            context.clearUser();
             Response failure = challenge(context, CAPTCHA_INVALID_TOKEN_MSG_KEY, null);
             context.failureChallenge(AuthenticationFlowError.GENERIC_AUTHENTICATION_ERROR, failure);
             return false;
         }
 
-        return true;
+        return credentialsValid;
     }
 
-}
+    /**
+     * Joins the captcha verification of the login request once. Token of the passed captcha is marked used and
+     * the pass cookie is issued before the failure page is rendered.
+     *
+     * @param issuePassCookie {@code true} to issue the pass cookie if captcha is passed
+     * @return verdict of the captcha verification
+     */
+    private CaptchaVerdict joinCaptchaVerification(AuthenticationFlowContext context, CaptchaSettings settings,
+                                                   PendingVerification verification, boolean issuePassCookie) {
+        if (verification.verdict == null) {
+            CaptchaVerdict captchaVerdict = awaitCaptchaVerdict(verification.captchaVerification, settings);
+            CaptchaProviderSettings providerSettings = verification.providerSettings;
+            if (captchaVerdict.isSuccess()
+                    && !captchaTokenRegistry.markUsed(context.getSession(), providerSettings.getServerKey(),
+                    verification.captchaToken, getLoginId(context.getAuthenticationSession()))) {
+                logger.debug("Captcha token of {} is already used by another login",
+                        providerSettings.getCaptchaProviderName());
+                captchaVerdict = CaptchaVerdict.REPLAYED;
+            }
+            if (captchaVerdict.isSuccess() && issuePassCookie) {
+                addPassCookie(context, settings, verification.username);
+            }
+            verification.verdict = captchaVerdict;
+        }
+        return verification.verdict;
+    }
+
+    /**
+     * @return {@code true} if the user has passed captcha in this request, e.g. the password is mistyped
+     */
+    private boolean isCaptchaPassed(AuthenticationFlowContext context, CaptchaSettings settings) {
+        PendingVerification verification = context.getSession()
+                .getAttribute(SESSION_ATTRIBUTE_CAPTCHA_VERIFICATION, PendingVerification.class);
+        return verification != null && joinCaptchaVerification(context, settings, verification, true).isSuccess();
+    }
+
+    private boolean validateCredentials(AuthenticationFlowContext context, MultivaluedMap<String, String> formData) {
+        try (CaptchaSpan span = startSpan(context, CaptchaTracer.SPAN_CREDENTIALS)) {
+            boolean valid = super.validateForm(context, formData);
+            span.setAttribute(CaptchaTracer.ATTRIBUTE_CREDENTIALS_VALID, valid);
+            return valid;
+        }
+    }
+
+    /**
+     * @return id of the authentication session tab, a double-submit or a retry of the login has the same one
+     */
+    private static String getLoginId(AuthenticationSessionModel authSession) {
+        return authSession.getParentSession().getId() + '.' + authSession.getTabId();
+    }
+
+    /**
+     * @param username attempted username of the login, the cookie is valid only for the username it is issued to
+     * @return {@code true} if the pass cookie is enabled and the browser has the valid one
+     */
+    private boolean hasPassCookie(AuthenticationFlowContext context, CaptchaSettings settings, String username) {
+        if (settings.getPassCookieTtl() == 0) {
+            return false;
+        }
+        HttpHeaders headers = context.getHttpRequest().getHttpHeaders();
+        Cookie cookie = headers.getCookies().get(CaptchaPassCookie.COOKIE_NAME);
+        return cookie != null && captchaPassCookie.isValid(cookie.getValue(), settings.getPrimary().getServerKey(),
+                context.getRealm().getId(), username, context.getConnection().getRemoteAddr(),
+                headers.getHeaderString(HttpHeaders.USER_AGENT));
+    }
+
+    /**
+     * Lets the browser that has passed captcha skip it for the username until the pass cookie expires,
+     * the cookie is not prolonged by logins that skip captcha.
+     */
+    private void addPassCookie(AuthenticationFlowContext context, CaptchaSettings settings, String username) {
+        if (settings.getPassCookieTtl() == 0) {
+            return;
+        }
+        RealmModel realm = context.getRealm();
+        String cookie = captchaPassCookie.issue(settings.getPrimary().getServerKey(), realm.getId(), username,
+                context.getConnection().getRemoteAddr(),
+                context.getHttpRequest().getHttpHeaders().getHeaderString(HttpHeaders.USER_AGENT),
+                settings.getPassCookieTtl());
+        // cookie is only sent with the login form of the same site, so it has no SameSite attribute and browsers
+        // treat it as Lax, keycloak cookie helper supports only SameSite=None of the cross-site cookies
+        CookieHelper.addCookie(CaptchaPassCookie.COOKIE_NAME, cookie,
+                AuthenticationManager.getRealmCookiePath(realm, context.getUriInfo()), null, null,
+                settings.getPassCookieTtl(), realm.getSslRequired().isRequired(context.getConnection()), true,
+                null, context.getSession());
+    }
+
+    /**
+     * Removes the pass cookie after the successful login, so the next login of the browser solves captcha again.
+     */
+    private void removePassCookie(AuthenticationFlowContext context, CaptchaSettings settings) {
+        if (settings.getPassCookieTtl() == 0
+                || !context.getHttpRequest().getHttpHeaders().getCookies().containsKey(CaptchaPassCookie.COOKIE_NAME)) {
+            return;
+        }
+        RealmModel realm = context.getRealm();
+        AuthenticationManager.expireCookie(realm, CaptchaPassCookie.COOKIE_NAME,
+                AuthenticationManager.getRealmCookiePath(realm, context.getUriInfo()), true, context.getConnection(),
+                null, context.getSession());
+    }
+
+    private CaptchaVerdict awaitCaptchaVerdict(CompletableFuture<CaptchaVerdict> captchaVerification, CaptchaSettings settings) {
+        long verificationTimeout = settings.getVerificationTimeout() > 0
+                ? settings.getVerificationTimeout()
+                : captchaHttpClient.getVerificationTimeout();
+        try {
+            return captchaVerification.get(verificationTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CaptchaVerdict.error(e);
+        } catch (ExecutionException | TimeoutException e) {
+            // verification future can be shared by concurrent requests with the same token, so it is not cancelled
+            logger.warn("Captcha verification is not completed: {}", e.toString());
+            return CaptchaVerdict.error(e);
+        }
+    }
+
+    /**
+     * Captcha verification that runs while credentials are validated, its verdict is set once it is joined.
+     */
+    private static class PendingVerification {
+
+        private final CaptchaProviderSettings providerSettings;
+
+        private final String captchaToken;
+
+        /**
+         * Username of the login, {@code null} if it is not submitted.
+         */
+        private final String username;
 
+        private final CompletableFuture<CaptchaVerdict> captchaVerification;
+
+        private CaptchaVerdict verdict;
+
+        PendingVerification(CaptchaProviderSettings providerSettings, String captchaToken, String username,
+                            CompletableFuture<CaptchaVerdict> captchaVerification) {
+            this.providerSettings = providerSettings;
+            this.captchaToken = captchaToken;
+            this.username = username;
+            this.captchaVerification = captchaVerification;
+        }
+    }
+
+}
@@ -7,10 +7,40 @@ import org.keycloak.models.AuthenticationExecutionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClients;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaHttpClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.pow.ProofOfWork;
+import ru.lagoshny.keycloak.providers.login.captcha.config.AuthenticatorConfigCache;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaScorePolicy;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaSettings;
+import ru.lagoshny.keycloak.providers.login.captcha.metrics.CaptchaMetrics;
+import ru.lagoshny.keycloak.providers.login.captcha.risk.AdaptiveCaptchaPolicy;
+import ru.lagoshny.keycloak.providers.login.captcha.risk.ClusterFailedLoginCounter;
+import ru.lagoshny.keycloak.providers.login.captcha.risk.FailedLoginCounter;
+import ru.lagoshny.keycloak.providers.login.captcha.risk.LocalFailedLoginCounter;
+import ru.lagoshny.keycloak.providers.login.captcha.risk.LoginRateLimiter;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.CaptchaTracer;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaCircuitBreakerConfig;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaCircuitBreakers;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaProviderBypass;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaTokenRegistry;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaRouter;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaVerdictCache;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.ClusterCaptchaTokenRegistry;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.LocalCaptchaTokenRegistry;
 
+import java.io.IOException;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * Factory to create custom {@link CaptchaLoginForm} provider.
@@ -19,21 +49,75 @@ import java.util.List;
  */
 public class CaptchaLoginFormFactory implements AuthenticatorFactory {
 
+    private final static Logger logger = LoggerFactory.getLogger(CaptchaLoginFormFactory.class);
+
     public static final String CONFIG_KEY_CAPTCHA_ENABLED = "captchaEnabled";
 
     public static final String CONFIG_KEY_CAPTCHA_PROVIDER = "captchaProvider";
 
+    public static final String CONFIG_KEY_CAPTCHA_MODE = "captchaMode";
+
+    public static final String CONFIG_KEY_CAPTCHA_FAILURES_THRESHOLD = "captchaFailuresThreshold";
+
+    public static final String CONFIG_KEY_CAPTCHA_CHALLENGE_IPS = "captchaChallengeIps";
+
     public static final String CONFIG_KEY_CAPTCHA_SCRIPT_URL = "captchaScriptUrl";
 
     public static final String CONFIG_KEY_CAPTCHA_SERVER_KEY = "captchaServerKey";
 
     public static final String CONFIG_KEY_CLIENT_KEY = "captchaSiteKey";
 
+    public static final String CONFIG_KEY_CAPTCHA_FAILURE_POLICY = "captchaFailurePolicy";
+
+    public static final String CONFIG_KEY_CAPTCHA_FALLBACK_PROVIDER = "captchaFallbackProvider";
+
+    public static final String CONFIG_KEY_CAPTCHA_FALLBACK_SERVER_KEY = "captchaFallbackServerKey";
+
+    public static final String CONFIG_KEY_FALLBACK_CLIENT_KEY = "captchaFallbackSiteKey";
+
+    public static final String CONFIG_KEY_CAPTCHA_VALIDATE_URL = "captchaValidateUrl";
+
+    public static final String CONFIG_KEY_CAPTCHA_ROUTING = "captchaRouting";
+
+    public static final String CONFIG_KEY_CAPTCHA_WEIGHT = "captchaWeight";
+
+    public static final String CONFIG_KEY_CAPTCHA_FALLBACK_WEIGHT = "captchaFallbackWeight";
+
+    public static final String CONFIG_KEY_CAPTCHA_FALLBACK_VALIDATE_URL = "captchaFallbackValidateUrl";
+
+    public static final String CONFIG_KEY_CAPTCHA_VERIFICATION_TIMEOUT = "captchaVerificationTimeout";
+
+    public static final String CONFIG_KEY_CAPTCHA_MIN_SCORE = "captchaMinScore";
+
+    public static final String CONFIG_KEY_CAPTCHA_CLIENT_MIN_SCORES = "captchaClientMinScores";
+
+    public static final String CONFIG_KEY_CAPTCHA_EXPECTED_ACTION = "captchaExpectedAction";
+
+    public static final String CONFIG_KEY_CAPTCHA_EXPECTED_HOSTNAMES = "captchaExpectedHostnames";
+
+    public static final String CONFIG_KEY_CAPTCHA_STEP_UP_SCORE = "captchaStepUpScore";
+
+    public static final String CONFIG_KEY_CAPTCHA_STEP_UP_SITE_KEY = "captchaStepUpSiteKey";
+
+    public static final String CONFIG_KEY_CAPTCHA_STEP_UP_SERVER_KEY = "captchaStepUpServerKey";
+
+    public static final String CONFIG_KEY_CAPTCHA_PROOF_OF_WORK_DIFFICULTY = "captchaProofOfWorkDifficulty";
+
+    public static final String CONFIG_KEY_CAPTCHA_PASS_COOKIE_TTL = "captchaPassCookieTtl";
+
     public static final String CAPTCHA_HTML_BLOCK = "captchaHtmlBlock";
 
     public static final String PROVIDER_ID = "captcha-login-form";
 
-    public static final CaptchaLoginForm SINGLETON = new CaptchaLoginForm();
+    /**
+     * Value of {@link FailedLoginCounter#SPI_FAILED_LOGIN_STORE} SPI option to share failed logins across the cluster.
+     */
+    public static final String CLUSTER_FAILED_LOGIN_STORE = "cluster";
+
+    /**
+     * Value of {@link CaptchaTokenRegistry#SPI_TOKEN_REGISTRY_STORE} SPI option to share used captcha tokens across the cluster.
+     */
+    public static final String CLUSTER_TOKEN_REGISTRY_STORE = "cluster";
 
     public static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {
             AuthenticationExecutionModel.Requirement.REQUIRED
@@ -41,6 +125,55 @@ public class CaptchaLoginFormFactory implements AuthenticatorFactory {
 
     protected final List<ProviderConfigProperty> configMetadata;
 
+    /**
+     * Typed captcha settings of all captcha authenticator configs, built and validated once per config version.
+     */
+    private final AuthenticatorConfigCache<CaptchaSettings> captchaSettingsCache =
+            new AuthenticatorConfigCache<>(this::buildCaptchaSettings);
+
+    /**
+     * Captcha providers registered in the captcha client SPI, discovered on {@link #postInit(KeycloakSessionFactory)}.
+     */
+    private CaptchaClients captchaClients;
+
+    /**
+     * Dedicated http client to perform captcha validation requests, created on {@link #init(Config.Scope)}.
+     */
+    private CaptchaHttpClient captchaHttpClient;
+
+    /**
+     * Verdict cache shared by all captcha clients, created on {@link #init(Config.Scope)}.
+     */
+    private CaptchaVerdictCache captchaVerdictCache;
+
+    /**
+     * Circuit breakers of captcha providers, created on {@link #init(Config.Scope)}.
+     */
+    private CaptchaCircuitBreakers captchaCircuitBreakers;
+
+    /**
+     * Failed logins counter for adaptive captcha mode, created on {@link #init(Config.Scope)}.
+     */
+    private FailedLoginCounter failedLoginCounter;
+
+    private CaptchaTokenRegistry captchaTokenRegistry;
+
+    private LoginRateLimiter loginRateLimiter;
+
+    private final CaptchaProviderBypass captchaProviderBypass = new CaptchaProviderBypass();
+
+    /**
+     * Captcha verification metrics, created on {@link #init(Config.Scope)}.
+     */
+    private CaptchaMetrics captchaMetrics;
+
+    /**
+     * Tracer of captcha logins, its exporter is looked up on {@link #postInit(KeycloakSessionFactory)}.
+     */
+    private CaptchaTracer captchaTracer;
+
+    private CaptchaLoginForm captchaLoginForm;
+
     public CaptchaLoginFormFactory() {
         this.configMetadata = ProviderConfigurationBuilder.create()
                 .property()
@@ -56,14 +189,38 @@ public class CaptchaLoginFormFactory implements AuthenticatorFactory {
                 .label("Captcha provider")
                 .helpText("Choose one of captcha providers")
                 .type(ProviderConfigProperty.LIST_TYPE)
-                .options(CaptchaProvider.getCaptchaProviderNames())
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_MODE)
+                .label("Captcha mode")
+                .helpText("Show captcha on every login (always) or only on suspicious logins (adaptive)")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(CaptchaMode.getCaptchaModeNames())
+                .defaultValue(CaptchaMode.ALWAYS.getName())
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_FAILURES_THRESHOLD)
+                .label("Failed logins threshold")
+                .helpText("In adaptive mode captcha is shown after this number of failed logins " +
+                        "from the same IP address or for the same username")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("3")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_CHALLENGE_IPS)
+                .label("Always challenge IP ranges")
+                .helpText("In adaptive mode captcha is always shown for these IP addresses or CIDR ranges")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
                 .add()
 
                 .property()
                 .name(CONFIG_KEY_CLIENT_KEY)
                 .label("Site key")
                 .type(ProviderConfigProperty.PASSWORD)
-                .helpText("Site key received from captcha provider. For YandexSmartCaptcha it is client secret.")
+                .helpText("Site key received from captcha provider. For YandexSmartCaptcha it is client secret. ProofOfWork does not use it.")
                 .secret(true)
                 .add()
 
@@ -71,9 +228,166 @@ public class CaptchaLoginFormFactory implements AuthenticatorFactory {
                 .name(CONFIG_KEY_CAPTCHA_SERVER_KEY)
                 .label("Server key")
                 .type(ProviderConfigProperty.PASSWORD)
-                .helpText("Server key received from captcha provider")
+                .helpText("Server key received from captcha provider. For ProofOfWork it is any random secret that signs challenges.")
                 .secret(true)
                 .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_MIN_SCORE)
+                .label("Min score")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(CaptchaScorePolicy.DEFAULT_MIN_SCORE))
+                .helpText("ReCaptchaV3 only. Min score from 0.0 to 1.0 of the captcha token to pass the login")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_CLIENT_MIN_SCORES)
+                .label("Client min scores")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .helpText("ReCaptchaV3 only. Min scores of specific clients in 'clientId:score' format, e.g. 'admin-app:0.7'")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_EXPECTED_ACTION)
+                .label("Expected action")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(CaptchaScorePolicy.DEFAULT_EXPECTED_ACTION)
+                .helpText("ReCaptchaV3 only. Action of the captcha token that the login form passes to the captcha")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_EXPECTED_HOSTNAMES)
+                .label("Expected hostnames")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .helpText("ReCaptchaV3 only. Hostnames of the login page where captcha token can be issued. " +
+                        "Leave it empty to not check hostname")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_STEP_UP_SCORE)
+                .label("Step up score")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ReCaptchaV3 only. Captcha token with score from this value up to the min score does not fail " +
+                        "the login, but the user has to pass ReCaptchaV2. Leave it empty to reject such tokens")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_STEP_UP_SITE_KEY)
+                .label("Step up ReCaptchaV2 site key")
+                .type(ProviderConfigProperty.PASSWORD)
+                .helpText("Site key of ReCaptchaV2 to step up to")
+                .secret(true)
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_STEP_UP_SERVER_KEY)
+                .label("Step up ReCaptchaV2 server key")
+                .type(ProviderConfigProperty.PASSWORD)
+                .helpText("Server key of ReCaptchaV2 to step up to")
+                .secret(true)
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_PROOF_OF_WORK_DIFFICULTY)
+                .label("Proof-of-work difficulty")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(CaptchaSettings.DEFAULT_PROOF_OF_WORK_DIFFICULTY))
+                .helpText("ProofOfWork only. Leading zero bits from " + ProofOfWork.MIN_DIFFICULTY + " to "
+                        + ProofOfWork.MAX_DIFFICULTY + " of the solution hash, each extra bit doubles the browser work")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_VALIDATE_URL)
+                .label("Validation url")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Overrides captcha provider url to verify captcha token, e.g. to use a proxy or a stub server. " +
+                        "Leave it empty to use the default provider url")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_VERIFICATION_TIMEOUT)
+                .label("Verification timeout")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Max time in milliseconds to wait for captcha verification. " +
+                        "Leave it empty to use the server-wide verification timeout")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_PASS_COOKIE_TTL)
+                .label("Captcha pass cookie ttl")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .helpText("Time in seconds up to " + CaptchaSettings.MAX_PASS_COOKIE_TTL + " the browser skips captcha " +
+                        "after passing it, e.g. when the user mistyped the password. Pass is bound to the realm, the username, " +
+                        "the IP network and the browser user agent. 0 disables it")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_FAILURE_POLICY)
+                .label("Captcha failure policy")
+                .helpText("What to do when captcha provider is unavailable: reject the login (fail-closed), " +
+                        "skip captcha verification (fail-open) or show captcha of the fallback provider (fallback)")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(CaptchaFailurePolicy.getCaptchaFailurePolicyNames())
+                .defaultValue(CaptchaFailurePolicy.FAIL_CLOSED.getName())
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_ROUTING)
+                .label("Captcha routing")
+                .helpText("How to choose between the primary and the fallback captcha providers: always the primary one (primary), " +
+                        "the first available one in order (failover) or by weights adjusted by live error rate and latency (weighted)")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(CaptchaRouting.getCaptchaRoutingNames())
+                .defaultValue(CaptchaRouting.PRIMARY.getName())
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_WEIGHT)
+                .label("Weight")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("1")
+                .helpText("Relative weight of the primary captcha provider for weighted routing")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_FALLBACK_PROVIDER)
+                .label("Fallback captcha provider")
+                .helpText("Captcha provider to show when the primary one is unavailable and failure policy is fallback, " +
+                        "or the second captcha provider of failover and weighted routing")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_FALLBACK_CLIENT_KEY)
+                .label("Fallback site key")
+                .type(ProviderConfigProperty.PASSWORD)
+                .helpText("Site key received from fallback captcha provider")
+                .secret(true)
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_FALLBACK_SERVER_KEY)
+                .label("Fallback server key")
+                .type(ProviderConfigProperty.PASSWORD)
+                .helpText("Server key received from fallback captcha provider")
+                .secret(true)
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_FALLBACK_VALIDATE_URL)
+                .label("Fallback validation url")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Overrides fallback captcha provider url to verify captcha token")
+                .add()
+
+                .property()
+                .name(CONFIG_KEY_CAPTCHA_FALLBACK_WEIGHT)
+                .label("Fallback weight")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("1")
+                .helpText("Relative weight of the fallback captcha provider for weighted routing")
+                .add()
                 .build();
     }
 
@@ -114,19 +428,149 @@ public class CaptchaLoginFormFactory implements AuthenticatorFactory {
 
     @Override
     public Authenticator create(KeycloakSession session) {
-        return SINGLETON;
+        return captchaLoginForm;
     }
 
     @Override
     public void init(Config.Scope config) {
+        this.captchaTracer = new CaptchaTracer(config);
+        this.captchaHttpClient = new CaptchaHttpClient(config, captchaTracer);
+        this.captchaVerdictCache = new CaptchaVerdictCache(config);
+        this.captchaCircuitBreakers = new CaptchaCircuitBreakers(new CaptchaCircuitBreakerConfig(config));
+        this.failedLoginCounter = CLUSTER_FAILED_LOGIN_STORE.equals(config.get(FailedLoginCounter.SPI_FAILED_LOGIN_STORE))
+                ? new ClusterFailedLoginCounter(config)
+                : new LocalFailedLoginCounter(config);
+        this.captchaTokenRegistry = CLUSTER_TOKEN_REGISTRY_STORE.equals(config.get(CaptchaTokenRegistry.SPI_TOKEN_REGISTRY_STORE))
+                ? new ClusterCaptchaTokenRegistry(config)
+                : new LocalCaptchaTokenRegistry(config);
+        this.loginRateLimiter = new LoginRateLimiter(config);
+        this.captchaMetrics = new CaptchaMetrics(captchaHttpClient, captchaTokenRegistry);
+        this.captchaLoginForm = new CaptchaLoginForm(captchaSettingsCache, captchaHttpClient, captchaVerdictCache, captchaCircuitBreakers,
+                captchaTokenRegistry, new AdaptiveCaptchaPolicy(failedLoginCounter), loginRateLimiter,
+                new CaptchaRouter(captchaCircuitBreakers), captchaProviderBypass, captchaMetrics, captchaTracer);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        this.captchaClients = CaptchaClients.of(factory);
+        List<String> providerNames = captchaClients.getCaptchaProviderNames();
+        logger.info("Registered captcha providers: {}", providerNames);
+        configMetadata.stream()
+                .filter(property -> CONFIG_KEY_CAPTCHA_PROVIDER.equals(property.getName())
+                        || CONFIG_KEY_CAPTCHA_FALLBACK_PROVIDER.equals(property.getName()))
+                .forEach(property -> property.setOptions(providerNames));
+        captchaMetrics.registerProviders(providerNames);
+
+        failedLoginCounter.start(factory);
+        captchaTracer.start(factory);
+        // keycloak does not validate authenticator configs, so report invalid ones as soon as the database is ready
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(factory, this::validateCaptchaConfigs);
+            }
+        });
+    }
+
+    /**
+     * Validates configs of all captcha authenticator executions and logs found errors.
+     */
+    private void validateCaptchaConfigs(KeycloakSession session) {
+        Set<String> validateUrls = new LinkedHashSet<>();
+        session.realms().getRealmsStream().forEach(realm -> realm.getAuthenticationFlowsStream()
+                .flatMap(flow -> realm.getAuthenticationExecutionsStream(flow.getId()))
+                .filter(execution -> PROVIDER_ID.equals(execution.getAuthenticator()))
+                .map(AuthenticationExecutionModel::getAuthenticatorConfig)
+                .filter(Objects::nonNull)
+                .distinct()
+                .map(realm::getAuthenticatorConfigById)
+                .filter(Objects::nonNull)
+                .forEach(config -> {
+                    CaptchaSettings settings = captchaSettingsCache.get(config);
+                    if (!settings.isValid()) {
+                        logger.error("Captcha config '{}' of realm '{}' is invalid: {}",
+                                config.getAlias(), realm.getName(), String.join("; ", settings.getErrors()));
+                    } else if (settings.isCaptchaEnabled()) {
+                        settings.getRoutes().forEach(route -> validateUrls.add(route.getProviderSettings().getValidateUrl()));
+                        if (settings.getStepUp() != null) {
+                            validateUrls.add(settings.getStepUp().getValidateUrl());
+                        }
+                    }
+                }));
+        // connections to captcha apis of enabled configs are opened before the first login comes
+        captchaHttpClient.warmUp(validateUrls);
+    }
+
+    private CaptchaSettings buildCaptchaSettings(Map<String, String> config) {
+        CaptchaSettings settings = CaptchaSettings.of(config, captchaClients);
+        if (!settings.isValid()) {
+            logger.warn("Invalid captcha config: {}", String.join("; ", settings.getErrors()));
+        }
+        return settings;
     }
 
     @Override
     public void close() {
+        captchaSettingsCache.clear();
+        if (captchaVerdictCache != null) {
+            captchaVerdictCache.clear();
+        }
+        if (failedLoginCounter != null) {
+            failedLoginCounter.close();
+            failedLoginCounter.clear();
+        }
+        if (captchaTokenRegistry != null) {
+            captchaTokenRegistry.clear();
+        }
+        if (loginRateLimiter != null) {
+            loginRateLimiter.clear();
+        }
+        if (captchaHttpClient != null) {
+            try {
+                captchaHttpClient.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close captcha http client: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    public CaptchaMetrics getCaptchaMetrics() {
+        return captchaMetrics;
+    }
+
+    public CaptchaClients getCaptchaClients() {
+        return captchaClients;
+    }
+
+    public CaptchaHttpClient getCaptchaHttpClient() {
+        return captchaHttpClient;
+    }
+
+    public CaptchaVerdictCache getCaptchaVerdictCache() {
+        return captchaVerdictCache;
+    }
+
+    public AuthenticatorConfigCache<CaptchaSettings> getCaptchaSettingsCache() {
+        return captchaSettingsCache;
+    }
+
+    public CaptchaCircuitBreakers getCaptchaCircuitBreakers() {
+        return captchaCircuitBreakers;
+    }
+
+    public FailedLoginCounter getFailedLoginCounter() {
+        return failedLoginCounter;
+    }
+
+    public CaptchaTokenRegistry getCaptchaTokenRegistry() {
+        return captchaTokenRegistry;
+    }
+
+    public LoginRateLimiter getLoginRateLimiter() {
+        return loginRateLimiter;
+    }
+
+    public CaptchaProviderBypass getCaptchaProviderBypass() {
+        return captchaProviderBypass;
     }
 
     @Override
@@ -0,0 +1,45 @@
+package ru.lagoshny.keycloak.providers.login.captcha.form;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * When to show captcha on the login form.
+ */
+public enum CaptchaMode {
+
+    /**
+     * Captcha is shown on every login.
+     */
+    ALWAYS("always"),
+
+    /**
+     * Captcha is shown only for suspicious logins, see {@link ru.lagoshny.keycloak.providers.login.captcha.risk.AdaptiveCaptchaPolicy}.
+     */
+    ADAPTIVE("adaptive");
+
+    private final String name;
+
+    CaptchaMode(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return mode by its name, {@link #ALWAYS} if name is unknown
+     */
+    public static CaptchaMode of(String name) {
+        return Arrays.stream(values())
+                .filter(mode -> mode.name.equals(name))
+                .findFirst()
+                .orElse(ALWAYS);
+    }
+
+    public static List<String> getCaptchaModeNames() {
+        return Arrays.stream(values()).map(CaptchaMode::getName).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,50 @@
+package ru.lagoshny.keycloak.providers.login.captcha.form;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * How to choose captcha provider among the primary and the fallback ones for the login page.
+ */
+public enum CaptchaRouting {
+
+    /**
+     * Show captcha of the primary provider, the fallback one is shown only by {@link CaptchaFailurePolicy#FALLBACK}.
+     */
+    PRIMARY("primary"),
+
+    /**
+     * Show captcha of the first provider in order whose circuit is not open.
+     */
+    FAILOVER("failover"),
+
+    /**
+     * Spread logins between providers by their weights, adjusted by live error rate and latency of each provider.
+     */
+    WEIGHTED("weighted");
+
+    private final String name;
+
+    CaptchaRouting(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return routing by its name, {@link #PRIMARY} if name is unknown
+     */
+    public static CaptchaRouting of(String name) {
+        return Arrays.stream(values())
+                .filter(routing -> routing.name.equals(name))
+                .findFirst()
+                .orElse(PRIMARY);
+    }
+
+    public static List<String> getCaptchaRoutingNames() {
+        return Arrays.stream(values()).map(CaptchaRouting::getName).collect(Collectors.toList());
+    }
+}
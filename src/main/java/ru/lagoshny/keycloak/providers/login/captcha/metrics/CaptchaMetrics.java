@@ -0,0 +1,253 @@
+package ru.lagoshny.keycloak.providers.login.captcha.metrics;
+
+import org.apache.http.pool.PoolStats;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaHttpClient;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerificationHedger;
+import ru.lagoshny.keycloak.providers.login.captcha.risk.LoginRateLimiter;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaTokenRegistry;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Captcha verification metrics: latency of captcha api calls per provider, login verification outcomes
+ * per provider, rate limited logins, in-flight and hedged verifications, connection pool stats of the {@link CaptchaHttpClient}
+ * and saturation of the {@link CaptchaTokenRegistry}.
+ * <p>
+ * Metrics are exposed in prometheus text format, see {@link #scrape()}.
+ */
+public class CaptchaMetrics {
+
+    /**
+     * Outcome of the login that has no captcha token, it is not verified by captcha api.
+     */
+    public static final String OUTCOME_MISSING_TOKEN = "missing_token";
+
+    /**
+     * Outcome of the login which captcha token has a wrong format, it is not verified by captcha api.
+     */
+    public static final String OUTCOME_MALFORMED_TOKEN = "malformed_token";
+
+    /**
+     * Outcome of the login that skipped captcha by the pass cookie, it is counted for the primary captcha provider.
+     */
+    public static final String OUTCOME_PASS_COOKIE = "pass_cookie";
+
+    /**
+     * Outcome of the login which captcha provider is bypassed by the admin, it is not verified by captcha api.
+     */
+    public static final String OUTCOME_BYPASSED = "bypassed";
+
+    private static final String VERIFICATION_DURATION = "captcha_verification_duration_seconds";
+
+    private static final String VERIFICATIONS = "captcha_verifications_total";
+
+    private static final String RATE_LIMITED = "captcha_rate_limited_total";
+
+    private static final String VERIFICATIONS_IN_FLIGHT = "captcha_verifications_in_flight";
+
+    private static final String VERIFICATION_QUEUE_SIZE = "captcha_verification_queue_size";
+
+    private static final String VERIFICATION_HEDGES = "captcha_verification_hedges_total";
+
+    private static final String VERIFICATION_HEDGE_WINS = "captcha_verification_hedge_wins_total";
+
+    private static final String POOL_CONNECTIONS = "captcha_http_pool_connections";
+
+    private static final String POOL_MAX_CONNECTIONS = "captcha_http_pool_max_connections";
+
+    private static final String TOKEN_REGISTRY_SATURATED = "captcha_token_registry_saturated";
+
+    private final CaptchaHttpClient captchaHttpClient;
+
+    private final CaptchaTokenRegistry captchaTokenRegistry;
+
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * Verification outcome counters by provider name and outcome.
+     */
+    private final Map<String, Map<String, LongAdder>> outcomes = new ConcurrentHashMap<>();
+
+    /**
+     * Rate limited logins by exceeded limit.
+     */
+    private final Map<String, LongAdder> rateLimited = new ConcurrentHashMap<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public CaptchaMetrics(CaptchaHttpClient captchaHttpClient, CaptchaTokenRegistry captchaTokenRegistry) {
+        this.captchaHttpClient = captchaHttpClient;
+        this.captchaTokenRegistry = captchaTokenRegistry;
+        for (String limit : List.of(LoginRateLimiter.LIMIT_IP, LoginRateLimiter.LIMIT_USERNAME)) {
+            rateLimited.put(limit, new LongAdder());
+        }
+    }
+
+    /**
+     * Registers series of the captcha providers upfront, so they are exposed with zero values before the first login.
+     *
+     * @param providerNames names of the registered captcha providers
+     */
+    public void registerProviders(Collection<String> providerNames) {
+        for (String providerName : providerNames) {
+            getLatency(providerName);
+            for (CaptchaVerdict.Outcome outcome : CaptchaVerdict.Outcome.values()) {
+                getOutcome(providerName, outcomeName(outcome));
+            }
+            getOutcome(providerName, OUTCOME_MISSING_TOKEN);
+            getOutcome(providerName, OUTCOME_MALFORMED_TOKEN);
+            getOutcome(providerName, OUTCOME_PASS_COOKIE);
+            getOutcome(providerName, OUTCOME_BYPASSED);
+        }
+    }
+
+    /**
+     * Measures latency of the captcha api call and counts it as in-flight until it is completed.
+     *
+     * @param providerName name of the captcha provider
+     * @param verification captcha api call
+     */
+    public CompletableFuture<CaptchaVerdict> timeVerification(String providerName,
+                                                              Supplier<CompletableFuture<CaptchaVerdict>> verification) {
+        LatencyHistogram latency = getLatency(providerName);
+        inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return verification.get().whenComplete((verdict, e) -> {
+                inFlight.decrementAndGet();
+                latency.record(System.nanoTime() - start);
+            });
+        } catch (RuntimeException e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Counts the captcha verification outcome of the login.
+     */
+    public void recordOutcome(String providerName, CaptchaVerdict.Outcome outcome) {
+        getOutcome(providerName, outcomeName(outcome)).increment();
+    }
+
+    public void recordMissingToken(String providerName) {
+        getOutcome(providerName, OUTCOME_MISSING_TOKEN).increment();
+    }
+
+    public void recordMalformedToken(String providerName) {
+        getOutcome(providerName, OUTCOME_MALFORMED_TOKEN).increment();
+    }
+
+    public void recordPassCookie(String providerName) {
+        getOutcome(providerName, OUTCOME_PASS_COOKIE).increment();
+    }
+
+    public void recordBypassed(String providerName) {
+        getOutcome(providerName, OUTCOME_BYPASSED).increment();
+    }
+
+    /**
+     * @param limit exceeded limit of the {@link LoginRateLimiter}
+     */
+    public void recordRateLimited(String limit) {
+        rateLimited.computeIfAbsent(limit, name -> new LongAdder()).increment();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public Map<String, LatencyHistogram> getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @return counters by provider name and outcome
+     */
+    public Map<String, Map<String, LongAdder>> getOutcomes() {
+        return outcomes;
+    }
+
+    /**
+     * @return all metrics in prometheus text exposition format
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+
+        out.append("# HELP ").append(VERIFICATION_DURATION).append(" Captcha api verification latency\n");
+        out.append("# TYPE ").append(VERIFICATION_DURATION).append(" histogram\n");
+        latencies.forEach((provider, latency) ->
+                latency.writeTo(out, VERIFICATION_DURATION, "provider=\"" + provider + "\""));
+
+        out.append("# HELP ").append(VERIFICATIONS).append(" Captcha verifications of logins by outcome\n");
+        out.append("# TYPE ").append(VERIFICATIONS).append(" counter\n");
+        outcomes.forEach((provider, counters) -> counters.forEach((outcome, counter) ->
+                out.append(VERIFICATIONS).append("{provider=\"").append(provider).append("\",outcome=\"")
+                        .append(outcome).append("\"} ").append(counter.sum()).append('\n')));
+
+        out.append("# HELP ").append(RATE_LIMITED).append(" Logins rejected by the rate limiter before captcha verification\n");
+        out.append("# TYPE ").append(RATE_LIMITED).append(" counter\n");
+        rateLimited.forEach((limit, counter) ->
+                out.append(RATE_LIMITED).append("{limit=\"").append(limit).append("\"} ").append(counter.sum()).append('\n'));
+
+        writeGauge(out, VERIFICATIONS_IN_FLIGHT, "Captcha api verifications in progress", inFlight.get());
+        writeGauge(out, VERIFICATION_QUEUE_SIZE, "Captcha verifications waiting for a free verification thread",
+                captchaHttpClient.getVerificationQueueSize());
+
+        CaptchaVerificationHedger hedger = captchaHttpClient.getVerificationHedger();
+        writeCounter(out, VERIFICATION_HEDGES, "Captcha verifications sent again because captcha api was slow",
+                hedger == null ? 0 : hedger.getHedges());
+        writeCounter(out, VERIFICATION_HEDGE_WINS, "Hedged captcha verifications which verdict was taken",
+                hedger == null ? 0 : hedger.getHedgeWins());
+
+        PoolStats poolStats = captchaHttpClient.getConnectionManager().getTotalStats();
+        out.append("# HELP ").append(POOL_CONNECTIONS).append(" Captcha http client pool connections by state\n");
+        out.append("# TYPE ").append(POOL_CONNECTIONS).append(" gauge\n");
+        out.append(POOL_CONNECTIONS).append("{state=\"leased\"} ").append(poolStats.getLeased()).append('\n');
+        out.append(POOL_CONNECTIONS).append("{state=\"available\"} ").append(poolStats.getAvailable()).append('\n');
+        out.append(POOL_CONNECTIONS).append("{state=\"pending\"} ").append(poolStats.getPending()).append('\n');
+        writeGauge(out, POOL_MAX_CONNECTIONS, "Captcha http client pool max connections", poolStats.getMax());
+        writeGauge(out, TOKEN_REGISTRY_SATURATED, "1 if used captcha tokens are forgotten before the ttl because the registry is full",
+                captchaTokenRegistry.isSaturated() ? 1 : 0);
+
+        return out.toString();
+    }
+
+    private static void writeGauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeCounter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private LatencyHistogram getLatency(String providerName) {
+        return latencies.computeIfAbsent(providerName, name -> new LatencyHistogram());
+    }
+
+    private LongAdder getOutcome(String providerName, String outcome) {
+        return outcomes.computeIfAbsent(providerName, name -> new ConcurrentHashMap<>())
+                .computeIfAbsent(outcome, name -> new LongAdder());
+    }
+
+    /**
+     * @return name of the outcome in the {@code outcome} metric label
+     */
+    public static String outcomeName(CaptchaVerdict.Outcome outcome) {
+        return outcome.name().toLowerCase(Locale.ROOT);
+    }
+
+}
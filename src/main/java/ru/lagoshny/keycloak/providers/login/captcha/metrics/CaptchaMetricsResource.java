@@ -0,0 +1,63 @@
+package ru.lagoshny.keycloak.providers.login.captcha.metrics;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Produces;
+
+/**
+ * Serves {@link CaptchaMetrics} in prometheus text format at {@code /realms/master/captcha-metrics}.
+ * <p>
+ * Requests need the bearer token of the master realm admin with the {@code view-realm} role.
+ */
+public class CaptchaMetricsResource implements RealmResourceProvider {
+
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final KeycloakSession session;
+
+    /**
+     * {@code null} if metrics endpoint is disabled or it is requested not in the master realm.
+     */
+    private final CaptchaMetrics captchaMetrics;
+
+    public CaptchaMetricsResource(KeycloakSession session, CaptchaMetrics captchaMetrics) {
+        this.session = session;
+        this.captchaMetrics = captchaMetrics;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @GET
+    @Produces(PROMETHEUS_CONTENT_TYPE)
+    public String scrape() {
+        if (captchaMetrics == null) {
+            throw new NotFoundException();
+        }
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        RealmModel realm = session.getContext().getRealm();
+        AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+        AdminPermissions.evaluator(session, realm, adminAuth).realm().requireViewRealm();
+
+        return captchaMetrics.scrape();
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,56 @@
+package ru.lagoshny.keycloak.providers.login.captcha.metrics;
+
+import org.keycloak.Config;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaLoginFormFactory;
+
+/**
+ * Factory of the captcha metrics endpoint.
+ * <p>
+ * Endpoint is disabled by default, enable it with {@code --spi-realm-restapi-extension-captcha-metrics-enabled=true}.
+ * It is served only in the master realm, so metrics are scraped from a single well-known url.
+ */
+public class CaptchaMetricsResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "captcha-metrics";
+
+    public static final String SPI_ENABLED = "enabled";
+
+    private boolean enabled;
+
+    private CaptchaMetrics captchaMetrics;
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        RealmModel realm = session.getContext().getRealm();
+        boolean served = enabled && realm != null && Config.getAdminRealm().equals(realm.getName());
+        return new CaptchaMetricsResource(session, served ? captchaMetrics : null);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        this.enabled = config.getBoolean(SPI_ENABLED, false);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        CaptchaLoginFormFactory captchaLoginFormFactory = (CaptchaLoginFormFactory) factory
+                .getProviderFactory(Authenticator.class, CaptchaLoginFormFactory.PROVIDER_ID);
+        this.captchaMetrics = captchaLoginFormFactory == null ? null : captchaLoginFormFactory.getCaptchaMetrics();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+}
@@ -0,0 +1,101 @@
+package ru.lagoshny.keycloak.providers.login.captcha.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with fixed buckets, exposed as a prometheus histogram in seconds.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Bucket upper bounds in milliseconds, chosen around captcha api latency and default timeouts.
+     */
+    private static final long[] BUCKETS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    /**
+     * Non-cumulative bucket counts, the last one counts values above the largest bound.
+     */
+    private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long durationNanos) {
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        int bucket = 0;
+        while (bucket < BUCKETS.length && durationMillis > BUCKETS[bucket]) {
+            bucket++;
+        }
+        counts[bucket].increment();
+        sumNanos.add(durationNanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucketCount : counts) {
+            count += bucketCount.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of recorded durations in seconds
+     */
+    public double getSum() {
+        return sumNanos.sum() / 1e9;
+    }
+
+    /**
+     * Estimates the percentile the same way as prometheus {@code histogram_quantile}: linearly within its bucket.
+     *
+     * @param quantile from {@code 0} to {@code 1}, e.g. {@code 0.95}
+     * @return latency in milliseconds, the largest bucket bound if the percentile is above it,
+     * {@code 0} if nothing is recorded
+     */
+    public double getPercentile(double quantile) {
+        long[] bucketCounts = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            bucketCounts[i] = counts[i].sum();
+            total += bucketCounts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        double rank = quantile * total;
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS.length; i++) {
+            if (bucketCounts[i] > 0 && cumulative + bucketCounts[i] >= rank) {
+                long lowerBound = i == 0 ? 0 : BUCKETS[i - 1];
+                return lowerBound + (BUCKETS[i] - lowerBound) * (rank - cumulative) / bucketCounts[i];
+            }
+            cumulative += bucketCounts[i];
+        }
+        return BUCKETS[BUCKETS.length - 1];
+    }
+
+    /**
+     * Writes histogram samples in prometheus text format.
+     *
+     * @param labels sample labels without braces, e.g. {@code provider="ReCaptchaV2"}
+     */
+    void writeTo(StringBuilder out, String name, String labels) {
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS.length; i++) {
+            cumulative += counts[i].sum();
+            out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(BUCKETS[i] / 1000.0).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts[BUCKETS.length].sum();
+        out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum{").append(labels).append("} ").append(getSum()).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+}
@@ -0,0 +1,77 @@
+package ru.lagoshny.keycloak.providers.login.captcha.risk;
+
+import org.apache.commons.lang3.StringUtils;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaSettings;
+import ru.lagoshny.keycloak.providers.login.captcha.util.IpRange;
+
+import java.util.Locale;
+
+/**
+ * Decides whether the login is suspicious and the captcha has to be shown in the adaptive captcha mode.
+ * <p>
+ * Login is suspicious when the number of failed logins from the user's IP address or for the username reaches
+ * the configured threshold in the sliding window, or when the user's IP address is in the configured ranges.
+ */
+public class AdaptiveCaptchaPolicy {
+
+    private final FailedLoginCounter failedLoginCounter;
+
+    public AdaptiveCaptchaPolicy(FailedLoginCounter failedLoginCounter) {
+        this.failedLoginCounter = failedLoginCounter;
+    }
+
+    /**
+     * @param context  execution {@link AuthenticationFlowContext}
+     * @param settings captcha settings of the authenticator
+     * @param username username the user tries to login with, {@code null} if it is not known yet
+     * @return {@code true} if the login is suspicious and the captcha has to be shown
+     */
+    public boolean isSuspicious(AuthenticationFlowContext context, CaptchaSettings settings, String username) {
+        String remoteAddr = context.getConnection().getRemoteAddr();
+        if (isChallengeIp(settings, remoteAddr)) {
+            return true;
+        }
+        if (failedLoginCounter.isSaturated()) {
+            // too many keys to track, treat everybody suspicious than let new keys go untracked
+            return true;
+        }
+
+        int threshold = settings.getFailuresThreshold();
+        String realmId = context.getRealm().getId();
+        return failedLoginCounter.getFailures(ipKey(realmId, remoteAddr)) >= threshold
+                || (StringUtils.isNotBlank(username) && failedLoginCounter.getFailures(usernameKey(realmId, username)) >= threshold);
+    }
+
+    public void onLoginFailed(AuthenticationFlowContext context, String username) {
+        String realmId = context.getRealm().getId();
+        failedLoginCounter.recordFailure(ipKey(realmId, context.getConnection().getRemoteAddr()));
+        if (StringUtils.isNotBlank(username)) {
+            failedLoginCounter.recordFailure(usernameKey(realmId, username));
+        }
+    }
+
+    public void onLoginSucceeded(AuthenticationFlowContext context, String username) {
+        if (StringUtils.isNotBlank(username)) {
+            failedLoginCounter.reset(usernameKey(context.getRealm().getId(), username));
+        }
+    }
+
+    private static boolean isChallengeIp(CaptchaSettings settings, String remoteAddr) {
+        for (IpRange ipRange : settings.getChallengeIpRanges()) {
+            if (ipRange.contains(remoteAddr)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String ipKey(String realmId, String remoteAddr) {
+        return realmId + ":ip:" + remoteAddr;
+    }
+
+    static String usernameKey(String realmId, String username) {
+        return realmId + ":user:" + username.trim().toLowerCase(Locale.ROOT);
+    }
+
+}
@@ -0,0 +1,330 @@
+package ru.lagoshny.keycloak.providers.login.captcha.risk;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link FailedLoginCounter} shared by all keycloak nodes of the cluster.
+ * <p>
+ * Failed logins are stored in keycloak {@link SingleUseObjectProvider}, that is backed by the replicated
+ * infinispan cache in clustered deployments. The login path never waits for it: failures are counted in
+ * the {@link LocalFailedLoginCounter} and in the pending batch, and the background task periodically
+ * writes the batch to the cluster store and reads back cluster-wide counts of recently requested keys.
+ * So the counter is eventually consistent, a node sees failures from other nodes after the flush interval.
+ * <p>
+ * Each node writes failures of a key only to its own entry of the key, so concurrent flushes of nodes do not overwrite
+ * each other, and the cluster-wide count is the sum of the entries of all nodes. Nodes find each other in the node
+ * directory entry, where each node renews its heartbeat, so the directory costs a write only every few flushes.
+ */
+public class ClusterFailedLoginCounter implements FailedLoginCounter {
+
+    private final static Logger logger = LoggerFactory.getLogger(ClusterFailedLoginCounter.class);
+
+    public static final String SPI_FAILED_LOGIN_FLUSH_INTERVAL = "failedLoginFlushInterval";
+
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+
+    private static final String KEY_PREFIX = "captcha-failed-logins::";
+
+    private static final String NODES_KEY = KEY_PREFIX + "nodes";
+
+    /**
+     * Id of this node in the node directory, it is unique for each start of the node.
+     */
+    private final String nodeId = KeycloakModelUtils.generateId();
+
+    private final LocalFailedLoginCounter localCounter;
+
+    /**
+     * Failures counted on this node since the last flush.
+     */
+    private final Map<String, AtomicInteger> pendingFailures = new ConcurrentHashMap<>();
+
+    /**
+     * Keys to remove from the cluster store on the next flush.
+     */
+    private final Set<String> pendingResets = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Keys which cluster-wide counts were requested since the last flush.
+     */
+    private final Set<String> pendingReads = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Cluster-wide counts read on the last flushes.
+     */
+    private final Map<String, ClusterCount> clusterCounts = new ConcurrentHashMap<>();
+
+    private final long slotMillis;
+
+    private final long flushInterval;
+
+    private final int maxKeys;
+
+    private final int lifespanSeconds;
+
+    private final long window;
+
+    private ScheduledExecutorService scheduler;
+
+    private KeycloakSessionFactory sessionFactory;
+
+    public ClusterFailedLoginCounter(Config.Scope config) {
+        long window = config.getLong(LocalFailedLoginCounter.SPI_FAILED_LOGIN_WINDOW, LocalFailedLoginCounter.DEFAULT_WINDOW);
+        this.localCounter = new LocalFailedLoginCounter(config);
+        this.slotMillis = Math.max(1, window / LocalFailedLoginCounter.SLOTS);
+        this.lifespanSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(window) + 1);
+        this.window = window;
+        this.flushInterval = config.getLong(SPI_FAILED_LOGIN_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL);
+        this.maxKeys = config.getInt(LocalFailedLoginCounter.SPI_FAILED_LOGIN_MAX_KEYS, 100_000);
+    }
+
+    @Override
+    public void recordFailure(String key) {
+        localCounter.recordFailure(key);
+        if (pendingFailures.size() < maxKeys || pendingFailures.containsKey(key)) {
+            pendingFailures.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    @Override
+    public int getFailures(String key) {
+        ClusterCount clusterCount = clusterCounts.get(key);
+        if ((clusterCount == null || System.currentTimeMillis() - clusterCount.readAt >= flushInterval)
+                && pendingReads.size() < maxKeys) {
+            pendingReads.add(key);
+        }
+        int localFailures = localCounter.getFailures(key);
+        // cluster count includes already flushed local failures, so the max of both is taken instead of the sum
+        return clusterCount == null ? localFailures : Math.max(localFailures, clusterCount.failures);
+    }
+
+    @Override
+    public void reset(String key) {
+        localCounter.reset(key);
+        pendingFailures.remove(key);
+        clusterCounts.remove(key);
+        pendingResets.add(key);
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return localCounter.isSaturated();
+    }
+
+    @Override
+    public int size() {
+        return localCounter.size();
+    }
+
+    @Override
+    public void clear() {
+        localCounter.clear();
+        pendingFailures.clear();
+        pendingResets.clear();
+        pendingReads.clear();
+        clusterCounts.clear();
+    }
+
+    @Override
+    public void start(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "captcha-failed-logins-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void flush() {
+        List<String> resets = drain(pendingResets);
+        List<String> reads = drain(pendingReads);
+        Map<String, Integer> failures = new HashMap<>();
+        for (String key : new ArrayList<>(pendingFailures.keySet())) {
+            AtomicInteger count = pendingFailures.remove(key);
+            if (count != null) {
+                failures.put(key, count.get());
+            }
+        }
+        if (resets.isEmpty() && reads.isEmpty() && failures.isEmpty()) {
+            return;
+        }
+
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                SingleUseObjectProvider store = session.getProvider(SingleUseObjectProvider.class);
+                long now = System.currentTimeMillis();
+                long epoch = now / slotMillis;
+                Set<String> nodeIds = registerNode(store, now);
+                for (String key : resets) {
+                    for (String node : nodeIds) {
+                        store.remove(nodeKey(key, node));
+                    }
+                }
+                for (Map.Entry<String, Integer> entry : failures.entrySet()) {
+                    // only this node writes its entry of the key, so the read-modify-write does not lose failures
+                    Map<String, String> slots = addFailures(store.get(nodeKey(entry.getKey(), nodeId)), entry.getValue(), epoch);
+                    store.put(nodeKey(entry.getKey(), nodeId), lifespanSeconds, slots);
+                    clusterCounts.put(entry.getKey(), new ClusterCount(sum(slots, epoch)
+                            + sumOtherNodes(store, entry.getKey(), nodeIds, epoch), now));
+                }
+                for (String key : reads) {
+                    if (!failures.containsKey(key)) {
+                        clusterCounts.put(key, new ClusterCount(sum(store.get(nodeKey(key, nodeId)), epoch)
+                                + sumOtherNodes(store, key, nodeIds, epoch), now));
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.warn("Failed to flush failed logins to the cluster store: {}", e.getMessage(), e);
+            restore(resets, failures);
+        }
+
+        long expired = System.currentTimeMillis() - flushInterval * 2;
+        clusterCounts.values().removeIf(clusterCount -> clusterCount.readAt < expired);
+    }
+
+    /**
+     * Returns the batch of the failed flush to the pending one, so it is written on the next flush.
+     * Failures of keys that were reset while flushing are dropped, since they were counted before the reset.
+     */
+    private void restore(List<String> resets, Map<String, Integer> failures) {
+        failures.forEach((key, count) -> {
+            if (!pendingResets.contains(key)) {
+                pendingFailures.computeIfAbsent(key, k -> new AtomicInteger()).addAndGet(count);
+            }
+        });
+        pendingResets.addAll(resets);
+    }
+
+    /**
+     * Reads the node directory and renews the heartbeat of this node when it is missing or half of the window old.
+     * Concurrent renewals of nodes can drop a heartbeat, then the node renews it again on its next flush.
+     * Nodes without heartbeat for the window are dropped, all their failures are out of the window.
+     *
+     * @return ids of the live nodes, including this node
+     */
+    private Set<String> registerNode(SingleUseObjectProvider store, long now) {
+        Map<String, String> nodes = new HashMap<>();
+        Map<String, String> storedNodes = store.get(NODES_KEY);
+        if (storedNodes != null) {
+            storedNodes.forEach((node, heartbeat) -> {
+                if (now - parseLong(heartbeat) < window) {
+                    nodes.put(node, heartbeat);
+                }
+            });
+        }
+        String heartbeat = nodes.get(nodeId);
+        if (heartbeat == null || now - parseLong(heartbeat) >= window / 2) {
+            nodes.put(nodeId, Long.toString(now));
+            store.put(NODES_KEY, lifespanSeconds, nodes);
+        }
+        return nodes.keySet();
+    }
+
+    private int sumOtherNodes(SingleUseObjectProvider store, String key, Set<String> nodeIds, long epoch) {
+        int failures = 0;
+        for (String node : nodeIds) {
+            if (!nodeId.equals(node)) {
+                failures += sum(store.get(nodeKey(key, node)), epoch);
+            }
+        }
+        return failures;
+    }
+
+    private static String nodeKey(String key, String node) {
+        return KEY_PREFIX + key + "::" + node;
+    }
+
+    /**
+     * Adds failures to the current slot of the stored slots and drops slots out of the window.
+     */
+    private static Map<String, String> addFailures(Map<String, String> storedSlots, int failures, long epoch) {
+        Map<String, String> slots = new HashMap<>();
+        if (storedSlots != null) {
+            storedSlots.forEach((slotEpoch, count) -> {
+                if (isInWindow(slotEpoch, epoch)) {
+                    slots.put(slotEpoch, count);
+                }
+            });
+        }
+        slots.merge(Long.toString(epoch), Integer.toString(failures),
+                (current, added) -> Integer.toString(Integer.parseInt(current) + Integer.parseInt(added)));
+        return slots;
+    }
+
+    private static int sum(Map<String, String> slots, long epoch) {
+        if (slots == null) {
+            return 0;
+        }
+        int failures = 0;
+        for (Map.Entry<String, String> slot : slots.entrySet()) {
+            if (isInWindow(slot.getKey(), epoch)) {
+                failures += Integer.parseInt(slot.getValue());
+            }
+        }
+        return failures;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isInWindow(String slotEpoch, long epoch) {
+        try {
+            return epoch - Long.parseLong(slotEpoch) < LocalFailedLoginCounter.SLOTS;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static List<String> drain(Set<String> keys) {
+        List<String> drained = new ArrayList<>();
+        for (String key : keys) {
+            if (keys.remove(key)) {
+                drained.add(key);
+            }
+        }
+        return drained;
+    }
+
+    private static class ClusterCount {
+
+        private final int failures;
+
+        private final long readAt;
+
+        private ClusterCount(int failures, long readAt) {
+            this.failures = failures;
+            this.readAt = readAt;
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package ru.lagoshny.keycloak.providers.login.captcha.risk;
+
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Counter of failed logins per key (IP address, username) in a sliding time window.
+ * <p>
+ * Implementations must not block the login path on remote calls.
+ */
+public interface FailedLoginCounter {
+
+    String SPI_FAILED_LOGIN_STORE = "failedLoginStore";
+
+    /**
+     * Counts one failed login for the key.
+     */
+    void recordFailure(String key);
+
+    /**
+     * @return number of failed logins for the key in the sliding window
+     */
+    int getFailures(String key);
+
+    /**
+     * Forgets all failed logins for the key.
+     */
+    void reset(String key);
+
+    /**
+     * @return {@code true} when the counter has no room to track new keys
+     */
+    boolean isSaturated();
+
+    /**
+     * @return number of tracked keys
+     */
+    int size();
+
+    /**
+     * Forgets all failed logins.
+     */
+    void clear();
+
+    /**
+     * Starts background work of the counter if it needs any.
+     */
+    default void start(KeycloakSessionFactory sessionFactory) {
+    }
+
+    /**
+     * Stops background work of the counter.
+     */
+    default void close() {
+    }
+
+}
@@ -0,0 +1,137 @@
+package ru.lagoshny.keycloak.providers.login.captcha.risk;
+
+import org.keycloak.Config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory {@link FailedLoginCounter} of the single keycloak node.
+ * <p>
+ * Each key has a ring of time slots, every slot packs its epoch and failures count into a single {@code long},
+ * so counting and reading failures are lock-free CAS operations without allocations.
+ * Number of tracked keys is bounded: keys without failures in the window are purged (at most once a second)
+ * when the counter is full, and when it is still full it reports itself {@link #isSaturated() saturated}.
+ */
+public class LocalFailedLoginCounter implements FailedLoginCounter {
+
+    public static final String SPI_FAILED_LOGIN_WINDOW = "failedLoginWindow";
+
+    public static final String SPI_FAILED_LOGIN_MAX_KEYS = "failedLoginMaxKeys";
+
+    static final long DEFAULT_WINDOW = TimeUnit.MINUTES.toMillis(15);
+
+    private static final int DEFAULT_MAX_KEYS = 100_000;
+
+    static final int SLOTS = 16;
+
+    private static final int COUNT_BITS = 24;
+
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private static final long PURGE_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    private final Map<String, AtomicLongArray> counters = new ConcurrentHashMap<>();
+
+    private final long slotMillis;
+
+    private final int maxKeys;
+
+    private final AtomicLong lastPurge = new AtomicLong(System.currentTimeMillis());
+
+    public LocalFailedLoginCounter(Config.Scope config) {
+        this.slotMillis = Math.max(1, config.getLong(SPI_FAILED_LOGIN_WINDOW, DEFAULT_WINDOW) / SLOTS);
+        this.maxKeys = config.getInt(SPI_FAILED_LOGIN_MAX_KEYS, DEFAULT_MAX_KEYS);
+    }
+
+    @Override
+    public void recordFailure(String key) {
+        long now = System.currentTimeMillis();
+        AtomicLongArray slots = counters.get(key);
+        if (slots == null) {
+            if (counters.size() >= maxKeys) {
+                purgeIdle(now);
+                if (counters.size() >= maxKeys) {
+                    return;
+                }
+            }
+            slots = counters.computeIfAbsent(key, k -> new AtomicLongArray(SLOTS));
+        }
+
+        long epoch = now / slotMillis;
+        int index = (int) Math.floorMod(epoch, (long) SLOTS);
+        while (true) {
+            long slot = slots.get(index);
+            long count = slotEpoch(slot) == epoch ? Math.min(slotCount(slot) + 1, COUNT_MASK) : 1;
+            if (slots.compareAndSet(index, slot, pack(epoch, count))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int getFailures(String key) {
+        AtomicLongArray slots = counters.get(key);
+        return slots == null ? 0 : sum(slots, System.currentTimeMillis() / slotMillis);
+    }
+
+    @Override
+    public void reset(String key) {
+        counters.remove(key);
+    }
+
+    @Override
+    public boolean isSaturated() {
+        if (counters.size() < maxKeys) {
+            return false;
+        }
+        purgeIdle(System.currentTimeMillis());
+        return counters.size() >= maxKeys;
+    }
+
+    @Override
+    public int size() {
+        return counters.size();
+    }
+
+    @Override
+    public void clear() {
+        counters.clear();
+    }
+
+    private void purgeIdle(long now) {
+        long last = lastPurge.get();
+        if (now - last < PURGE_INTERVAL || !lastPurge.compareAndSet(last, now)) {
+            return;
+        }
+        long epoch = now / slotMillis;
+        counters.values().removeIf(slots -> sum(slots, epoch) == 0);
+    }
+
+    private static int sum(AtomicLongArray slots, long epoch) {
+        long failures = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long slot = slots.get(i);
+            if (epoch - slotEpoch(slot) < SLOTS) {
+                failures += slotCount(slot);
+            }
+        }
+        return (int) Math.min(failures, Integer.MAX_VALUE);
+    }
+
+    private static long pack(long epoch, long count) {
+        return (epoch << COUNT_BITS) | count;
+    }
+
+    private static long slotEpoch(long slot) {
+        return slot >>> COUNT_BITS;
+    }
+
+    private static long slotCount(long slot) {
+        return slot & COUNT_MASK;
+    }
+
+}
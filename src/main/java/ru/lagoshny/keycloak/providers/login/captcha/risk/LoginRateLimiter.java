@@ -0,0 +1,190 @@
+package ru.lagoshny.keycloak.providers.login.captcha.risk;
+
+import org.apache.commons.lang3.StringUtils;
+import org.keycloak.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket rate limiter of login submits per IP address and per username submitted from an IP address.
+ * <p>
+ * It runs before captcha verification and password validation, so a flood of logins without or with garbage
+ * captcha tokens costs neither captcha api calls nor password hashing. Username buckets are kept per IP address,
+ * so logins that name a victim's username from other addresses can not lock the victim out.
+ * Both limits are disabled by default.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} with the time the bucket gets full again (GCRA form of the token bucket),
+ * so acquiring is a lock-free CAS without allocations. Number of tracked keys is bounded: idle keys, which buckets
+ * are full again, are purged, and when the limiter is still full new keys share one overflow bucket per limit,
+ * so an attacker that sprays addresses or usernames is limited as a single client.
+ */
+public class LoginRateLimiter {
+
+    private final static Logger logger = LoggerFactory.getLogger(LoginRateLimiter.class);
+
+    public static final String SPI_RATE_LIMIT_IP_RATE = "rateLimitIpRate";
+
+    public static final String SPI_RATE_LIMIT_IP_BURST = "rateLimitIpBurst";
+
+    public static final String SPI_RATE_LIMIT_USERNAME_RATE = "rateLimitUsernameRate";
+
+    public static final String SPI_RATE_LIMIT_USERNAME_BURST = "rateLimitUsernameBurst";
+
+    public static final String SPI_RATE_LIMIT_MAX_KEYS = "rateLimitMaxKeys";
+
+    public static final String LIMIT_IP = "ip";
+
+    public static final String LIMIT_USERNAME = "username";
+
+    private static final int DEFAULT_IP_RATE = 0;
+
+    private static final int DEFAULT_IP_BURST = 30;
+
+    private static final int DEFAULT_USERNAME_RATE = 0;
+
+    private static final int DEFAULT_USERNAME_BURST = 5;
+
+    private static final int DEFAULT_MAX_KEYS = 100_000;
+
+    private static final long PURGE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    private final Limit ipLimit;
+
+    private final Limit usernameLimit;
+
+    private final int maxKeys;
+
+    private final LongSupplier nanoTime;
+
+    private final AtomicLong lastPurge;
+
+    public LoginRateLimiter(Config.Scope config) {
+        this(config, System::nanoTime);
+    }
+
+    LoginRateLimiter(Config.Scope config, LongSupplier nanoTime) {
+        this.ipLimit = new Limit(config.getInt(SPI_RATE_LIMIT_IP_RATE, DEFAULT_IP_RATE),
+                config.getInt(SPI_RATE_LIMIT_IP_BURST, DEFAULT_IP_BURST));
+        this.usernameLimit = new Limit(config.getInt(SPI_RATE_LIMIT_USERNAME_RATE, DEFAULT_USERNAME_RATE),
+                config.getInt(SPI_RATE_LIMIT_USERNAME_BURST, DEFAULT_USERNAME_BURST));
+        this.maxKeys = config.getInt(SPI_RATE_LIMIT_MAX_KEYS, DEFAULT_MAX_KEYS);
+        this.nanoTime = nanoTime;
+        this.lastPurge = new AtomicLong(nanoTime.getAsLong());
+    }
+
+    /**
+     * Takes a login submit from the buckets of the IP address and the username submitted from the IP address.
+     *
+     * @param username username of the submitted login form, {@code null} if it is not submitted
+     * @return exceeded limit, {@link #LIMIT_IP} or {@link #LIMIT_USERNAME}, {@code null} if the login is allowed
+     */
+    public String tryAcquire(String realmId, String remoteAddr, String username) {
+        long now = nanoTime.getAsLong();
+        if (ipLimit.isEnabled() && !ipLimit.tryAcquire(bucket(AdaptiveCaptchaPolicy.ipKey(realmId, remoteAddr), ipLimit, now), now)) {
+            return LIMIT_IP;
+        }
+        if (usernameLimit.isEnabled() && StringUtils.isNotBlank(username)
+                && !usernameLimit.tryAcquire(bucket(usernameKey(realmId, remoteAddr, username), usernameLimit, now), now)) {
+            return LIMIT_USERNAME;
+        }
+        return null;
+    }
+
+    /**
+     * @return number of tracked keys
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Forgets all buckets.
+     */
+    public void clear() {
+        buckets.clear();
+    }
+
+    private static String usernameKey(String realmId, String remoteAddr, String username) {
+        return AdaptiveCaptchaPolicy.usernameKey(realmId, username) + ":ip:" + remoteAddr;
+    }
+
+    private AtomicLong bucket(String key, Limit limit, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxKeys) {
+            purgeIdle(now);
+            if (buckets.size() >= maxKeys) {
+                logger.debug("Login rate limiter is full, key shares the overflow bucket");
+                return limit.overflow;
+            }
+        }
+        return buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+    }
+
+    private void purgeIdle(long now) {
+        long last = lastPurge.get();
+        if (now - last < PURGE_INTERVAL || !lastPurge.compareAndSet(last, now)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> isFull(bucket.get(), now));
+    }
+
+    /**
+     * @param fullAt time the bucket gets full again, {@link Long#MIN_VALUE} for a new bucket
+     */
+    private static boolean isFull(long fullAt, long now) {
+        return fullAt == Long.MIN_VALUE || fullAt - now <= 0;
+    }
+
+    private static class Limit {
+
+        /**
+         * Time to refill one login.
+         */
+        private final long interval;
+
+        /**
+         * How far the bucket full time can be ahead of now, it is what allows bursts.
+         */
+        private final long tolerance;
+
+        private final AtomicLong overflow = new AtomicLong(Long.MIN_VALUE);
+
+        /**
+         * @param rate  logins per minute, not positive to disable the limit
+         * @param burst logins allowed at once
+         */
+        Limit(int rate, int burst) {
+            this.interval = rate > 0 ? TimeUnit.MINUTES.toNanos(1) / rate : 0;
+            this.tolerance = interval * (Math.max(1, burst) - 1);
+        }
+
+        boolean isEnabled() {
+            return interval > 0;
+        }
+
+        boolean tryAcquire(AtomicLong bucket, long now) {
+            while (true) {
+                long fullAt = bucket.get();
+                long start = isFull(fullAt, now) ? now : fullAt;
+                if (start - now > tolerance) {
+                    return false;
+                }
+                if (bucket.compareAndSet(fullAt, start + interval)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+}
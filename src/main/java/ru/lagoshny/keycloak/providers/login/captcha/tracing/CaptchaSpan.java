@@ -0,0 +1,145 @@
+package ru.lagoshny.keycloak.providers.login.captcha.tracing;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timed operation of the captcha login: captcha render, verification or captcha api call.
+ * <p>
+ * Span is started by {@link CaptchaTracer#startSpan(String)} and becomes the current span of the thread until it is
+ * closed, so spans started meanwhile are its children. Closed span is passed to the {@link CaptchaSpanExporter}.
+ * Trace and span ids follow the W3C trace context, so spans can be joined with the traces of the reverse proxy
+ * and the captcha api.
+ * <p>
+ * When tracing is disabled the tracer returns {@link #NOOP} span that records nothing.
+ */
+public class CaptchaSpan implements AutoCloseable {
+
+    /**
+     * Span of the disabled tracer.
+     */
+    public static final CaptchaSpan NOOP = new CaptchaSpan(null, null, null, null, null, null);
+
+    /**
+     * {@code null} if the span is not recorded.
+     */
+    private final CaptchaTracer tracer;
+
+    private final String name;
+
+    private final String traceId;
+
+    private final String spanId;
+
+    /**
+     * {@code null} for the root span.
+     */
+    private final String parentSpanId;
+
+    /**
+     * Current span of the thread before this span has started, it is restored when this span is closed.
+     */
+    private final CaptchaSpan previous;
+
+    private final long startTimeMillis;
+
+    private final long startNanos;
+
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+
+    private long durationNanos = -1;
+
+    CaptchaSpan(CaptchaTracer tracer, String name, String traceId, String spanId, String parentSpanId,
+                CaptchaSpan previous) {
+        this.tracer = tracer;
+        this.name = name;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.previous = previous;
+        this.startTimeMillis = tracer == null ? 0 : System.currentTimeMillis();
+        this.startNanos = tracer == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * @return {@code true} if the span is exported when it is closed
+     */
+    public boolean isRecording() {
+        return tracer != null;
+    }
+
+    /**
+     * Sets the attribute, it is ignored if the span is not recorded or already closed.
+     */
+    public CaptchaSpan setAttribute(String key, Object value) {
+        if (tracer != null && durationNanos < 0) {
+            attributes.put(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * @return W3C {@code traceparent} header value that makes the receiver's spans children of this span
+     */
+    public String getTraceparent() {
+        return "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    /**
+     * Ends the span and restores the current span of the thread, the span is closed only once.
+     */
+    @Override
+    public void close() {
+        if (tracer == null || durationNanos >= 0) {
+            return;
+        }
+        durationNanos = System.nanoTime() - startNanos;
+        tracer.end(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return parent span id, {@code null} for the root span
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * @return span duration in nanoseconds, {@code -1} until the span is closed
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    CaptchaSpan getPrevious() {
+        return previous;
+    }
+
+    @Override
+    public String toString() {
+        return name + " trace=" + traceId + " span=" + spanId + " parent=" + parentSpanId
+                + " duration=" + durationNanos / 1000 + "us " + attributes;
+    }
+
+}
@@ -0,0 +1,22 @@
+package ru.lagoshny.keycloak.providers.login.captcha.tracing;
+
+import org.keycloak.provider.Provider;
+
+/**
+ * Receives closed captcha spans, e.g. to send them to a tracing backend.
+ * <p>
+ * Spans are exported on the login and verification threads, so the exporter must be thread safe and must not block:
+ * a slow backend should be called in background.
+ */
+public interface CaptchaSpanExporter extends Provider {
+
+    /**
+     * @param span closed span
+     */
+    void export(CaptchaSpan span);
+
+    @Override
+    default void close() {
+    }
+
+}
@@ -0,0 +1,37 @@
+package ru.lagoshny.keycloak.providers.login.captcha.tracing;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Factory of the captcha span exporter, its id is the value of the {@link CaptchaTracer#SPI_SPAN_EXPORTER} option.
+ * <p>
+ * Factory is initialized once per keycloak server, the exporter it creates is shared by all logins.
+ */
+public interface CaptchaSpanExporterFactory extends ProviderFactory<CaptchaSpanExporter> {
+
+    /**
+     * @return thread safe exporter shared by all logins
+     */
+    CaptchaSpanExporter getSpanExporter();
+
+    @Override
+    default CaptchaSpanExporter create(KeycloakSession session) {
+        return getSpanExporter();
+    }
+
+    @Override
+    default void init(Config.Scope config) {
+    }
+
+    @Override
+    default void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    default void close() {
+    }
+
+}
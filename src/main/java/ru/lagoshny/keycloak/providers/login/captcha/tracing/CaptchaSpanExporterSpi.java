@@ -0,0 +1,39 @@
+package ru.lagoshny.keycloak.providers.login.captcha.tracing;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+/**
+ * Keycloak SPI of captcha span exporters.
+ * <p>
+ * An exporter is added by a {@link CaptchaSpanExporterFactory} registered in
+ * {@code META-INF/services/ru.lagoshny.keycloak.providers.login.captcha.tracing.CaptchaSpanExporterFactory}
+ * of any jar in the keycloak providers folder, e.g. the one that bridges spans to OpenTelemetry. Factory options
+ * are passed as {@code --spi-captcha-span-exporter-<factory id>-<option>}.
+ */
+public class CaptchaSpanExporterSpi implements Spi {
+
+    public static final String SPI_NAME = "captcha-span-exporter";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return SPI_NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return CaptchaSpanExporter.class;
+    }
+
+    @Override
+    public Class<? extends ProviderFactory<CaptchaSpanExporter>> getProviderFactoryClass() {
+        return CaptchaSpanExporterFactory.class;
+    }
+
+}
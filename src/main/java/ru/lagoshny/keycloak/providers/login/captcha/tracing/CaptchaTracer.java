@@ -0,0 +1,211 @@
+package ru.lagoshny.keycloak.providers.login.captcha.tracing;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import static org.keycloak.utils.StringUtil.isBlank;
+
+/**
+ * Starts {@link CaptchaSpan spans} of the captcha login and passes the closed ones to the configured
+ * {@link CaptchaSpanExporter}.
+ * <p>
+ * Exporter is chosen by the {@code spanExporter} authenticator SPI option, e.g.
+ * {@code --spi-authenticator-captcha-login-form-span-exporter=log}, as the id of the factory registered in
+ * {@link CaptchaSpanExporterSpi}. Tracing is disabled when the option is not set, then every span is
+ * {@link CaptchaSpan#NOOP} and tracing costs a volatile read per span.
+ * <p>
+ * The current span is kept per thread, so verifications submitted to other threads carry it via {@link #wrap(Supplier)}.
+ */
+public class CaptchaTracer {
+
+    private final static Logger logger = LoggerFactory.getLogger(CaptchaTracer.class);
+
+    public static final String SPI_SPAN_EXPORTER = "spanExporter";
+
+    /**
+     * W3C trace context header, continued from the login request and sent with captcha api requests.
+     */
+    public static final String TRACEPARENT_HEADER = "traceparent";
+
+    public static final String SPAN_RENDER = "captcha.render";
+
+    public static final String SPAN_VERIFY = "captcha.verify";
+
+    public static final String SPAN_CREDENTIALS = "captcha.credentials";
+
+    public static final String SPAN_HTTP = "captcha.http";
+
+    public static final String ATTRIBUTE_PROVIDER = "captcha.provider";
+
+    public static final String ATTRIBUTE_RENDERED = "captcha.rendered";
+
+    public static final String ATTRIBUTE_OUTCOME = "captcha.outcome";
+
+    public static final String ATTRIBUTE_HEDGE = "captcha.hedge";
+
+    public static final String ATTRIBUTE_CREDENTIALS_VALID = "captcha.credentials_valid";
+
+    public static final String ATTRIBUTE_HTTP_STATUS = "http.status_code";
+
+    public static final String ATTRIBUTE_ERROR = "error";
+
+    private static final int TRACEPARENT_LENGTH = 55;
+
+    private static final String INVALID_TRACE_ID = "00000000000000000000000000000000";
+
+    private static final String INVALID_SPAN_ID = "0000000000000000";
+
+    /**
+     * Id of the exporter factory, {@code null} if tracing is disabled.
+     */
+    private final String exporterId;
+
+    /**
+     * {@code null} while tracing is disabled.
+     */
+    private volatile CaptchaSpanExporter exporter;
+
+    private final ThreadLocal<CaptchaSpan> currentSpan = new ThreadLocal<>();
+
+    /**
+     * @param config authenticator SPI config scope
+     */
+    public CaptchaTracer(Config.Scope config) {
+        String exporterId = config.get(SPI_SPAN_EXPORTER);
+        this.exporterId = isBlank(exporterId) ? null : exporterId;
+    }
+
+    /**
+     * Looks up the configured exporter, tracing stays disabled if it is not registered.
+     */
+    public void start(KeycloakSessionFactory sessionFactory) {
+        if (exporterId == null) {
+            return;
+        }
+        CaptchaSpanExporterFactory exporterFactory = (CaptchaSpanExporterFactory)
+                sessionFactory.getProviderFactory(CaptchaSpanExporter.class, exporterId);
+        if (exporterFactory == null) {
+            logger.error("Captcha span exporter '{}' is not registered, captcha tracing is disabled", exporterId);
+            return;
+        }
+        logger.info("Captcha spans are exported by '{}'", exporterId);
+        setExporter(exporterFactory.getSpanExporter());
+    }
+
+    /**
+     * @param exporter exporter of closed spans, {@code null} to disable tracing
+     */
+    public void setExporter(CaptchaSpanExporter exporter) {
+        this.exporter = exporter;
+    }
+
+    public boolean isEnabled() {
+        return exporter != null;
+    }
+
+    /**
+     * Starts the child span of the current span of the thread, or the root span when the thread has no current span.
+     * The span must be closed by the same thread, e.g. by try-with-resources.
+     */
+    public CaptchaSpan startSpan(String name) {
+        return startSpan(name, null);
+    }
+
+    /**
+     * Starts the child span of the current span of the thread, or continues the passed remote trace
+     * when the thread has no current span.
+     *
+     * @param traceparent W3C {@code traceparent} header of the incoming request, {@code null} if it is not sent
+     */
+    public CaptchaSpan startSpan(String name, String traceparent) {
+        if (exporter == null) {
+            return CaptchaSpan.NOOP;
+        }
+        CaptchaSpan parent = currentSpan.get();
+        String traceId;
+        String parentSpanId;
+        if (parent != null) {
+            traceId = parent.getTraceId();
+            parentSpanId = parent.getSpanId();
+        } else if (isValidTraceparent(traceparent)) {
+            traceId = traceparent.substring(3, 35);
+            parentSpanId = traceparent.substring(36, 52);
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            traceId = hex(random.nextLong()) + hex(random.nextLong());
+            parentSpanId = null;
+        }
+        CaptchaSpan span = new CaptchaSpan(this, name, traceId, hex(ThreadLocalRandom.current().nextLong()),
+                parentSpanId, parent);
+        currentSpan.set(span);
+        return span;
+    }
+
+    /**
+     * @return verification that runs with the current span of the calling thread, so its spans are children of it
+     */
+    public <T> Supplier<T> wrap(Supplier<T> supplier) {
+        CaptchaSpan parent = currentSpan.get();
+        if (parent == null) {
+            return supplier;
+        }
+        return () -> {
+            CaptchaSpan previous = currentSpan.get();
+            currentSpan.set(parent);
+            try {
+                return supplier.get();
+            } finally {
+                restore(previous);
+            }
+        };
+    }
+
+    void end(CaptchaSpan span) {
+        restore(span.getPrevious());
+        CaptchaSpanExporter exporter = this.exporter;
+        if (exporter == null) {
+            return;
+        }
+        try {
+            exporter.export(span);
+        } catch (RuntimeException e) {
+            logger.debug("Failed to export captcha span {}: {}", span.getName(), e.toString());
+        }
+    }
+
+    private void restore(CaptchaSpan previous) {
+        if (previous == null) {
+            currentSpan.remove();
+        } else {
+            currentSpan.set(previous);
+        }
+    }
+
+    /**
+     * Checks {@code 00-<trace id>-<parent span id>-<flags>} traceparent of the version 00.
+     */
+    private static boolean isValidTraceparent(String traceparent) {
+        if (traceparent == null || traceparent.length() != TRACEPARENT_LENGTH || !traceparent.startsWith("00-")
+                || traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-') {
+            return false;
+        }
+        for (int i = 3; i < TRACEPARENT_LENGTH; i++) {
+            char c = traceparent.charAt(i);
+            if (i != 35 && i != 52 && !(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return !traceparent.startsWith(INVALID_TRACE_ID, 3) && !traceparent.startsWith(INVALID_SPAN_ID, 36);
+    }
+
+    private static String hex(long value) {
+        String hex = Long.toHexString(value);
+        return hex.length() == 16 ? hex : "0".repeat(16 - hex.length()) + hex;
+    }
+
+}
@@ -0,0 +1,76 @@
+package ru.lagoshny.keycloak.providers.login.captcha.tracing;
+
+import org.keycloak.Config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Exporter that keeps the last closed spans in memory, e.g. to check spans in tests or to look at them in a debugger.
+ * <p>
+ * Number of kept spans is set by {@code --spi-captcha-span-exporter-in-memory-max-spans=1000}.
+ */
+public class InMemoryCaptchaSpanExporterFactory implements CaptchaSpanExporterFactory {
+
+    public static final String PROVIDER_ID = "in-memory";
+
+    public static final String SPI_MAX_SPANS = "maxSpans";
+
+    private static final int DEFAULT_MAX_SPANS = 1000;
+
+    private InMemoryCaptchaSpanExporter spanExporter = new InMemoryCaptchaSpanExporter(DEFAULT_MAX_SPANS);
+
+    @Override
+    public void init(Config.Scope config) {
+        this.spanExporter = new InMemoryCaptchaSpanExporter(config.getInt(SPI_MAX_SPANS, DEFAULT_MAX_SPANS));
+    }
+
+    @Override
+    public InMemoryCaptchaSpanExporter getSpanExporter() {
+        return spanExporter;
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    /**
+     * Keeps the last spans, the oldest span is dropped when the limit is reached.
+     */
+    public static class InMemoryCaptchaSpanExporter implements CaptchaSpanExporter {
+
+        private final int maxSpans;
+
+        private final Deque<CaptchaSpan> spans = new ArrayDeque<>();
+
+        public InMemoryCaptchaSpanExporter(int maxSpans) {
+            this.maxSpans = maxSpans;
+        }
+
+        @Override
+        public synchronized void export(CaptchaSpan span) {
+            if (maxSpans <= 0) {
+                return;
+            }
+            if (spans.size() == maxSpans) {
+                spans.removeFirst();
+            }
+            spans.addLast(span);
+        }
+
+        /**
+         * @return kept spans in the order they were closed
+         */
+        public synchronized List<CaptchaSpan> getFinishedSpans() {
+            return new ArrayList<>(spans);
+        }
+
+        public synchronized void reset() {
+            spans.clear();
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package ru.lagoshny.keycloak.providers.login.captcha.tracing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exporter that writes closed spans to the server log on info level, one line per span.
+ */
+public class LoggingCaptchaSpanExporterFactory implements CaptchaSpanExporterFactory {
+
+    private final static Logger logger = LoggerFactory.getLogger(LoggingCaptchaSpanExporterFactory.class);
+
+    public static final String PROVIDER_ID = "log";
+
+    private final CaptchaSpanExporter spanExporter = span -> logger.info("Captcha span {}", span);
+
+    @Override
+    public CaptchaSpanExporter getSpanExporter() {
+        return spanExporter;
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+}
@@ -11,21 +11,16 @@ public class ConfigUtils {
 
     /**
      * @param context execution {@link AuthenticationFlowContext}
-     * @param key configuration param key
-     * @return configuration param value
+     * @return authenticator configuration
      */
-    public static String getConfigVal(AuthenticationFlowContext context, String key) {
+    public static AuthenticatorConfigModel getConfig(AuthenticationFlowContext context) {
         if (context == null
                 || context.getAuthenticatorConfig() == null
                 || context.getAuthenticatorConfig().getConfig() == null) {
             throw new IllegalArgumentException("Passed context does not have configuration params, please configure it");
         }
 
-        if (!context.getAuthenticatorConfig().getConfig().containsKey(key)) {
-            throw new IllegalArgumentException("Config error: by key=" + key + " not found any value!");
-        }
-
-        return context.getAuthenticatorConfig().getConfig().get(key);
+        return context.getAuthenticatorConfig();
     }
 
 }
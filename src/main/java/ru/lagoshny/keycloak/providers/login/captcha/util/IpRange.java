@@ -0,0 +1,146 @@
+package ru.lagoshny.keycloak.providers.login.captcha.util;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * IPv4 or IPv6 address range in CIDR notation, e.g. {@code 10.0.0.0/8}. Single address is a range with full prefix.
+ */
+public final class IpRange {
+
+    private final byte[] network;
+
+    private final int prefixLength;
+
+    private IpRange(byte[] network, int prefixLength) {
+        this.network = network;
+        this.prefixLength = prefixLength;
+    }
+
+    /**
+     * @param cidr address range in CIDR notation or single address, only literal addresses are supported
+     * @throws IllegalArgumentException if the passed value is not a valid address range
+     */
+    public static IpRange parse(String cidr) {
+        String value = cidr.trim();
+        int slash = value.indexOf('/');
+        String address = slash < 0 ? value : value.substring(0, slash);
+        if (!isLiteralAddress(address)) {
+            throw new IllegalArgumentException("Invalid IP address range: " + cidr);
+        }
+        try {
+            byte[] bytes = InetAddress.getByName(address).getAddress();
+            int prefixLength = slash < 0 ? bytes.length * 8 : Integer.parseInt(value.substring(slash + 1));
+            if (prefixLength < 0 || prefixLength > bytes.length * 8) {
+                throw new IllegalArgumentException("Invalid IP address range prefix: " + cidr);
+            }
+            return new IpRange(bytes, prefixLength);
+        } catch (UnknownHostException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid IP address range: " + cidr, e);
+        }
+    }
+
+    /**
+     * @param value address ranges separated by comma, whitespace or keycloak multivalued config delimiter
+     */
+    public static List<IpRange> parseList(String value) {
+        if (StringUtils.isBlank(value)) {
+            return List.of();
+        }
+        return Arrays.stream(value.split("##|[,\\s]+"))
+                .filter(StringUtils::isNotBlank)
+                .map(IpRange::parse)
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    /**
+     * @param address literal IP address
+     * @return {@code true} if the address belongs to the range, {@code false} if it does not or it is not a literal address
+     */
+    public boolean contains(String address) {
+        if (!isLiteralAddress(address)) {
+            return false;
+        }
+        try {
+            return contains(InetAddress.getByName(address).getAddress());
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    public boolean contains(byte[] address) {
+        if (address.length != network.length) {
+            return false;
+        }
+        int fullBytes = prefixLength / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (address[i] != network[i]) {
+                return false;
+            }
+        }
+        int remainingBits = prefixLength % 8;
+        if (remainingBits == 0) {
+            return true;
+        }
+        int mask = 0xFF << (8 - remainingBits);
+        return (address[fullBytes] & mask) == (network[fullBytes] & mask);
+    }
+
+    /**
+     * @param address literal client address
+     * @return network the client keeps when its address changes within the provider network, /24 for IPv4
+     * and /48 for IPv6, the passed value if it is not a literal address
+     */
+    public static String clientNetwork(String address) {
+        if (!isLiteralAddress(address)) {
+            return address;
+        }
+        int lastDot = address.lastIndexOf('.');
+        if (address.indexOf(':') < 0 && lastDot > 0) {
+            // IPv4 network is cut from the address text without parsing
+            return address.substring(0, lastDot) + ".0";
+        }
+        try {
+            byte[] bytes = InetAddress.getByName(address).getAddress();
+            Arrays.fill(bytes, bytes.length == 4 ? 3 : 6, bytes.length, (byte) 0);
+            return InetAddress.getByAddress(bytes).getHostAddress();
+        } catch (UnknownHostException e) {
+            return address;
+        }
+    }
+
+    /**
+     * Prevents DNS lookups, {@link InetAddress#getByName(String)} resolves host names.
+     */
+    private static boolean isLiteralAddress(String address) {
+        return StringUtils.isNotBlank(address) && StringUtils.containsOnly(address.toLowerCase(), "0123456789abcdef.:");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IpRange ipRange = (IpRange) o;
+        return prefixLength == ipRange.prefixLength && Arrays.equals(network, ipRange.network);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(Arrays.hashCode(network), prefixLength);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return InetAddress.getByAddress(network).getHostAddress() + "/" + prefixLength;
+        } catch (UnknownHostException e) {
+            return Arrays.toString(network) + "/" + prefixLength;
+        }
+    }
+}
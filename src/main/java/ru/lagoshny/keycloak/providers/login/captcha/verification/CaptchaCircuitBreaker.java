@@ -0,0 +1,286 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker of the single captcha api: the captcha provider and its validation url, so realms that validate
+ * tokens of the same provider at different urls, e.g. at a self-hosted proxy, do not open circuits of each other.
+ * <p>
+ * It tracks outcomes and latencies of captcha validation requests in a rolling time window.
+ * When error rate or slow call rate in the window reaches the threshold, circuit is opened and requests
+ * to the captcha api are not performed until open duration passes. After that a few half-open probe requests
+ * are let through: if all of them succeed circuit is closed, otherwise it is opened again.
+ */
+public class CaptchaCircuitBreaker {
+
+    private final static Logger logger = LoggerFactory.getLogger(CaptchaCircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String providerName;
+
+    private final String validateUrl;
+
+    private final CaptchaCircuitBreakerConfig config;
+
+    /**
+     * Rolling window buckets, each bucket covers {@code windowNanos / buckets.length} time.
+     */
+    private final Bucket[] buckets;
+
+    private final long bucketNanos;
+
+    private final LongSupplier nanoTime;
+
+    private State state = State.CLOSED;
+
+    private long openedAt;
+
+    private int halfOpenPermits;
+
+    private int halfOpenSuccesses;
+
+    public CaptchaCircuitBreaker(String providerName, String validateUrl, CaptchaCircuitBreakerConfig config) {
+        this(providerName, validateUrl, config, System::nanoTime);
+    }
+
+    CaptchaCircuitBreaker(String providerName, String validateUrl, CaptchaCircuitBreakerConfig config,
+                          LongSupplier nanoTime) {
+        this.providerName = providerName;
+        this.validateUrl = validateUrl;
+        this.config = config;
+        this.buckets = new Bucket[config.getWindowBuckets()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.bucketNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(config.getWindow()) / buckets.length);
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * @return {@code true} if request to the captcha api is permitted, {@code false} when circuit is open
+     */
+    public synchronized boolean tryAcquire() {
+        long now = nanoTime.getAsLong();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt < TimeUnit.MILLISECONDS.toNanos(config.getOpenDuration())) {
+                    return false;
+                }
+                transitionTo(State.HALF_OPEN, now);
+                return acquireProbe();
+            case HALF_OPEN:
+            default:
+                return acquireProbe();
+        }
+    }
+
+    private boolean acquireProbe() {
+        if (halfOpenPermits <= 0) {
+            return false;
+        }
+        halfOpenPermits--;
+        return true;
+    }
+
+    /**
+     * Records result of the permitted request to the captcha api.
+     *
+     * @param verdict        verdict of the captcha validation request
+     * @param durationNanos  duration of the captcha validation request
+     */
+    public synchronized void record(CaptchaVerdict verdict, long durationNanos) {
+        long now = nanoTime.getAsLong();
+        boolean failed = isFailure(verdict);
+        boolean slow = durationNanos > TimeUnit.MILLISECONDS.toNanos(config.getSlowCallDuration());
+
+        if (state == State.HALF_OPEN) {
+            if (failed || slow) {
+                transitionTo(State.OPEN, now);
+            } else if (++halfOpenSuccesses >= config.getHalfOpenProbes()) {
+                transitionTo(State.CLOSED, now);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // result of the request permitted before circuit was opened
+            return;
+        }
+
+        Bucket bucket = currentBucket(now);
+        bucket.calls++;
+        bucket.durationNanos += durationNanos;
+        if (failed) {
+            bucket.failures++;
+        }
+        if (slow) {
+            bucket.slowCalls++;
+        }
+
+        WindowStats stats = windowStats(now);
+        if (stats.calls >= config.getMinCalls()
+                && (stats.failures * 100 >= stats.calls * config.getFailureRateThreshold()
+                || stats.slowCalls * 100 >= stats.calls * config.getSlowCallRateThreshold())) {
+            logger.warn("Captcha provider {} circuit of {} is opened: calls={}, failures={}, slowCalls={}",
+                    providerName, validateUrl, stats.calls, stats.failures, stats.slowCalls);
+            transitionTo(State.OPEN, now);
+        }
+    }
+
+    /**
+     * @return statistics of captcha validation requests in the rolling window, empty after the circuit is closed
+     */
+    public synchronized WindowStats getWindowStats() {
+        return windowStats(nanoTime.getAsLong());
+    }
+
+    private WindowStats windowStats(long now) {
+        WindowStats stats = new WindowStats();
+        long windowStart = now / bucketNanos - buckets.length;
+        for (Bucket bucket : buckets) {
+            if (bucket.epoch > windowStart) {
+                stats.calls += bucket.calls;
+                stats.failures += bucket.failures;
+                stats.slowCalls += bucket.slowCalls;
+                stats.durationNanos += bucket.durationNanos;
+            }
+        }
+        return stats;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return {@code true} if {@link #tryAcquire()} permits a request now: circuit is closed, or it has probe permits
+     * left, or its open duration has passed. The permit is not taken
+     */
+    public synchronized boolean isPermitting() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return nanoTime.getAsLong() - openedAt >= TimeUnit.MILLISECONDS.toNanos(config.getOpenDuration());
+            case HALF_OPEN:
+            default:
+                return halfOpenPermits > 0;
+        }
+    }
+
+    public String getProviderName() {
+        return providerName;
+    }
+
+    public String getValidateUrl() {
+        return validateUrl;
+    }
+
+    private Bucket currentBucket(long now) {
+        long epoch = now / bucketNanos;
+        Bucket bucket = buckets[(int) Math.floorMod(epoch, (long) buckets.length)];
+        if (bucket.epoch != epoch) {
+            bucket.reset(epoch);
+        }
+        return bucket;
+    }
+
+    private void transitionTo(State newState, long now) {
+        if (state != newState) {
+            logger.info("Captcha provider {} circuit of {} state changed: {} -> {}", providerName, validateUrl,
+                    state, newState);
+        }
+        state = newState;
+        switch (newState) {
+            case OPEN:
+                openedAt = now;
+                break;
+            case HALF_OPEN:
+                halfOpenPermits = config.getHalfOpenProbes();
+                halfOpenSuccesses = 0;
+                break;
+            case CLOSED:
+            default:
+                for (Bucket bucket : buckets) {
+                    bucket.reset(0);
+                }
+                break;
+        }
+    }
+
+    private static boolean isFailure(CaptchaVerdict verdict) {
+        return verdict.getOutcome() == CaptchaVerdict.Outcome.PROVIDER_ERROR
+                || verdict.getOutcome() == CaptchaVerdict.Outcome.TIMEOUT;
+    }
+
+    /**
+     * Captcha validation requests statistics of the rolling window.
+     */
+    public static final class WindowStats {
+
+        private long calls;
+
+        private long failures;
+
+        private long slowCalls;
+
+        private long durationNanos;
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getSlowCalls() {
+            return slowCalls;
+        }
+
+        /**
+         * @return failed calls fraction from {@code 0} to {@code 1}, {@code 0} if there are no calls
+         */
+        public double getFailureRate() {
+            return calls == 0 ? 0 : (double) failures / calls;
+        }
+
+        /**
+         * @return mean call duration in nanoseconds, {@code 0} if there are no calls
+         */
+        public long getMeanDurationNanos() {
+            return calls == 0 ? 0 : durationNanos / calls;
+        }
+    }
+
+    private static class Bucket {
+
+        private long epoch;
+
+        private long calls;
+
+        private long failures;
+
+        private long slowCalls;
+
+        private long durationNanos;
+
+        private void reset(long epoch) {
+            this.epoch = epoch;
+            this.calls = 0;
+            this.failures = 0;
+            this.slowCalls = 0;
+            this.durationNanos = 0;
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import org.keycloak.Config;
+
+/**
+ * Settings of {@link CaptchaCircuitBreaker}s read from the authenticator SPI config.
+ */
+public class CaptchaCircuitBreakerConfig {
+
+    public static final String SPI_CIRCUIT_BREAKER_WINDOW = "circuitBreakerWindow";
+
+    public static final String SPI_CIRCUIT_BREAKER_MIN_CALLS = "circuitBreakerMinCalls";
+
+    public static final String SPI_CIRCUIT_BREAKER_FAILURE_RATE = "circuitBreakerFailureRate";
+
+    public static final String SPI_CIRCUIT_BREAKER_SLOW_CALL_RATE = "circuitBreakerSlowCallRate";
+
+    public static final String SPI_CIRCUIT_BREAKER_SLOW_CALL_DURATION = "circuitBreakerSlowCallDuration";
+
+    public static final String SPI_CIRCUIT_BREAKER_OPEN_DURATION = "circuitBreakerOpenDuration";
+
+    public static final String SPI_CIRCUIT_BREAKER_HALF_OPEN_PROBES = "circuitBreakerHalfOpenProbes";
+
+    private static final int WINDOW_BUCKETS = 10;
+
+    /**
+     * Rolling window length in milliseconds.
+     */
+    private final long window;
+
+    /**
+     * Min calls in the window before error rates are evaluated.
+     */
+    private final int minCalls;
+
+    /**
+     * Percent of failed calls in the window that opens the circuit.
+     */
+    private final int failureRateThreshold;
+
+    /**
+     * Percent of slow calls in the window that opens the circuit.
+     */
+    private final int slowCallRateThreshold;
+
+    /**
+     * Duration in milliseconds after that a call is considered slow.
+     */
+    private final long slowCallDuration;
+
+    /**
+     * Duration in milliseconds while circuit stays open before half-open probes.
+     */
+    private final long openDuration;
+
+    /**
+     * Number of successful probe calls required to close the circuit.
+     */
+    private final int halfOpenProbes;
+
+    public CaptchaCircuitBreakerConfig(Config.Scope config) {
+        this.window = config.getLong(SPI_CIRCUIT_BREAKER_WINDOW, 10_000L);
+        this.minCalls = config.getInt(SPI_CIRCUIT_BREAKER_MIN_CALLS, 20);
+        this.failureRateThreshold = config.getInt(SPI_CIRCUIT_BREAKER_FAILURE_RATE, 50);
+        this.slowCallRateThreshold = config.getInt(SPI_CIRCUIT_BREAKER_SLOW_CALL_RATE, 80);
+        this.slowCallDuration = config.getLong(SPI_CIRCUIT_BREAKER_SLOW_CALL_DURATION, 1_500L);
+        this.openDuration = config.getLong(SPI_CIRCUIT_BREAKER_OPEN_DURATION, 30_000L);
+        this.halfOpenProbes = Math.max(1, config.getInt(SPI_CIRCUIT_BREAKER_HALF_OPEN_PROBES, 3));
+    }
+
+    public int getWindowBuckets() {
+        return WINDOW_BUCKETS;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public int getMinCalls() {
+        return minCalls;
+    }
+
+    public int getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public int getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    public long getSlowCallDuration() {
+        return slowCallDuration;
+    }
+
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    public int getHalfOpenProbes() {
+        return halfOpenProbes;
+    }
+}
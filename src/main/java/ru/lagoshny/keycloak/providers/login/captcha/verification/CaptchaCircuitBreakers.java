@@ -0,0 +1,70 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaProviderSettings;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Registry of {@link CaptchaCircuitBreaker}s, one per captcha provider and validation url.
+ */
+public class CaptchaCircuitBreakers {
+
+    private final CaptchaCircuitBreakerConfig config;
+
+    /**
+     * Circuit breakers by captcha provider name and validation url.
+     */
+    private final Map<String, CaptchaCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    public CaptchaCircuitBreakers(CaptchaCircuitBreakerConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Performs the verification if the captcha api circuit permits it.
+     *
+     * @param providerSettings settings of the captcha provider that verifies the token
+     * @param verification     starts captcha token verification
+     * @return future that completes with verdict of the verification, or {@link CaptchaVerdict#CIRCUIT_OPEN}
+     * immediately when the captcha api circuit is open
+     */
+    public CompletableFuture<CaptchaVerdict> execute(CaptchaProviderSettings providerSettings,
+                                                     Supplier<CompletableFuture<CaptchaVerdict>> verification) {
+        CaptchaCircuitBreaker circuitBreaker = get(providerSettings);
+        if (!circuitBreaker.tryAcquire()) {
+            return CompletableFuture.completedFuture(CaptchaVerdict.CIRCUIT_OPEN);
+        }
+
+        long start = System.nanoTime();
+        return verification.get().whenComplete((verdict, error) ->
+                circuitBreaker.record(error == null ? verdict : CaptchaVerdict.error(error), System.nanoTime() - start));
+    }
+
+    /**
+     * @return {@code true} if the captcha api circuit permits a call now, so captcha of the provider
+     * shown on the login page can be verified
+     */
+    public boolean isPermitting(CaptchaProviderSettings providerSettings) {
+        CaptchaCircuitBreaker circuitBreaker = circuitBreakers.get(key(providerSettings));
+        return circuitBreaker == null || circuitBreaker.isPermitting();
+    }
+
+    public CaptchaCircuitBreaker get(CaptchaProviderSettings providerSettings) {
+        return circuitBreakers.computeIfAbsent(key(providerSettings), key -> new CaptchaCircuitBreaker(
+                providerSettings.getCaptchaProviderName(), providerSettings.getValidateUrl(), config));
+    }
+
+    public Collection<CaptchaCircuitBreaker> getAll() {
+        return circuitBreakers.values();
+    }
+
+    private static String key(CaptchaProviderSettings providerSettings) {
+        return providerSettings.getCaptchaProviderName() + ' ' + providerSettings.getValidateUrl();
+    }
+
+}
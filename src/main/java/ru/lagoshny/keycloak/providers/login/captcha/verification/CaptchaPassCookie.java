@@ -0,0 +1,118 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import ru.lagoshny.keycloak.providers.login.captcha.util.IpRange;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Stateless signed cookie of the browser that has recently passed captcha, so the user who mistyped the password
+ * is not asked to solve captcha again and captcha api is not called for the next login of the same username.
+ * <p>
+ * Cookie value is {@code expiresAt.signature}, where the signature is HMAC-SHA256 of the realm id, the expiration time,
+ * the client network, the user agent and the attempted username keyed by the realm captcha server key. Cookie is checked
+ * without any store and its signature is compared in constant time, so it is not valid in another realm, from another
+ * network or browser, for another username, and the browser can not extend it.
+ */
+public class CaptchaPassCookie {
+
+    public static final String COOKIE_NAME = "KC_CAPTCHA_PASS";
+
+    /**
+     * Expiration time and base64url encoded HMAC-SHA256 signature.
+     */
+    private static final int MAX_COOKIE_LENGTH = 64;
+
+    private static final int MAX_EXPIRES_AT_LENGTH = 18;
+
+    private final ThreadLocal<Signer> signers = ThreadLocal.withInitial(Signer::new);
+
+    /**
+     * @param serverKey  realm captcha server key to sign the cookie with
+     * @param username   username of the login that has passed captcha, {@code null} if it is not submitted
+     * @param remoteAddr address of the client that has passed captcha
+     * @param userAgent  user agent of the browser that has passed captcha, {@code null} if it is not sent
+     * @param ttl        time in seconds the cookie is valid
+     * @return cookie value
+     */
+    public String issue(String serverKey, String realmId, String username, String remoteAddr, String userAgent, int ttl) {
+        long expiresAt = currentTime() + ttl;
+        return expiresAt + "." + signers.get().sign(serverKey, realmId, expiresAt, username, remoteAddr, userAgent);
+    }
+
+    /**
+     * @param cookie   cookie value sent by the browser, {@code null} if the browser has no cookie
+     * @param username attempted username of the login
+     * @return {@code true} if the cookie is signed by the server key for the realm, the username, the client network
+     * and the user agent and it is not expired
+     */
+    public boolean isValid(String cookie, String serverKey, String realmId, String username, String remoteAddr,
+                           String userAgent) {
+        if (cookie == null || cookie.length() > MAX_COOKIE_LENGTH) {
+            return false;
+        }
+        int dot = cookie.indexOf('.');
+        if (dot <= 0 || dot > MAX_EXPIRES_AT_LENGTH) {
+            return false;
+        }
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(cookie, 0, dot, 10);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (expiresAt < currentTime()) {
+            return false;
+        }
+        String signature = signers.get().sign(serverKey, realmId, expiresAt, username, remoteAddr, userAgent);
+        return MessageDigest.isEqual(signature.getBytes(StandardCharsets.US_ASCII),
+                cookie.substring(dot + 1).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static long currentTime() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * HMAC of the thread, it is re-keyed only when the server key changes.
+     */
+    private static class Signer {
+
+        private final Mac hmac;
+
+        private String hmacKey;
+
+        Signer() {
+            try {
+                this.hmac = Mac.getInstance("HmacSHA256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not supported", e);
+            }
+        }
+
+        String sign(String serverKey, String realmId, long expiresAt, String username, String remoteAddr,
+                    String userAgent) {
+            if (!serverKey.equals(hmacKey)) {
+                try {
+                    hmac.init(new SecretKeySpec(serverKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+                } catch (InvalidKeyException e) {
+                    throw new IllegalArgumentException("Invalid captcha server key", e);
+                }
+                hmacKey = serverKey;
+            }
+            // user agent has no line breaks, so the username that can have them goes last
+            String signed = realmId + '\n' + expiresAt + '\n' + IpRange.clientNetwork(remoteAddr) + '\n'
+                    + (userAgent == null ? "" : userAgent) + '\n'
+                    + (username == null ? "" : username.trim().toLowerCase(Locale.ROOT));
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(hmac.doFinal(signed.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+}
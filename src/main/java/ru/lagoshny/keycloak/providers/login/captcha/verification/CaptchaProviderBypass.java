@@ -0,0 +1,49 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Captcha providers bypassed by the admin during an incident, e.g. when the captcha api is down and the circuit
+ * breaker keeps probing it. Captcha of the bypassed provider is neither shown nor verified, so logins are validated
+ * by credentials only.
+ * <p>
+ * Bypass is kept in memory of the node until it is removed or the node is restarted.
+ */
+public class CaptchaProviderBypass {
+
+    private final static Logger logger = LoggerFactory.getLogger(CaptchaProviderBypass.class);
+
+    private final Set<String> bypassedProviders = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param providerName captcha provider name
+     */
+    public void bypass(String providerName) {
+        if (bypassedProviders.add(providerName)) {
+            logger.warn("Captcha provider {} is bypassed, its captcha is not verified", providerName);
+        }
+    }
+
+    /**
+     * @param providerName captcha provider name
+     */
+    public void restore(String providerName) {
+        if (bypassedProviders.remove(providerName)) {
+            logger.warn("Captcha provider {} bypass is removed", providerName);
+        }
+    }
+
+    public boolean isBypassed(String providerName) {
+        return !bypassedProviders.isEmpty() && bypassedProviders.contains(providerName);
+    }
+
+    public Set<String> getBypassedProviders() {
+        return new TreeSet<>(bypassedProviders);
+    }
+
+}
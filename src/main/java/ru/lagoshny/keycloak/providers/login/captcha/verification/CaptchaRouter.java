@@ -0,0 +1,106 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaProviderSettings;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaRoute;
+import ru.lagoshny.keycloak.providers.login.captcha.config.CaptchaSettings;
+import ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaFailurePolicy;
+import ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaRouting;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chooses captcha provider to show on the login page by {@link CaptchaRouting} of the realm
+ * and live statistics of {@link CaptchaCircuitBreakers}.
+ * <p>
+ * Provider which circuit does not permit calls, e.g. the half-open one whose probes are all taken, is skipped,
+ * so its captcha is not shown when its token can not be verified.
+ */
+public class CaptchaRouter {
+
+    /**
+     * Min share of the provider weight kept when all its calls fail, so the provider gets calls to recover
+     * before its circuit is opened.
+     */
+    private static final double MIN_HEALTH = 0.05;
+
+    private final CaptchaCircuitBreakers captchaCircuitBreakers;
+
+    public CaptchaRouter(CaptchaCircuitBreakers captchaCircuitBreakers) {
+        this.captchaCircuitBreakers = captchaCircuitBreakers;
+    }
+
+    /**
+     * @param settings valid captcha settings with the primary provider
+     * @return provider to show captcha of, the primary one when no other provider is available
+     */
+    public CaptchaProviderSettings route(CaptchaSettings settings) {
+        switch (settings.getRouting()) {
+            case FAILOVER:
+                return routeFailover(settings);
+            case WEIGHTED:
+                return routeWeighted(settings);
+            case PRIMARY:
+            default:
+                return settings.getFailurePolicy() == CaptchaFailurePolicy.FALLBACK
+                        ? routeFailover(settings)
+                        : settings.getPrimary();
+        }
+    }
+
+    private CaptchaProviderSettings routeFailover(CaptchaSettings settings) {
+        for (CaptchaRoute route : settings.getRoutes()) {
+            if (captchaCircuitBreakers.isPermitting(route.getProviderSettings())) {
+                return route.getProviderSettings();
+            }
+        }
+        return settings.getPrimary();
+    }
+
+    /**
+     * Provider weight is multiplied by its success rate and by the ratio of the fastest mean latency to its own one,
+     * so slow or failing provider gets less logins long before its circuit is opened.
+     */
+    private CaptchaProviderSettings routeWeighted(CaptchaSettings settings) {
+        List<CaptchaRoute> routes = settings.getRoutes();
+        CaptchaCircuitBreaker.WindowStats[] stats = new CaptchaCircuitBreaker.WindowStats[routes.size()];
+        long fastestDuration = Long.MAX_VALUE;
+        for (int i = 0; i < routes.size(); i++) {
+            CaptchaRoute route = routes.get(i);
+            if (route.getWeight() > 0 && captchaCircuitBreakers.isPermitting(route.getProviderSettings())) {
+                stats[i] = captchaCircuitBreakers.get(route.getProviderSettings()).getWindowStats();
+                if (stats[i].getCalls() > 0) {
+                    fastestDuration = Math.min(fastestDuration, stats[i].getMeanDurationNanos());
+                }
+            }
+        }
+
+        double[] weights = new double[routes.size()];
+        double totalWeight = 0;
+        for (int i = 0; i < routes.size(); i++) {
+            if (stats[i] == null) {
+                continue;
+            }
+            double health = Math.max(MIN_HEALTH, 1 - stats[i].getFailureRate());
+            // provider without calls in the window is treated as the fastest one, so it gets calls to be measured
+            double speed = stats[i].getCalls() == 0 || stats[i].getMeanDurationNanos() == 0
+                    ? 1
+                    : (double) Math.max(1, fastestDuration) / stats[i].getMeanDurationNanos();
+            weights[i] = routes.get(i).getWeight() * health * Math.min(1, speed);
+            totalWeight += weights[i];
+        }
+        if (totalWeight <= 0) {
+            return settings.getPrimary();
+        }
+
+        double point = ThreadLocalRandom.current().nextDouble(totalWeight);
+        for (int i = 0; i < routes.size(); i++) {
+            point -= weights[i];
+            if (weights[i] > 0 && point < 0) {
+                return routes.get(i).getProviderSettings();
+            }
+        }
+        return settings.getPrimary();
+    }
+
+}
@@ -0,0 +1,86 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import org.keycloak.models.KeycloakSession;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Registry of accepted captcha tokens, so each token passes only one login.
+ * <p>
+ * Token is bound to the authentication session tab that spent it, so a double-submit or a browser retry of the same
+ * login passes again with the cached verdict, while any other login with the same token is rejected.
+ * <p>
+ * Captcha apis reject a token verified twice, but a token verified locally (e.g. proof-of-work one) or taken from
+ * the {@link CaptchaVerdictCache} never reaches captcha api again, so its reuse is caught by the registry.
+ * Tokens are remembered by 64-bit hash for the registry ttl that should cover the token lifetime of the captcha providers,
+ * not positive ttl disables the registry.
+ */
+public interface CaptchaTokenRegistry {
+
+    String SPI_TOKEN_REGISTRY_STORE = "tokenRegistryStore";
+
+    String SPI_TOKEN_REGISTRY_TTL = "tokenRegistryTtl";
+
+    String SPI_TOKEN_REGISTRY_MAX_TOKENS = "tokenRegistryMaxTokens";
+
+    /**
+     * Default time in seconds to remember accepted token, it covers the longest default token lifetime of the providers.
+     */
+    long DEFAULT_TTL = 600;
+
+    /**
+     * Marks the accepted token as used by the login.
+     *
+     * @param session      keycloak session of the login
+     * @param serverKey    captcha server key the token is verified with
+     * @param captchaToken user's captcha token
+     * @param loginId      id of the authentication session tab of the login
+     * @return {@code true} if the token is used for the first time or again by the same login, {@code false}
+     * if it is replayed by another login
+     */
+    boolean markUsed(KeycloakSession session, String serverKey, String captchaToken, String loginId);
+
+    /**
+     * @return {@code true} when the registry forgets tokens before the ttl because it has no room to remember them
+     */
+    boolean isSaturated();
+
+    /**
+     * Forgets all tokens.
+     */
+    void clear();
+
+    /**
+     * @return 64-bit FNV-1a hash of the login id, never {@code 0} or {@link Long#MIN_VALUE} that registries reserve
+     */
+    static long loginHash(String loginId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < loginId.length(); i++) {
+            hash ^= loginId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 || hash == Long.MIN_VALUE ? 1 : hash;
+    }
+
+    /**
+     * @return 64-bit SHA-256 prefix of the server key and the token, never {@code 0}, so the raw token is never stored
+     */
+    static long hash(String serverKey, String captchaToken) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(serverKey.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(captchaToken.getBytes(StandardCharsets.UTF_8));
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                value = value << 8 | hash[i] & 0xff;
+            }
+            return value == 0 ? 1 : value;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import org.keycloak.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Short-lived bounded cache of captcha verdicts that is shared by all captcha clients.
+ * <p>
+ * Cache key is SHA-256 of the captcha server key and the user's captcha token, so the raw token is never stored.
+ * Cache holds in-flight verifications too, so concurrent requests with the same token (double-submit, browser retry)
+ * wait for the single captcha api call instead of sending the token again, what captcha api rejects as duplicate.
+ * The cached verdict passes only the login that has used the token first, see {@link CaptchaTokenRegistry}.
+ * <p>
+ * Only decisive verdicts (success, invalid and score based ones) are cached,
+ * provider errors and timeouts are evicted as soon as the verification completes.
+ */
+public class CaptchaVerdictCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(CaptchaVerdictCache.class);
+
+    public static final String SPI_VERDICT_CACHE_TTL = "verdictCacheTtl";
+
+    public static final String SPI_VERDICT_CACHE_SIZE = "verdictCacheSize";
+
+    private static final long DEFAULT_TTL = 30_000L;
+
+    private static final int DEFAULT_SIZE = 10_000;
+
+    /**
+     * Min interval between full scans of the cache to remove expired entries.
+     */
+    private static final long PURGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final long ttlNanos;
+
+    private final int maxSize;
+
+    private final LongSupplier nanoTime;
+
+    private final AtomicLong lastPurge;
+
+    public CaptchaVerdictCache(Config.Scope config) {
+        this(config, System::nanoTime);
+    }
+
+    CaptchaVerdictCache(Config.Scope config, LongSupplier nanoTime) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong(SPI_VERDICT_CACHE_TTL, DEFAULT_TTL));
+        this.maxSize = config.getInt(SPI_VERDICT_CACHE_SIZE, DEFAULT_SIZE);
+        this.nanoTime = nanoTime;
+        this.lastPurge = new AtomicLong(nanoTime.getAsLong());
+    }
+
+    /**
+     * Returns cached or in-flight verdict for the passed token, otherwise starts the verification and caches its result.
+     *
+     * @param serverKey    captcha server key the token is verified with
+     * @param captchaToken user's captcha token
+     * @param verification starts captcha token verification
+     * @return future that completes with verdict of the token verification
+     */
+    public CompletableFuture<CaptchaVerdict> verify(String serverKey,
+                                                    String captchaToken,
+                                                    Supplier<CompletableFuture<CaptchaVerdict>> verification) {
+        if (ttlNanos <= 0 || maxSize <= 0) {
+            return verification.get();
+        }
+
+        String key = hash(serverKey, captchaToken);
+        Entry candidate = new Entry();
+        while (true) {
+            long now = nanoTime.getAsLong();
+            Entry current = entries.get(key);
+            if (current != null && !current.isExpired(now)) {
+                logger.debug("Captcha verdict is taken from the cache");
+                return current.verdict;
+            }
+            if (current == null ? !tryReserve(key, candidate, now) : !entries.replace(key, current, candidate)) {
+                if (entries.size() >= maxSize) {
+                    // cache is full of live entries, do not wait for it and verify without caching
+                    return verification.get();
+                }
+                continue;
+            }
+            break;
+        }
+
+        verification.get().whenComplete((verdict, error) -> {
+            CaptchaVerdict result = error == null ? verdict : CaptchaVerdict.error(error);
+            if (isCacheable(result)) {
+                candidate.expiresAt = nanoTime.getAsLong() + ttlNanos;
+            } else {
+                entries.remove(key, candidate);
+            }
+            candidate.verdict.complete(result);
+        });
+        return candidate.verdict;
+    }
+
+    /**
+     * Removes all cached verdicts, in-flight verifications are still completed for their waiters.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private boolean tryReserve(String key, Entry candidate, long now) {
+        if (entries.size() >= maxSize) {
+            purgeExpired(now);
+            if (entries.size() >= maxSize) {
+                return false;
+            }
+        }
+        return entries.putIfAbsent(key, candidate) == null;
+    }
+
+    private void purgeExpired(long now) {
+        long last = lastPurge.get();
+        if (now - last < PURGE_INTERVAL_NANOS || !lastPurge.compareAndSet(last, now)) {
+            return;
+        }
+        entries.values().removeIf(entry -> entry.isExpired(now));
+    }
+
+    private static boolean isCacheable(CaptchaVerdict verdict) {
+        switch (verdict.getOutcome()) {
+            case SUCCESS:
+            case INVALID:
+            case SCORE_REJECTED:
+            case STEP_UP_REQUIRED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String hash(String serverKey, String captchaToken) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(serverKey.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(digest.digest(captchaToken.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    private static class Entry {
+
+        private final CompletableFuture<CaptchaVerdict> verdict = new CompletableFuture<>();
+
+        /**
+         * Entry is never expired while verification is in-flight.
+         */
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        private boolean isExpired(long now) {
+            return expiresAt != Long.MAX_VALUE && now - expiresAt > 0;
+        }
+    }
+
+}
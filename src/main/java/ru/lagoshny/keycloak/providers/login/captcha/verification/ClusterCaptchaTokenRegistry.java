@@ -0,0 +1,73 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link CaptchaTokenRegistry} shared by all keycloak nodes of the cluster.
+ * <p>
+ * Token is checked in the {@link LocalCaptchaTokenRegistry} first, so a replay to the same node is rejected without
+ * remote calls, and then it is marked in keycloak {@link SingleUseObjectProvider}, that is backed by the replicated
+ * infinispan cache in clustered deployments, same as keycloak does for single-use action tokens.
+ * Only accepted tokens reach the cluster store, they expire there after the registry ttl. Tokens the full local registry
+ * has no room for are still checked in the cluster store.
+ * <p>
+ * Keycloak routes requests of the authentication session to the same node, so the retry of the login that has used
+ * the token is recognized by the local registry without a remote call.
+ */
+public class ClusterCaptchaTokenRegistry implements CaptchaTokenRegistry {
+
+    private final static Logger logger = LoggerFactory.getLogger(ClusterCaptchaTokenRegistry.class);
+
+    private static final String KEY_PREFIX = "captcha-used-token::";
+
+    private final LocalCaptchaTokenRegistry localRegistry;
+
+    private final long ttl;
+
+    public ClusterCaptchaTokenRegistry(Config.Scope config) {
+        this.localRegistry = new LocalCaptchaTokenRegistry(config);
+        this.ttl = config.getLong(SPI_TOKEN_REGISTRY_TTL, DEFAULT_TTL);
+    }
+
+    @Override
+    public boolean markUsed(KeycloakSession session, String serverKey, String captchaToken, String loginId) {
+        long hash = CaptchaTokenRegistry.hash(serverKey, captchaToken);
+        LocalCaptchaTokenRegistry.MarkResult localResult = localRegistry.markUsed(hash, CaptchaTokenRegistry.loginHash(loginId));
+        if (localResult == LocalCaptchaTokenRegistry.MarkResult.PRESENT) {
+            return false;
+        }
+        if (localResult == LocalCaptchaTokenRegistry.MarkResult.OWNED) {
+            // the same login has already passed the cluster store check
+            return true;
+        }
+        if (!localRegistry.isEnabled()) {
+            return true;
+        }
+        try {
+            if (session.getProvider(SingleUseObjectProvider.class).putIfAbsent(KEY_PREFIX + Long.toHexString(hash), ttl)) {
+                return true;
+            }
+            localRegistry.reject(hash);
+            return false;
+        } catch (RuntimeException e) {
+            // cluster store outage must not block all logins, the token is still single-use on this node
+            logger.warn("Failed to mark captcha token as used in the cluster store: {}", e.getMessage(), e);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return localRegistry.isSaturated();
+    }
+
+    @Override
+    public void clear() {
+        localRegistry.clear();
+    }
+
+}
@@ -0,0 +1,319 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory {@link CaptchaTokenRegistry} of the single keycloak node.
+ * <p>
+ * Token hashes are kept in a ring of buckets, each bucket is a fixed size open addressing hash map of {@code long}
+ * token hashes to {@code long} login hashes, so marking a token is a lock-free CAS without allocations and the registry takes the same memory under any traffic.
+ * The oldest bucket is cleared and reused when the current bucket period ends, tokens live from the ttl
+ * up to the ttl and one bucket period. When the current bucket is full before its period ends, the registry rotates
+ * early and forgets the oldest tokens before the ttl, so a flood of tokens does not deny logins with valid tokens;
+ * the registry then reports itself {@link #isSaturated() saturated} until a bucket period ends without early rotation.
+ */
+public class LocalCaptchaTokenRegistry implements CaptchaTokenRegistry {
+
+    private final static Logger logger = LoggerFactory.getLogger(LocalCaptchaTokenRegistry.class);
+
+    private static final int DEFAULT_MAX_TOKENS = 1 << 18;
+
+    static final int BUCKETS = 4;
+
+    /**
+     * Owner of the token rejected by the cluster store, no login owns it.
+     */
+    private static final long REJECTED_OWNER = Long.MIN_VALUE;
+
+    /**
+     * Max share of bucket slots to fill, so probe sequences stay short.
+     */
+    private static final double MAX_LOAD = 0.75;
+
+    private final Bucket[] buckets = new Bucket[BUCKETS];
+
+    /**
+     * Registry is disabled when ttl is not positive.
+     */
+    private final boolean enabled;
+
+    private final long bucketMillis;
+
+    private final int maxBucketTokens;
+
+    private final LongSupplier currentTimeMillis;
+
+    /**
+     * Generation of the current bucket, it is the bucket index in the ring modulo {@link #BUCKETS}.
+     */
+    private volatile long generation;
+
+    private volatile boolean saturated;
+
+    public LocalCaptchaTokenRegistry(Config.Scope config) {
+        this(config, System::currentTimeMillis);
+    }
+
+    LocalCaptchaTokenRegistry(Config.Scope config, LongSupplier currentTimeMillis) {
+        long ttl = TimeUnit.SECONDS.toMillis(config.getLong(SPI_TOKEN_REGISTRY_TTL, DEFAULT_TTL));
+        this.enabled = ttl > 0;
+        // the last bucket is being filled, the others keep the ttl
+        this.bucketMillis = Math.max(1, ttl / (BUCKETS - 1));
+        int capacity = enabled
+                ? Integer.highestOneBit(Math.max(16,
+                (int) (config.getInt(SPI_TOKEN_REGISTRY_MAX_TOKENS, DEFAULT_MAX_TOKENS) / BUCKETS / MAX_LOAD)) * 2 - 1)
+                : 1;
+        this.maxBucketTokens = (int) (capacity * MAX_LOAD);
+        this.currentTimeMillis = currentTimeMillis;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new Bucket(capacity);
+        }
+        buckets[0].clear(0, currentTimeMillis.getAsLong());
+    }
+
+    @Override
+    public boolean markUsed(KeycloakSession session, String serverKey, String captchaToken, String loginId) {
+        MarkResult result = markUsed(CaptchaTokenRegistry.hash(serverKey, captchaToken), CaptchaTokenRegistry.loginHash(loginId));
+        return result != MarkResult.PRESENT;
+    }
+
+    /**
+     * @param hash      token hash, never {@code 0}
+     * @param loginHash hash of the login that uses the token, never {@code 0}
+     */
+    MarkResult markUsed(long hash, long loginHash) {
+        if (!enabled) {
+            return MarkResult.ADDED;
+        }
+        long now = currentTimeMillis.getAsLong();
+        long current = currentGeneration(now);
+        for (int i = 1; i < BUCKETS; i++) {
+            Bucket previous = buckets[index(current - i)];
+            if (previous.generation == current - i && now - previous.startedAt < BUCKETS * bucketMillis) {
+                long owner = previous.owner(hash);
+                if (owner != 0) {
+                    return owner == loginHash ? MarkResult.OWNED : MarkResult.PRESENT;
+                }
+            }
+        }
+
+        // each attempt rotates to an empty bucket, so only concurrent floods of other tokens can fill all of them
+        for (int attempt = 0; attempt < BUCKETS; attempt++) {
+            MarkResult result = buckets[index(current)].add(hash, loginHash, maxBucketTokens);
+            if (result != MarkResult.FULL) {
+                return result;
+            }
+            current = rotate(current, now, true);
+        }
+        logger.warn("Captcha token registry has no room for the captcha token, it is accepted without replay protection");
+        return MarkResult.FULL;
+    }
+
+    /**
+     * Takes the token from the login that has marked it, so the login can not use it again.
+     *
+     * @param hash token hash, never {@code 0}
+     */
+    void reject(long hash) {
+        for (Bucket bucket : buckets) {
+            bucket.setOwner(hash, REJECTED_OWNER);
+        }
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return saturated;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void clear() {
+        synchronized (buckets) {
+            for (Bucket bucket : buckets) {
+                bucket.clear(-1, 0);
+            }
+            buckets[index(generation)].clear(generation, currentTimeMillis.getAsLong());
+            saturated = false;
+        }
+    }
+
+    /**
+     * @return generation of the current bucket, it is rotated when its period is over
+     */
+    private long currentGeneration(long now) {
+        long current = generation;
+        if (now - buckets[index(current)].startedAt >= bucketMillis) {
+            return rotate(current, now, false);
+        }
+        return current;
+    }
+
+    /**
+     * Clears the oldest bucket and makes it the current one, unless another thread has already rotated the expected one.
+     *
+     * @param expected generation of the bucket to rotate
+     * @param early    {@code true} if the bucket is rotated because it is full
+     * @return generation of the current bucket
+     */
+    private long rotate(long expected, long now, boolean early) {
+        synchronized (buckets) {
+            long current = generation;
+            if (current != expected) {
+                return current;
+            }
+            buckets[index(current + 1)].clear(current + 1, now);
+            generation = current + 1;
+            if (!early) {
+                saturated = false;
+            } else if (!saturated) {
+                saturated = true;
+                logger.warn("Captcha token registry is full, captcha tokens are forgotten before the ttl");
+            }
+            return current + 1;
+        }
+    }
+
+    private static int index(long generation) {
+        return (int) Math.floorMod(generation, (long) BUCKETS);
+    }
+
+    enum MarkResult {
+        /**
+         * Token is used for the first time.
+         */
+        ADDED,
+        /**
+         * Token is used again by the same login.
+         */
+        OWNED,
+        /**
+         * Token is used by another login.
+         */
+        PRESENT,
+        /**
+         * Registry has no room to remember the token, it is accepted.
+         */
+        FULL
+    }
+
+    private static class Bucket {
+
+        private final AtomicLongArray slots;
+
+        /**
+         * Login hashes of the tokens of the same slots, set right after the token slot is taken.
+         */
+        private final AtomicLongArray owners;
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        private final int mask;
+
+        private volatile long generation = -1;
+
+        /**
+         * Time the bucket became the current one.
+         */
+        private volatile long startedAt;
+
+        Bucket(int capacity) {
+            this.slots = new AtomicLongArray(capacity);
+            this.owners = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+        }
+
+        /**
+         * @return login hash of the token, {@code 0} if the bucket has no token
+         */
+        long owner(long hash) {
+            for (int i = index(hash), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long slot = slots.get(i);
+                if (slot == hash) {
+                    return awaitOwner(i, hash);
+                }
+                if (slot == 0) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        MarkResult add(long hash, long loginHash, int maxSize) {
+            for (int i = index(hash), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long slot = slots.get(i);
+                if (slot == hash) {
+                    return awaitOwner(i, hash) == loginHash ? MarkResult.OWNED : MarkResult.PRESENT;
+                }
+                if (slot == 0) {
+                    if (size.get() >= maxSize) {
+                        return MarkResult.FULL;
+                    }
+                    if (slots.compareAndSet(i, 0, hash)) {
+                        owners.set(i, loginHash);
+                        size.incrementAndGet();
+                        return MarkResult.ADDED;
+                    }
+                    // slot is taken concurrently, it can be the same token
+                    i = (i - 1) & mask;
+                    probes--;
+                }
+            }
+            return MarkResult.FULL;
+        }
+
+        void setOwner(long hash, long owner) {
+            for (int i = index(hash), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long slot = slots.get(i);
+                if (slot == hash) {
+                    owners.set(i, owner);
+                    return;
+                }
+                if (slot == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Owner is set by the thread that has taken the slot right after its CAS, so the wait is a few spins.
+         *
+         * @return login hash of the slot token, {@code 0} if the bucket is cleared meanwhile
+         */
+        private long awaitOwner(int index, long hash) {
+            long owner;
+            while ((owner = owners.get(index)) == 0) {
+                if (slots.get(index) != hash) {
+                    return 0;
+                }
+                Thread.onSpinWait();
+            }
+            return owner;
+        }
+
+        void clear(long newGeneration, long now) {
+            for (int i = 0; i <= mask; i++) {
+                slots.set(i, 0);
+                owners.set(i, 0);
+            }
+            size.set(0);
+            startedAt = now;
+            generation = newGeneration;
+        }
+
+        private int index(long hash) {
+            return (int) (hash ^ hash >>> 32) & mask;
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Proof-of-work captcha of the login page.
+ *
+ * On the page the script finds the captcha block, starts itself as a web worker to search the nonce
+ * and puts 'challenge.nonce' to the hidden captcha field. Login form submitted before the challenge is solved
+ * is sent as soon as the solution is found.
+ *
+ * In the worker the script searches the nonce, so SHA-256 of 'challenge.nonce' starts with 'difficulty' zero bits,
+ * the difficulty is the third part of the challenge.
+ */
+(function () {
+    'use strict';
+
+    var K = [
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    ];
+
+    var w = new Int32Array(64);
+
+    /**
+     * @param message ascii string
+     * @returns first 32 bits of the SHA-256 hash, enough to count leading zero bits up to the max difficulty
+     */
+    function sha256FirstWord(message) {
+        var length = message.length;
+        var blocks = ((length + 8) >> 6) + 1;
+        var h0 = 0x6a09e667, h1 = 0xbb67ae85, h2 = 0x3c6ef372, h3 = 0xa54ff53a,
+            h4 = 0x510e527f, h5 = 0x9b05688c, h6 = 0x1f83d9ab, h7 = 0x5be0cd19;
+
+        for (var block = 0; block < blocks; block++) {
+            var i, offset = block << 6;
+            for (i = 0; i < 16; i++) {
+                var word = 0;
+                for (var j = 0; j < 4; j++) {
+                    var index = offset + (i << 2) + j;
+                    var value = index < length ? message.charCodeAt(index) : index === length ? 0x80 : 0;
+                    word = word << 8 | value;
+                }
+                w[i] = word;
+            }
+            if (block === blocks - 1) {
+                w[15] = length << 3;
+            }
+            for (i = 16; i < 64; i++) {
+                var w15 = w[i - 15], w2 = w[i - 2];
+                var s0 = (w15 >>> 7 | w15 << 25) ^ (w15 >>> 18 | w15 << 14) ^ (w15 >>> 3);
+                var s1 = (w2 >>> 17 | w2 << 15) ^ (w2 >>> 19 | w2 << 13) ^ (w2 >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+
+            var a = h0, b = h1, c = h2, d = h3, e = h4, f = h5, g = h6, h = h7;
+            for (i = 0; i < 64; i++) {
+                var S1 = (e >>> 6 | e << 26) ^ (e >>> 11 | e << 21) ^ (e >>> 25 | e << 7);
+                var t1 = h + S1 + (e & f ^ ~e & g) + K[i] + w[i] | 0;
+                var S0 = (a >>> 2 | a << 30) ^ (a >>> 13 | a << 19) ^ (a >>> 22 | a << 10);
+                var t2 = S0 + (a & b ^ a & c ^ b & c) | 0;
+                h = g;
+                g = f;
+                f = e;
+                e = d + t1 | 0;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2 | 0;
+            }
+            h0 = h0 + a | 0;
+            h1 = h1 + b | 0;
+            h2 = h2 + c | 0;
+            h3 = h3 + d | 0;
+            h4 = h4 + e | 0;
+            h5 = h5 + f | 0;
+            h6 = h6 + g | 0;
+            h7 = h7 + h | 0;
+        }
+        return h0;
+    }
+
+    function solve(challenge, difficulty) {
+        var prefix = challenge + '.';
+        for (var nonce = 0; ; nonce++) {
+            if (Math.clz32(sha256FirstWord(prefix + nonce)) >= difficulty) {
+                return nonce;
+            }
+        }
+    }
+
+    if (typeof document === 'undefined') {
+        self.onmessage = function (event) {
+            self.postMessage(solve(event.data.challenge, event.data.difficulty));
+        };
+        return;
+    }
+
+    var scriptUrl = document.currentScript.src;
+
+    function start() {
+        var block = document.querySelector('.proof-of-work');
+        if (!block) {
+            return;
+        }
+        var challenge = block.getAttribute('data-challenge');
+        var input = block.querySelector('input');
+        var form = input.form;
+        var solved = false;
+        var submitPending = false;
+
+        form.addEventListener('submit', function (event) {
+            if (!solved) {
+                event.preventDefault();
+                submitPending = true;
+            }
+        });
+
+        var worker = new Worker(scriptUrl);
+        worker.onmessage = function (event) {
+            input.value = challenge + '.' + event.data;
+            solved = true;
+            worker.terminate();
+            if (submitPending) {
+                form.submit();
+            }
+        };
+        worker.postMessage({challenge: challenge, difficulty: parseInt(challenge.split('.')[2], 10)});
+    }
+
+    if (document.readyState === 'loading') {
+        document.addEventListener('DOMContentLoaded', start);
+    } else {
+        start();
+    }
+})();
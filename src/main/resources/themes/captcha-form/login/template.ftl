@@ -36,7 +36,12 @@
         </#list>
     </#if>
     <#if captchaEnabled?? && captchaEnabled == "true">
-        <script src="${captchaScriptUrl}" type="text/javascript" defer async></script>
+        <#if captchaScriptUrl?starts_with("http")>
+            <script src="${captchaScriptUrl}" type="text/javascript" defer async></script>
+        <#else>
+            <#-- self-hosted captcha script of the theme resources -->
+            <script src="${url.resourcesPath}/${captchaScriptUrl}" type="text/javascript" defer async></script>
+        </#if>
         <#if captchaProvider == "ReCaptchaV3">
             <script>
                 function onSubmit(token) {
@@ -0,0 +1,184 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.CaptchaSpan;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.CaptchaTracer;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.InMemoryCaptchaSpanExporterFactory.InMemoryCaptchaSpanExporter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CaptchaHttpClientTracingTest {
+
+    private static final String PROVIDER_NAME = "ReCaptchaV2";
+
+    private final InMemoryCaptchaSpanExporter exporter = new InMemoryCaptchaSpanExporter(100);
+
+    private final Queue<String> receivedTraceparents = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private CaptchaHttpClient httpClient;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (httpClient != null) {
+            httpClient.close();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+        if (serverExecutor != null) {
+            serverExecutor.shutdownNow();
+        }
+        System.getProperties().stringPropertyNames().stream()
+                .filter(name -> name.startsWith("captcha.http.test."))
+                .forEach(System::clearProperty);
+    }
+
+    @Test
+    void httpSpanIsChildOfVerificationSpanAndSendsItsTraceparent() throws Exception {
+        CaptchaTracer tracer = startClient(Map.of(), 0);
+
+        CaptchaSpan verifySpan = tracer.startSpan(CaptchaTracer.SPAN_VERIFY);
+        CaptchaVerdict verdict = httpClient.submit(server.getAddress().toString(), () -> verify("/ok")).get(5, TimeUnit.SECONDS);
+        verifySpan.close();
+
+        assertTrue(verdict.isSuccess());
+        List<CaptchaSpan> spans = exporter.getFinishedSpans();
+        assertEquals(2, spans.size());
+        CaptchaSpan httpSpan = spans.get(0);
+        assertEquals(CaptchaTracer.SPAN_HTTP, httpSpan.getName());
+        assertEquals(verifySpan.getTraceId(), httpSpan.getTraceId());
+        assertEquals(verifySpan.getSpanId(), httpSpan.getParentSpanId());
+        assertEquals(List.of(httpSpan.getTraceparent()), List.copyOf(receivedTraceparents));
+
+        Map<String, Object> attributes = httpSpan.getAttributes();
+        assertEquals(PROVIDER_NAME, attributes.get(CaptchaTracer.ATTRIBUTE_PROVIDER));
+        assertEquals(200, attributes.get(CaptchaTracer.ATTRIBUTE_HTTP_STATUS));
+        assertEquals(Boolean.FALSE, attributes.get(CaptchaTracer.ATTRIBUTE_HEDGE));
+    }
+
+    @Test
+    void httpSpanHasErrorStatus() throws Exception {
+        startClient(Map.of(), 0);
+
+        CaptchaVerdict verdict = httpClient.submit(server.getAddress().toString(), () -> verify("/error")).get(5, TimeUnit.SECONDS);
+
+        assertEquals(CaptchaVerdict.Outcome.PROVIDER_ERROR, verdict.getOutcome());
+        CaptchaSpan httpSpan = exporter.getFinishedSpans().get(0);
+        assertNull(httpSpan.getParentSpanId());
+        assertEquals(500, httpSpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_HTTP_STATUS));
+    }
+
+    @Test
+    void failedRequestSpanHasError() throws Exception {
+        startClient(Map.of(), 0);
+        int port = server.getAddress().getPort();
+        server.stop(0);
+        server = null;
+
+        IOException e = assertThrows(IOException.class,
+                () -> httpClient.execute(PROVIDER_NAME, new HttpPost("http://127.0.0.1:" + port + "/ok")));
+
+        CaptchaSpan httpSpan = exporter.getFinishedSpans().get(0);
+        assertEquals(e.getClass().getSimpleName(), httpSpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_ERROR));
+        assertNull(httpSpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_HTTP_STATUS));
+    }
+
+    @Test
+    void hedgeRequestSpanIsMarkedAsHedge() throws Exception {
+        // the first request is slower than the hedge delay, the hedge is answered at once
+        CaptchaTracer tracer = startClient(Map.of(
+                CaptchaHttpClient.SPI_HEDGE_BUDGET, "100",
+                CaptchaHttpClient.SPI_HEDGE_DELAY, "50"), 1000);
+
+        CaptchaSpan verifySpan = tracer.startSpan(CaptchaTracer.SPAN_VERIFY);
+        CaptchaVerdict verdict = httpClient.submit(server.getAddress().toString(), () -> verify("/ok")).get(5, TimeUnit.SECONDS);
+        verifySpan.close();
+
+        assertTrue(verdict.isSuccess());
+        assertEquals(1, httpClient.getVerificationHedger().getHedges());
+        CaptchaSpan hedgeSpan = exporter.getFinishedSpans().stream()
+                .filter(span -> Boolean.TRUE.equals(span.getAttributes().get(CaptchaTracer.ATTRIBUTE_HEDGE)))
+                .findFirst()
+                .orElseThrow();
+        assertEquals(CaptchaTracer.SPAN_HTTP, hedgeSpan.getName());
+        assertEquals(verifySpan.getSpanId(), hedgeSpan.getParentSpanId());
+        assertEquals(200, hedgeSpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_HTTP_STATUS));
+        assertTrue(receivedTraceparents.contains(hedgeSpan.getTraceparent()));
+    }
+
+    /**
+     * Starts the captcha api that answers {@code /ok} with http 200 and {@code /error} with http 500
+     * and the http client with the tracer that exports spans in memory.
+     *
+     * @param firstRequestDelay delay of the first request in milliseconds
+     */
+    private CaptchaTracer startClient(Map<String, String> options, long firstRequestDelay) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/ok", exchange -> respond(exchange, 200, firstRequestDelay));
+        server.createContext("/error", exchange -> respond(exchange, 500, 0));
+        server.start();
+
+        options.forEach((name, value) -> System.setProperty("captcha.http.test." + name, value));
+        Config.Scope config = new Config.SystemPropertiesScope("captcha.http.test.");
+        CaptchaTracer tracer = new CaptchaTracer(config);
+        tracer.setExporter(exporter);
+        httpClient = new CaptchaHttpClient(config, tracer);
+        return tracer;
+    }
+
+    private void respond(HttpExchange exchange, int status, long firstRequestDelay) throws IOException {
+        receivedTraceparents.add(exchange.getRequestHeaders().getFirst(CaptchaTracer.TRACEPARENT_HEADER));
+        if (requests.getAndIncrement() == 0 && firstRequestDelay > 0) {
+            try {
+                Thread.sleep(firstRequestDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] body = "{\"success\":true}".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private CaptchaVerdict verify(String path) {
+        HttpPost request = new HttpPost("http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + path);
+        try (CloseableHttpResponse response = httpClient.execute(PROVIDER_NAME, request)) {
+            int status = response.getStatusLine().getStatusCode();
+            EntityUtils.consumeQuietly(response.getEntity());
+            return status == 200 ? CaptchaVerdict.SUCCESS : CaptchaVerdict.error(new IOException("http " + status));
+        } catch (IOException e) {
+            return CaptchaVerdict.error(e);
+        }
+    }
+
+}
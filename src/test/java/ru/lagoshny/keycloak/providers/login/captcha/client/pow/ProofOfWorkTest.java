@@ -0,0 +1,162 @@
+package ru.lagoshny.keycloak.providers.login.captcha.client.pow;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProofOfWorkTest {
+
+    private static final String SERVER_KEY = "server-key";
+
+    private static final long CHALLENGE_TTL = 300;
+
+    private static final int DIFFICULTY = 8;
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toMillis(20_000));
+
+    private final ProofOfWork proofOfWork = new ProofOfWork(CHALLENGE_TTL, now::get);
+
+    @Test
+    void solvedChallengeIsVerified() throws Exception {
+        String token = solve(proofOfWork.issueChallenge(SERVER_KEY, DIFFICULTY));
+
+        assertNull(proofOfWork.verify(token, SERVER_KEY));
+        // a solution is verified again, replays are rejected by the token registry
+        assertNull(proofOfWork.verify(token, SERVER_KEY));
+    }
+
+    @Test
+    void challengeOfAnotherServerKeyIsRejected() throws Exception {
+        String token = solve(proofOfWork.issueChallenge(SERVER_KEY, DIFFICULTY));
+
+        assertEquals(ProofOfWork.ERROR_INVALID_SIGNATURE, proofOfWork.verify(token, "other-server-key"));
+        assertNull(proofOfWork.verify(token, SERVER_KEY));
+    }
+
+    @Test
+    void tamperedSignatureIsRejected() throws Exception {
+        String[] parts = solve(proofOfWork.issueChallenge(SERVER_KEY, DIFFICULTY)).split("\\.");
+        char[] signature = parts[4].toCharArray();
+        signature[0] = signature[0] == 'A' ? 'B' : 'A';
+        parts[4] = new String(signature);
+
+        assertEquals(ProofOfWork.ERROR_INVALID_SIGNATURE, proofOfWork.verify(String.join(".", parts), SERVER_KEY));
+    }
+
+    @Test
+    void tamperedDifficultyIsRejected() throws Exception {
+        String[] parts = solve(proofOfWork.issueChallenge(SERVER_KEY, DIFFICULTY)).split("\\.");
+        parts[2] = Integer.toString(ProofOfWork.MIN_DIFFICULTY);
+
+        assertEquals(ProofOfWork.ERROR_INVALID_SIGNATURE, proofOfWork.verify(String.join(".", parts), SERVER_KEY));
+    }
+
+    @Test
+    void tamperedExpiryIsRejected() throws Exception {
+        String[] parts = solve(proofOfWork.issueChallenge(SERVER_KEY, DIFFICULTY)).split("\\.");
+        parts[1] = Long.toString(Long.parseLong(parts[1]) + CHALLENGE_TTL);
+
+        assertEquals(ProofOfWork.ERROR_INVALID_SIGNATURE, proofOfWork.verify(String.join(".", parts), SERVER_KEY));
+    }
+
+    @Test
+    void expiredChallengeIsRejected() throws Exception {
+        String token = solve(proofOfWork.issueChallenge(SERVER_KEY, DIFFICULTY));
+
+        now.addAndGet(TimeUnit.SECONDS.toMillis(CHALLENGE_TTL));
+        assertNull(proofOfWork.verify(token, SERVER_KEY));
+        now.addAndGet(TimeUnit.SECONDS.toMillis(1));
+        assertEquals(ProofOfWork.ERROR_CHALLENGE_EXPIRED, proofOfWork.verify(token, SERVER_KEY));
+    }
+
+    @Test
+    void unsolvedChallengeIsRejected() throws Exception {
+        String challenge = proofOfWork.issueChallenge(SERVER_KEY, DIFFICULTY);
+        long nonce = 0;
+        while (leadingZeroBits(sha256(challenge + '.' + nonce)) >= DIFFICULTY) {
+            nonce++;
+        }
+
+        assertEquals(ProofOfWork.ERROR_INSUFFICIENT_WORK, proofOfWork.verify(challenge + '.' + nonce, SERVER_KEY));
+    }
+
+    @Test
+    void malformedTokensAreRejected() throws Exception {
+        String challenge = proofOfWork.issueChallenge(SERVER_KEY, DIFFICULTY);
+        String token = solve(challenge);
+
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(token + "0".repeat(128), SERVER_KEY));
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(token.replace('.', '\u2024'), SERVER_KEY));
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(token + '\u0661', SERVER_KEY));
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(challenge, SERVER_KEY));
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(challenge + '.', SERVER_KEY));
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(challenge + ".-1", SERVER_KEY));
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(token + ".0", SERVER_KEY));
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify("2" + token.substring(1), SERVER_KEY));
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify("", SERVER_KEY));
+    }
+
+    @Test
+    void nonceIsLimitedTo16Digits() {
+        String challenge = proofOfWork.issueChallenge(SERVER_KEY, DIFFICULTY);
+
+        assertNotEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(challenge + '.' + "1".repeat(16), SERVER_KEY));
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(challenge + '.' + "1".repeat(17), SERVER_KEY));
+    }
+
+    @Test
+    void difficultyOutOfRangeIsMalformed() {
+        String tooHard = proofOfWork.issueChallenge(SERVER_KEY, ProofOfWork.MAX_DIFFICULTY + 1);
+        String tooEasy = proofOfWork.issueChallenge(SERVER_KEY, 0);
+
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(tooHard + ".0", SERVER_KEY));
+        assertEquals(ProofOfWork.ERROR_MALFORMED_TOKEN, proofOfWork.verify(tooEasy + ".0", SERVER_KEY));
+    }
+
+    @Test
+    void signatureIsEncodedAsBase64Url() {
+        Random random = new Random(42);
+        byte[] data = new byte[32];
+        byte[] encoded = new byte[43];
+        for (int i = 0; i < 1000; i++) {
+            random.nextBytes(data);
+
+            ProofOfWork.encodeBase64Url(data, encoded);
+
+            assertEquals(Base64.getUrlEncoder().withoutPadding().encodeToString(data),
+                    new String(encoded, StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static String solve(String challenge) throws Exception {
+        int difficulty = Integer.parseInt(challenge.split("\\.")[2]);
+        long nonce = 0;
+        while (leadingZeroBits(sha256(challenge + '.' + nonce)) < difficulty) {
+            nonce++;
+        }
+        return challenge + '.' + nonce;
+    }
+
+    private static byte[] sha256(String value) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static int leadingZeroBits(byte[] hash) {
+        int bits = 0;
+        for (byte b : hash) {
+            if (b != 0) {
+                return bits + Integer.numberOfLeadingZeros(b & 0xff) - 24;
+            }
+            bits += 8;
+        }
+        return bits;
+    }
+
+}
@@ -0,0 +1,261 @@
+package ru.lagoshny.keycloak.providers.login.captcha.form;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.services.managers.AuthenticationManager;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.client.google.ReCaptchaV2ClientFactory;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.CaptchaSpan;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.CaptchaTracer;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.InMemoryCaptchaSpanExporterFactory;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.lagoshny.keycloak.providers.login.captcha.form.CaptchaLoginFormFactory.*;
+
+class CaptchaLoginFormTracingTest {
+
+    private static final String PROPERTY_PREFIX = "captcha.form.tracing.test.";
+
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+    private static final String TRACEPARENT = "00-" + TRACE_ID + "-00f067aa0ba902b7-01";
+
+    private static final String VALID_TOKEN = "valid-captcha-token-0123456789";
+
+    private static final String REJECTED_TOKEN = "rejected-captcha-token-0123456789";
+
+    private final InMemoryCaptchaSpanExporterFactory exporterFactory = new InMemoryCaptchaSpanExporterFactory();
+
+    private HttpServer captchaApi;
+
+    private CaptchaLoginFormFactory factory;
+
+    private CaptchaLoginForm form;
+
+    private AuthenticationFlowContext context;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // the captcha api accepts only the valid token
+        captchaApi = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        captchaApi.createContext("/siteverify", exchange -> {
+            String form = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            byte[] body = (form.contains(VALID_TOKEN)
+                    ? "{\"success\":true}"
+                    : "{\"success\":false,\"error-codes\":[\"invalid-input-response\"]}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        captchaApi.start();
+
+        System.setProperty(PROPERTY_PREFIX + CaptchaTracer.SPI_SPAN_EXPORTER, InMemoryCaptchaSpanExporterFactory.PROVIDER_ID);
+        Config.Scope config = new Config.SystemPropertiesScope(PROPERTY_PREFIX);
+        List<ProviderFactory<?>> captchaClientFactories = new ArrayList<>();
+        for (CaptchaClientFactory captchaClientFactory : ServiceLoader.load(CaptchaClientFactory.class)) {
+            captchaClientFactory.init(config);
+            captchaClientFactories.add(captchaClientFactory);
+        }
+        Map<String, Object> sessionFactoryAnswers = new HashMap<>();
+        sessionFactoryAnswers.put("getProviderFactoriesStream",
+                (Supplier<Stream<ProviderFactory<?>>>) captchaClientFactories::stream);
+        sessionFactoryAnswers.put("getProviderFactory", exporterFactory);
+        factory = new CaptchaLoginFormFactory();
+        factory.init(config);
+        factory.postInit(deepStub(KeycloakSessionFactory.class, sessionFactoryAnswers));
+        form = (CaptchaLoginForm) factory.create(null);
+        context = loginFlowContext("http://127.0.0.1:" + captchaApi.getAddress().getPort() + "/siteverify");
+    }
+
+    @AfterEach
+    void tearDown() {
+        factory.close();
+        captchaApi.stop(0);
+        System.clearProperty(PROPERTY_PREFIX + CaptchaTracer.SPI_SPAN_EXPORTER);
+    }
+
+    @Test
+    void verificationSpanContinuesLoginTraceAndHasProviderAndOutcome() {
+        assertTrue(form.validateForm(context, formData(VALID_TOKEN)));
+
+        Map<String, CaptchaSpan> spans = finishedSpans();
+        CaptchaSpan verifySpan = spans.get(CaptchaTracer.SPAN_VERIFY);
+        assertEquals(TRACE_ID, verifySpan.getTraceId());
+        assertEquals(TRACEPARENT.substring(36, 52), verifySpan.getParentSpanId());
+        assertEquals(ReCaptchaV2ClientFactory.PROVIDER_ID, verifySpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_PROVIDER));
+        assertEquals("success", verifySpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_OUTCOME));
+
+        // captcha api call on the verification thread and credentials check are children of the verification
+        CaptchaSpan httpSpan = spans.get(CaptchaTracer.SPAN_HTTP);
+        assertEquals(verifySpan.getSpanId(), httpSpan.getParentSpanId());
+        assertEquals(ReCaptchaV2ClientFactory.PROVIDER_ID, httpSpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_PROVIDER));
+        assertEquals(200, httpSpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_HTTP_STATUS));
+        assertEquals(Boolean.FALSE, httpSpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_HEDGE));
+        CaptchaSpan credentialsSpan = spans.get(CaptchaTracer.SPAN_CREDENTIALS);
+        assertEquals(verifySpan.getSpanId(), credentialsSpan.getParentSpanId());
+        assertEquals(Boolean.TRUE, credentialsSpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_CREDENTIALS_VALID));
+    }
+
+    @Test
+    void rejectedCaptchaHasInvalidOutcome() {
+        assertFalse(form.validateForm(context, formData(REJECTED_TOKEN)));
+
+        CaptchaSpan verifySpan = finishedSpans().get(CaptchaTracer.SPAN_VERIFY);
+        assertEquals(ReCaptchaV2ClientFactory.PROVIDER_ID, verifySpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_PROVIDER));
+        assertEquals("invalid", verifySpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_OUTCOME));
+    }
+
+    @Test
+    void missingTokenIsTracedWithoutCaptchaApiCall() {
+        MultivaluedMap<String, String> formData = formData(VALID_TOKEN);
+        formData.remove(new ReCaptchaV2ClientFactory().getCaptchaTokenField());
+
+        assertFalse(form.validateForm(context, formData));
+
+        Map<String, CaptchaSpan> spans = finishedSpans();
+        assertEquals(Set.of(CaptchaTracer.SPAN_VERIFY, CaptchaTracer.SPAN_RENDER), spans.keySet());
+        CaptchaSpan verifySpan = spans.get(CaptchaTracer.SPAN_VERIFY);
+        assertEquals("missing_token", verifySpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_OUTCOME));
+        // the login form is shown again with captcha
+        CaptchaSpan renderSpan = spans.get(CaptchaTracer.SPAN_RENDER);
+        assertEquals(verifySpan.getSpanId(), renderSpan.getParentSpanId());
+        assertEquals(Boolean.TRUE, renderSpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_RENDERED));
+        assertEquals(ReCaptchaV2ClientFactory.PROVIDER_ID, renderSpan.getAttributes().get(CaptchaTracer.ATTRIBUTE_PROVIDER));
+    }
+
+    /**
+     * @return finished spans by name, the login has one span of each name
+     */
+    private Map<String, CaptchaSpan> finishedSpans() {
+        return exporterFactory.getSpanExporter().getFinishedSpans().stream()
+                .collect(Collectors.toMap(CaptchaSpan::getName, span -> span));
+    }
+
+    private static MultivaluedMap<String, String> formData(String captchaToken) {
+        MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+        formData.putSingle(AuthenticationManager.FORM_USERNAME, "test-user");
+        formData.putSingle("password", "test-password");
+        formData.putSingle(new ReCaptchaV2ClientFactory().getCaptchaTokenField(), captchaToken);
+        return formData;
+    }
+
+    /**
+     * @return login flow context of an enabled user with valid password, the login request continues
+     * the {@link #TRACEPARENT} trace
+     */
+    private static AuthenticationFlowContext loginFlowContext(String validateUrl) {
+        Map<String, String> config = new HashMap<>();
+        config.put(CONFIG_KEY_CAPTCHA_ENABLED, Boolean.TRUE.toString());
+        config.put(CONFIG_KEY_CAPTCHA_PROVIDER, ReCaptchaV2ClientFactory.PROVIDER_ID);
+        config.put(CONFIG_KEY_CAPTCHA_MODE, CaptchaMode.ALWAYS.getName());
+        config.put(CONFIG_KEY_CLIENT_KEY, "test-site-key");
+        config.put(CONFIG_KEY_CAPTCHA_SERVER_KEY, "test-server-key");
+        config.put(CONFIG_KEY_CAPTCHA_VALIDATE_URL, validateUrl);
+        AuthenticatorConfigModel configModel = new AuthenticatorConfigModel();
+        configModel.setId("test-captcha-config");
+        configModel.setAlias("test-captcha-config");
+        configModel.setConfig(config);
+
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getAuthenticatorConfig", configModel);
+        answers.put("getExecution", new AuthenticationExecutionModel());
+        answers.put("getHeaderString", TRACEPARENT);
+        answers.put("getRemoteAddr", "192.0.2.10");
+        answers.put("getId", "test-realm");
+        answers.put("getUsername", "test-user");
+        answers.put("isEnabled", true);
+        answers.put("isValid", true);
+        AuthenticationFlowContext context = deepStub(AuthenticationFlowContext.class, answers);
+        answers.put("getEvent", new EventBuilder(context.getRealm(), context.getSession(), context.getConnection()));
+        return context;
+    }
+
+    /**
+     * Stub of keycloak interface that returns configured answers by method name, a stub of the same answers
+     * for interface return types and default values for everything else.
+     */
+    private static <T> T deepStub(Class<T> type, Map<String, Object> answers) {
+        Map<Class<?>, Object> stubs = new ConcurrentHashMap<>();
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getDeclaringClass() == Object.class) {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return "Stub[" + proxy.getClass().getInterfaces()[0].getSimpleName() + "]";
+                    }
+                }
+                if (answers.containsKey(method.getName())) {
+                    Object answer = answers.get(method.getName());
+                    return answer instanceof Supplier ? ((Supplier<?>) answer).get() : answer;
+                }
+                Class<?> returnType = method.getReturnType();
+                if (returnType == void.class) {
+                    return null;
+                }
+                if (returnType.isPrimitive()) {
+                    return Array.get(Array.newInstance(returnType, 1), 0);
+                }
+                if (returnType == Stream.class) {
+                    return Stream.empty();
+                }
+                if (returnType == Optional.class) {
+                    return Optional.empty();
+                }
+                if (returnType == Map.class) {
+                    return Map.of();
+                }
+                if (returnType == Set.class) {
+                    return Set.of();
+                }
+                if (returnType == List.class) {
+                    return List.of();
+                }
+                return returnType.isInterface() ? stub(returnType) : null;
+            }
+
+            private Object stub(Class<?> stubType) {
+                return stubs.computeIfAbsent(stubType, value -> Proxy.newProxyInstance(
+                        CaptchaLoginFormTracingTest.class.getClassLoader(), new Class<?>[]{value}, this));
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(CaptchaLoginFormTracingTest.class.getClassLoader(),
+                new Class<?>[]{type}, handler));
+    }
+
+}
@@ -0,0 +1,170 @@
+package ru.lagoshny.keycloak.providers.login.captcha.risk;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoginRateLimiterTest {
+
+    private static final String CONFIG_PREFIX = "captcha.rate.limiter.test.";
+
+    private static final String REALM_ID = "realm";
+
+    private static final String ADDRESS = "192.0.2.10";
+
+    private static final String OTHER_ADDRESS = "198.51.100.20";
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toNanos(1));
+
+    @AfterEach
+    void tearDown() {
+        System.getProperties().stringPropertyNames().stream()
+                .filter(name -> name.startsWith(CONFIG_PREFIX))
+                .forEach(System::clearProperty);
+    }
+
+    @Test
+    void limitsAreDisabledByDefault() {
+        LoginRateLimiter limiter = createLimiter(Map.of());
+
+        for (int i = 0; i < 1000; i++) {
+            assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, "alice"));
+        }
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    void ipLimitAllowsBurstThenRefillRate() {
+        // one login a second, three at once
+        LoginRateLimiter limiter = createLimiter(Map.of(
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_RATE, "60",
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_BURST, "3"));
+
+        for (int i = 0; i < 3; i++) {
+            assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, null));
+        }
+        assertEquals(LoginRateLimiter.LIMIT_IP, limiter.tryAcquire(REALM_ID, ADDRESS, null));
+        assertNull(limiter.tryAcquire(REALM_ID, OTHER_ADDRESS, null));
+        assertNull(limiter.tryAcquire("other-realm", ADDRESS, null));
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertEquals(LoginRateLimiter.LIMIT_IP, limiter.tryAcquire(REALM_ID, ADDRESS, null));
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, null));
+        assertEquals(LoginRateLimiter.LIMIT_IP, limiter.tryAcquire(REALM_ID, ADDRESS, null));
+    }
+
+    @Test
+    void idleBucketRefillsUpToBurst() {
+        LoginRateLimiter limiter = createLimiter(Map.of(
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_RATE, "60",
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_BURST, "3"));
+        for (int i = 0; i < 3; i++) {
+            limiter.tryAcquire(REALM_ID, ADDRESS, null);
+        }
+
+        now.addAndGet(TimeUnit.HOURS.toNanos(1));
+
+        for (int i = 0; i < 3; i++) {
+            assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, null));
+        }
+        assertEquals(LoginRateLimiter.LIMIT_IP, limiter.tryAcquire(REALM_ID, ADDRESS, null));
+    }
+
+    @Test
+    void usernameLimitIsCountedPerAddress() {
+        LoginRateLimiter limiter = createLimiter(Map.of(
+                LoginRateLimiter.SPI_RATE_LIMIT_USERNAME_RATE, "60",
+                LoginRateLimiter.SPI_RATE_LIMIT_USERNAME_BURST, "2"));
+
+        assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, "alice"));
+        assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, " Alice "));
+        assertEquals(LoginRateLimiter.LIMIT_USERNAME, limiter.tryAcquire(REALM_ID, ADDRESS, "ALICE"));
+
+        // logins naming the username from other addresses do not lock the user out
+        assertNull(limiter.tryAcquire(REALM_ID, OTHER_ADDRESS, "alice"));
+        assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, "bob"));
+        assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, null));
+        assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, " "));
+    }
+
+    @Test
+    void ipLimitIsCheckedBeforeUsernameLimit() {
+        LoginRateLimiter limiter = createLimiter(Map.of(
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_RATE, "60",
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_BURST, "1",
+                LoginRateLimiter.SPI_RATE_LIMIT_USERNAME_RATE, "1",
+                LoginRateLimiter.SPI_RATE_LIMIT_USERNAME_BURST, "1"));
+
+        assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, "alice"));
+        assertEquals(LoginRateLimiter.LIMIT_IP, limiter.tryAcquire(REALM_ID, ADDRESS, "bob"));
+
+        // the login rejected by the ip limit has not taken the username bucket
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, "bob"));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(LoginRateLimiter.LIMIT_USERNAME, limiter.tryAcquire(REALM_ID, ADDRESS, "alice"));
+    }
+
+    @Test
+    void newKeysShareOverflowBucketWhenLimiterIsFull() {
+        LoginRateLimiter limiter = createLimiter(Map.of(
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_RATE, "60",
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_BURST, "1",
+                LoginRateLimiter.SPI_RATE_LIMIT_MAX_KEYS, "2"));
+        assertNull(limiter.tryAcquire(REALM_ID, "192.0.2.1", null));
+        assertNull(limiter.tryAcquire(REALM_ID, "192.0.2.2", null));
+
+        assertNull(limiter.tryAcquire(REALM_ID, "192.0.2.3", null));
+        assertEquals(LoginRateLimiter.LIMIT_IP, limiter.tryAcquire(REALM_ID, "192.0.2.4", null));
+
+        assertEquals(2, limiter.size());
+        // tracked keys keep their own buckets
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(LoginRateLimiter.LIMIT_IP, limiter.tryAcquire(REALM_ID, "192.0.2.1", null));
+    }
+
+    @Test
+    void idleKeysArePurgedWhenLimiterIsFull() {
+        LoginRateLimiter limiter = createLimiter(Map.of(
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_RATE, "60",
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_BURST, "1",
+                LoginRateLimiter.SPI_RATE_LIMIT_MAX_KEYS, "2"));
+        limiter.tryAcquire(REALM_ID, "192.0.2.1", null);
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        limiter.tryAcquire(REALM_ID, "192.0.2.2", null);
+
+        // the first bucket is full again, the second one is not
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(600));
+        assertNull(limiter.tryAcquire(REALM_ID, "192.0.2.3", null));
+
+        assertEquals(2, limiter.size());
+        assertEquals(LoginRateLimiter.LIMIT_IP, limiter.tryAcquire(REALM_ID, "192.0.2.3", null));
+        assertEquals(LoginRateLimiter.LIMIT_IP, limiter.tryAcquire(REALM_ID, "192.0.2.2", null));
+    }
+
+    @Test
+    void clearForgetsBuckets() {
+        LoginRateLimiter limiter = createLimiter(Map.of(
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_RATE, "60",
+                LoginRateLimiter.SPI_RATE_LIMIT_IP_BURST, "1"));
+        limiter.tryAcquire(REALM_ID, ADDRESS, null);
+
+        limiter.clear();
+
+        assertEquals(0, limiter.size());
+        assertNull(limiter.tryAcquire(REALM_ID, ADDRESS, null));
+    }
+
+    private LoginRateLimiter createLimiter(Map<String, String> options) {
+        options.forEach((name, value) -> System.setProperty(CONFIG_PREFIX + name, value));
+        return new LoginRateLimiter(new Config.SystemPropertiesScope(CONFIG_PREFIX), now::get);
+    }
+
+}
@@ -0,0 +1,179 @@
+package ru.lagoshny.keycloak.providers.login.captcha.tracing;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import ru.lagoshny.keycloak.providers.login.captcha.tracing.InMemoryCaptchaSpanExporterFactory.InMemoryCaptchaSpanExporter;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CaptchaTracerTest {
+
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+    private static final String PARENT_SPAN_ID = "00f067aa0ba902b7";
+
+    private final InMemoryCaptchaSpanExporter exporter = new InMemoryCaptchaSpanExporter(100);
+
+    private final CaptchaTracer tracer = new CaptchaTracer(new Config.SystemPropertiesScope("captcha.tracer.test."));
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        tracer.setExporter(exporter);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void disabledTracerReturnsNoopSpan() {
+        tracer.setExporter(null);
+
+        try (CaptchaSpan span = tracer.startSpan(CaptchaTracer.SPAN_VERIFY)) {
+            span.setAttribute(CaptchaTracer.ATTRIBUTE_PROVIDER, "ReCaptchaV2");
+            assertSame(CaptchaSpan.NOOP, span);
+            assertFalse(span.isRecording());
+        }
+        assertTrue(exporter.getFinishedSpans().isEmpty());
+    }
+
+    @Test
+    void childSpanIsLinkedToCurrentSpan() {
+        CaptchaSpan parent = tracer.startSpan(CaptchaTracer.SPAN_VERIFY);
+        CaptchaSpan child = tracer.startSpan(CaptchaTracer.SPAN_HTTP);
+        child.close();
+        parent.close();
+
+        assertNull(parent.getParentSpanId());
+        assertEquals(parent.getTraceId(), child.getTraceId());
+        assertEquals(parent.getSpanId(), child.getParentSpanId());
+        assertNotEquals(parent.getSpanId(), child.getSpanId());
+        assertEquals(List.of(child, parent), exporter.getFinishedSpans());
+        assertTrue(parent.getDurationNanos() >= child.getDurationNanos());
+    }
+
+    @Test
+    void closedSpanRestoresItsParentAsCurrentSpan() {
+        try (CaptchaSpan parent = tracer.startSpan(CaptchaTracer.SPAN_VERIFY)) {
+            tracer.startSpan(CaptchaTracer.SPAN_CREDENTIALS).close();
+            try (CaptchaSpan sibling = tracer.startSpan(CaptchaTracer.SPAN_HTTP)) {
+                assertEquals(parent.getSpanId(), sibling.getParentSpanId());
+            }
+        }
+        try (CaptchaSpan next = tracer.startSpan(CaptchaTracer.SPAN_RENDER)) {
+            assertNull(next.getParentSpanId());
+        }
+    }
+
+    @Test
+    void spanIsExportedOnce() {
+        CaptchaSpan span = tracer.startSpan(CaptchaTracer.SPAN_VERIFY);
+        span.close();
+        span.setAttribute(CaptchaTracer.ATTRIBUTE_OUTCOME, "success");
+        span.close();
+
+        assertEquals(List.of(span), exporter.getFinishedSpans());
+        assertTrue(span.getAttributes().isEmpty());
+    }
+
+    @Test
+    void rootSpanContinuesValidTraceparent() {
+        try (CaptchaSpan span = tracer.startSpan(CaptchaTracer.SPAN_VERIFY, "00-" + TRACE_ID + "-" + PARENT_SPAN_ID + "-01")) {
+            assertEquals(TRACE_ID, span.getTraceId());
+            assertEquals(PARENT_SPAN_ID, span.getParentSpanId());
+            assertEquals("00-" + TRACE_ID + "-" + span.getSpanId() + "-01", span.getTraceparent());
+        }
+    }
+
+    @Test
+    void currentSpanTakesPrecedenceOverTraceparent() {
+        try (CaptchaSpan parent = tracer.startSpan(CaptchaTracer.SPAN_VERIFY);
+             CaptchaSpan child = tracer.startSpan(CaptchaTracer.SPAN_CREDENTIALS, "00-" + TRACE_ID + "-" + PARENT_SPAN_ID + "-01")) {
+            assertEquals(parent.getTraceId(), child.getTraceId());
+            assertEquals(parent.getSpanId(), child.getParentSpanId());
+        }
+    }
+
+    @Test
+    void invalidTraceparentStartsNewTrace() {
+        List<String> invalidTraceparents = List.of(
+                "",
+                "00-" + TRACE_ID + "-" + PARENT_SPAN_ID,
+                "01-" + TRACE_ID + "-" + PARENT_SPAN_ID + "-01",
+                "00-" + TRACE_ID.toUpperCase() + "-" + PARENT_SPAN_ID + "-01",
+                "00-" + TRACE_ID + "_" + PARENT_SPAN_ID + "-01",
+                "00-" + TRACE_ID + "-" + PARENT_SPAN_ID + "-0x",
+                "00-00000000000000000000000000000000-" + PARENT_SPAN_ID + "-01",
+                "00-" + TRACE_ID + "-0000000000000000-01",
+                "00-" + TRACE_ID + "-" + PARENT_SPAN_ID + "-01-extra");
+        for (String traceparent : invalidTraceparents) {
+            try (CaptchaSpan span = tracer.startSpan(CaptchaTracer.SPAN_VERIFY, traceparent)) {
+                assertNotEquals(TRACE_ID, span.getTraceId(), traceparent);
+                assertNull(span.getParentSpanId(), traceparent);
+                assertTrue(span.getTraceId().matches("[0-9a-f]{32}"), traceparent);
+                assertTrue(span.getSpanId().matches("[0-9a-f]{16}"), traceparent);
+            }
+        }
+    }
+
+    @Test
+    void wrappedTaskContinuesTraceOnExecutorThread() throws Exception {
+        CaptchaSpan parent = tracer.startSpan(CaptchaTracer.SPAN_VERIFY);
+        CompletableFuture<CaptchaSpan> child = CompletableFuture.supplyAsync(tracer.wrap(() -> {
+            try (CaptchaSpan span = tracer.startSpan(CaptchaTracer.SPAN_HTTP)) {
+                return span;
+            }
+        }), executor);
+        CaptchaSpan childSpan = child.get();
+        parent.close();
+
+        assertEquals(parent.getTraceId(), childSpan.getTraceId());
+        assertEquals(parent.getSpanId(), childSpan.getParentSpanId());
+        assertEquals(List.of(childSpan, parent), exporter.getFinishedSpans());
+
+        // the executor thread does not keep the span of the wrapped task
+        CaptchaSpan unwrapped = CompletableFuture.supplyAsync(() -> {
+            try (CaptchaSpan span = tracer.startSpan(CaptchaTracer.SPAN_HTTP)) {
+                return span;
+            }
+        }, executor).get();
+        assertNull(unwrapped.getParentSpanId());
+        assertNotEquals(parent.getTraceId(), unwrapped.getTraceId());
+    }
+
+    @Test
+    void wrapWithoutCurrentSpanReturnsSameTask() {
+        Supplier<String> task = () -> "verdict";
+
+        assertSame(task, tracer.wrap(task));
+    }
+
+    @Test
+    void inMemoryExporterKeepsLastSpans() {
+        InMemoryCaptchaSpanExporter limitedExporter = new InMemoryCaptchaSpanExporter(2);
+        tracer.setExporter(limitedExporter);
+        CaptchaSpan first = tracer.startSpan(CaptchaTracer.SPAN_RENDER);
+        first.close();
+        CaptchaSpan second = tracer.startSpan(CaptchaTracer.SPAN_VERIFY);
+        second.close();
+        CaptchaSpan third = tracer.startSpan(CaptchaTracer.SPAN_HTTP);
+        third.close();
+
+        assertEquals(List.of(second, third), limitedExporter.getFinishedSpans());
+        limitedExporter.reset();
+        assertTrue(limitedExporter.getFinishedSpans().isEmpty());
+    }
+
+}
@@ -0,0 +1,211 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.CaptchaCircuitBreaker.State;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CaptchaCircuitBreakerTest {
+
+    private static final String CONFIG_PREFIX = "captcha.circuit.breaker.test.";
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private static final CaptchaVerdict FAILURE = CaptchaVerdict.error(new IOException("connection reset"));
+
+    /**
+     * Starts far from zero, so the rolling window does not depend on the initial bucket epochs.
+     */
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toNanos(1));
+
+    private CaptchaCircuitBreaker circuitBreaker;
+
+    @BeforeEach
+    void setUp() {
+        System.setProperty(CONFIG_PREFIX + CaptchaCircuitBreakerConfig.SPI_CIRCUIT_BREAKER_WINDOW, "10000");
+        System.setProperty(CONFIG_PREFIX + CaptchaCircuitBreakerConfig.SPI_CIRCUIT_BREAKER_MIN_CALLS, "4");
+        System.setProperty(CONFIG_PREFIX + CaptchaCircuitBreakerConfig.SPI_CIRCUIT_BREAKER_FAILURE_RATE, "50");
+        System.setProperty(CONFIG_PREFIX + CaptchaCircuitBreakerConfig.SPI_CIRCUIT_BREAKER_SLOW_CALL_RATE, "75");
+        System.setProperty(CONFIG_PREFIX + CaptchaCircuitBreakerConfig.SPI_CIRCUIT_BREAKER_SLOW_CALL_DURATION, "100");
+        System.setProperty(CONFIG_PREFIX + CaptchaCircuitBreakerConfig.SPI_CIRCUIT_BREAKER_OPEN_DURATION, "30000");
+        System.setProperty(CONFIG_PREFIX + CaptchaCircuitBreakerConfig.SPI_CIRCUIT_BREAKER_HALF_OPEN_PROBES, "2");
+        circuitBreaker = new CaptchaCircuitBreaker("ReCaptchaV2", "https://www.google.com/recaptcha/api/siteverify",
+                new CaptchaCircuitBreakerConfig(new Config.SystemPropertiesScope(CONFIG_PREFIX)), now::get);
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.getProperties().stringPropertyNames().stream()
+                .filter(name -> name.startsWith(CONFIG_PREFIX))
+                .forEach(System::clearProperty);
+    }
+
+    @Test
+    void staysClosedBelowMinCalls() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(circuitBreaker.tryAcquire());
+            circuitBreaker.record(FAILURE, FAST);
+        }
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertEquals(3, circuitBreaker.getWindowStats().getCalls());
+        assertEquals(1.0, circuitBreaker.getWindowStats().getFailureRate());
+    }
+
+    @Test
+    void opensOnFailureRate() {
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, FAST);
+        circuitBreaker.record(FAILURE, FAST);
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, FAST);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+
+        circuitBreaker.record(CaptchaVerdict.error(new TimeoutException()), FAST);
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquire());
+        assertFalse(circuitBreaker.isPermitting());
+    }
+
+    @Test
+    void rejectedTokensAreNotFailures() {
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.record(CaptchaVerdict.invalid(List.of("invalid-input-response")), FAST);
+        }
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertEquals(0, circuitBreaker.getWindowStats().getFailures());
+    }
+
+    @Test
+    void opensOnSlowCallRate() {
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, SLOW);
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, SLOW);
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, FAST);
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, FAST);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, SLOW);
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, SLOW);
+
+        // 4 slow calls of 6 and 5 of 7 are below 75%, 6 of 8 reach it
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, SLOW);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, SLOW);
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals((2 * FAST + 6 * SLOW) / 8, circuitBreaker.getWindowStats().getMeanDurationNanos());
+    }
+
+    @Test
+    void callsOutOfWindowAreNotCounted() {
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.record(FAILURE, FAST);
+        }
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertEquals(3, circuitBreaker.getWindowStats().getCalls());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(6));
+        circuitBreaker.record(FAILURE, FAST);
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertEquals(1, circuitBreaker.getWindowStats().getCalls());
+    }
+
+    @Test
+    void opensHalfOpenProbesAfterOpenDuration() {
+        open();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30) - 1);
+        assertFalse(circuitBreaker.isPermitting());
+        assertFalse(circuitBreaker.tryAcquire());
+        assertEquals(State.OPEN, circuitBreaker.getState());
+
+        now.incrementAndGet();
+        assertTrue(circuitBreaker.isPermitting());
+        assertEquals(State.OPEN, circuitBreaker.getState());
+
+        assertTrue(circuitBreaker.tryAcquire());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        assertTrue(circuitBreaker.isPermitting());
+        assertTrue(circuitBreaker.tryAcquire());
+        // all probes are in flight
+        assertFalse(circuitBreaker.isPermitting());
+        assertFalse(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    void closesAfterSuccessfulProbes() {
+        open();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertTrue(circuitBreaker.tryAcquire());
+        assertTrue(circuitBreaker.tryAcquire());
+
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, FAST);
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, FAST);
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertEquals(0, circuitBreaker.getWindowStats().getCalls());
+        assertTrue(circuitBreaker.tryAcquire());
+        // failures before the circuit was opened do not open it again
+        circuitBreaker.record(FAILURE, FAST);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    void reopensOnFailedProbe() {
+        open();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertTrue(circuitBreaker.tryAcquire());
+
+        circuitBreaker.record(FAILURE, FAST);
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquire());
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertTrue(circuitBreaker.tryAcquire());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    void reopensOnSlowProbe() {
+        open();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertTrue(circuitBreaker.tryAcquire());
+
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, SLOW);
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    void resultsOfCallsPermittedBeforeOpeningAreIgnored() {
+        open();
+
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, FAST);
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, FAST);
+        circuitBreaker.record(CaptchaVerdict.SUCCESS, FAST);
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+
+    private void open() {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(circuitBreaker.tryAcquire());
+            circuitBreaker.record(FAILURE, FAST);
+        }
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+
+}
@@ -0,0 +1,175 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import ru.lagoshny.keycloak.providers.login.captcha.client.CaptchaVerdict;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CaptchaVerdictCacheTest {
+
+    private static final String CONFIG_PREFIX = "captcha.verdict.cache.test.";
+
+    private static final String SERVER_KEY = "server-key";
+
+    private static final long TTL = TimeUnit.SECONDS.toNanos(30);
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toNanos(1));
+
+    /**
+     * Verifications started by the cache, each is completed by the test.
+     */
+    private final List<CompletableFuture<CaptchaVerdict>> verifications = new ArrayList<>();
+
+    private final Supplier<CompletableFuture<CaptchaVerdict>> verification = () -> {
+        CompletableFuture<CaptchaVerdict> future = new CompletableFuture<>();
+        verifications.add(future);
+        return future;
+    };
+
+    @AfterEach
+    void tearDown() {
+        System.getProperties().stringPropertyNames().stream()
+                .filter(name -> name.startsWith(CONFIG_PREFIX))
+                .forEach(System::clearProperty);
+    }
+
+    @Test
+    void concurrentRequestsWaitForInFlightVerification() throws Exception {
+        CaptchaVerdictCache cache = createCache(30_000, 10);
+
+        CompletableFuture<CaptchaVerdict> first = cache.verify(SERVER_KEY, "token", verification);
+        CompletableFuture<CaptchaVerdict> second = cache.verify(SERVER_KEY, "token", verification);
+
+        assertEquals(1, verifications.size());
+        assertFalse(second.isDone());
+        verifications.get(0).complete(CaptchaVerdict.SUCCESS);
+        assertSame(CaptchaVerdict.SUCCESS, first.get());
+        assertSame(CaptchaVerdict.SUCCESS, second.get());
+    }
+
+    @Test
+    void decisiveVerdictIsCachedForTtl() throws Exception {
+        CaptchaVerdictCache cache = createCache(30_000, 10);
+        cache.verify(SERVER_KEY, "token", verification);
+        CaptchaVerdict invalid = CaptchaVerdict.invalid(List.of("invalid-input-response"));
+        verifications.get(0).complete(invalid);
+
+        now.addAndGet(TTL);
+        assertSame(invalid, cache.verify(SERVER_KEY, "token", verification).get());
+        assertEquals(1, verifications.size());
+
+        now.incrementAndGet();
+        cache.verify(SERVER_KEY, "token", verification);
+        assertEquals(2, verifications.size());
+    }
+
+    @Test
+    void tokenOfAnotherServerKeyIsVerified() {
+        CaptchaVerdictCache cache = createCache(30_000, 10);
+        cache.verify(SERVER_KEY, "token", verification);
+        verifications.get(0).complete(CaptchaVerdict.SUCCESS);
+
+        cache.verify("other-server-key", "token", verification);
+        cache.verify(SERVER_KEY, "other-token", verification);
+
+        assertEquals(3, verifications.size());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    void providerErrorLeavesCache() throws Exception {
+        CaptchaVerdictCache cache = createCache(30_000, 10);
+        CompletableFuture<CaptchaVerdict> first = cache.verify(SERVER_KEY, "token", verification);
+
+        verifications.get(0).complete(CaptchaVerdict.error(new IOException("connection reset")));
+
+        assertEquals(CaptchaVerdict.Outcome.PROVIDER_ERROR, first.get().getOutcome());
+        assertEquals(0, cache.size());
+        cache.verify(SERVER_KEY, "token", verification);
+        assertEquals(2, verifications.size());
+    }
+
+    @Test
+    void failedVerificationLeavesCacheWithErrorVerdict() throws Exception {
+        CaptchaVerdictCache cache = createCache(30_000, 10);
+        CompletableFuture<CaptchaVerdict> first = cache.verify(SERVER_KEY, "token", verification);
+
+        verifications.get(0).completeExceptionally(new IllegalStateException("unexpected response"));
+
+        assertEquals(CaptchaVerdict.Outcome.PROVIDER_ERROR, first.get().getOutcome());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void fullCacheVerifiesWithoutCaching() {
+        CaptchaVerdictCache cache = createCache(30_000, 2);
+        cache.verify(SERVER_KEY, "token-1", verification);
+        cache.verify(SERVER_KEY, "token-2", verification);
+
+        CompletableFuture<CaptchaVerdict> bypassed = cache.verify(SERVER_KEY, "token-3", verification);
+
+        assertEquals(3, verifications.size());
+        assertSame(verifications.get(2), bypassed);
+        assertEquals(2, cache.size());
+        cache.verify(SERVER_KEY, "token-3", verification);
+        assertEquals(4, verifications.size());
+    }
+
+    @Test
+    void fullCachePurgesExpiredVerdicts() {
+        CaptchaVerdictCache cache = createCache(30_000, 2);
+        cache.verify(SERVER_KEY, "token-1", verification);
+        cache.verify(SERVER_KEY, "token-2", verification);
+        verifications.get(0).complete(CaptchaVerdict.SUCCESS);
+        // in-flight verification does not expire
+        now.addAndGet(TTL + 1);
+
+        cache.verify(SERVER_KEY, "token-3", verification);
+        cache.verify(SERVER_KEY, "token-3", verification);
+
+        assertEquals(3, verifications.size());
+        assertEquals(2, cache.size());
+        cache.verify(SERVER_KEY, "token-2", verification);
+        assertEquals(3, verifications.size());
+    }
+
+    @Test
+    void clearForgetsVerdicts() {
+        CaptchaVerdictCache cache = createCache(30_000, 10);
+        cache.verify(SERVER_KEY, "token", verification);
+        verifications.get(0).complete(CaptchaVerdict.SUCCESS);
+
+        cache.clear();
+        cache.verify(SERVER_KEY, "token", verification);
+
+        assertEquals(2, verifications.size());
+    }
+
+    @Test
+    void disabledCacheVerifiesEachRequest() {
+        CaptchaVerdictCache cache = createCache(0, 10);
+
+        cache.verify(SERVER_KEY, "token", verification);
+        cache.verify(SERVER_KEY, "token", verification);
+
+        assertEquals(2, verifications.size());
+        assertEquals(0, cache.size());
+    }
+
+    private CaptchaVerdictCache createCache(long ttl, int size) {
+        System.setProperty(CONFIG_PREFIX + CaptchaVerdictCache.SPI_VERDICT_CACHE_TTL, Long.toString(ttl));
+        System.setProperty(CONFIG_PREFIX + CaptchaVerdictCache.SPI_VERDICT_CACHE_SIZE, Integer.toString(size));
+        return new CaptchaVerdictCache(new Config.SystemPropertiesScope(CONFIG_PREFIX), now::get);
+    }
+
+}
@@ -0,0 +1,212 @@
+package ru.lagoshny.keycloak.providers.login.captcha.verification;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import ru.lagoshny.keycloak.providers.login.captcha.verification.LocalCaptchaTokenRegistry.MarkResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalCaptchaTokenRegistryTest {
+
+    private static final String CONFIG_PREFIX = "captcha.token.registry.test.";
+
+    private static final long TTL = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Bucket period of the {@link #TTL}.
+     */
+    private static final long BUCKET = TTL / (LocalCaptchaTokenRegistry.BUCKETS - 1);
+
+    /**
+     * Tokens of a bucket of 16 max tokens: 16 slots filled up to the max load.
+     */
+    private static final int BUCKET_TOKENS = 12;
+
+    private static final long LOGIN = CaptchaTokenRegistry.loginHash("auth-session.tab");
+
+    private static final long OTHER_LOGIN = CaptchaTokenRegistry.loginHash("other-auth-session.tab");
+
+    private final AtomicLong now = new AtomicLong();
+
+    @AfterEach
+    void tearDown() {
+        System.getProperties().stringPropertyNames().stream()
+                .filter(name -> name.startsWith(CONFIG_PREFIX))
+                .forEach(System::clearProperty);
+    }
+
+    @Test
+    void sameLoginCanUseTokenAgain() {
+        LocalCaptchaTokenRegistry registry = createRegistry(TTL, 16);
+
+        assertEquals(MarkResult.ADDED, registry.markUsed(1, LOGIN));
+        assertEquals(MarkResult.OWNED, registry.markUsed(1, LOGIN));
+        assertTrue(registry.markUsed(null, "server-key", "token", "auth-session.tab"));
+        assertTrue(registry.markUsed(null, "server-key", "token", "auth-session.tab"));
+    }
+
+    @Test
+    void otherLoginCanNotUseToken() {
+        LocalCaptchaTokenRegistry registry = createRegistry(TTL, 16);
+
+        assertEquals(MarkResult.ADDED, registry.markUsed(1, LOGIN));
+        assertEquals(MarkResult.PRESENT, registry.markUsed(1, OTHER_LOGIN));
+        assertTrue(registry.markUsed(null, "server-key", "token", "auth-session.tab"));
+        assertFalse(registry.markUsed(null, "server-key", "token", "other-auth-session.tab"));
+        // the same token verified with another server key is another token
+        assertTrue(registry.markUsed(null, "other-server-key", "token", "other-auth-session.tab"));
+    }
+
+    @Test
+    void tokenOfPreviousBucketIsFound() {
+        LocalCaptchaTokenRegistry registry = createRegistry(TTL, 16);
+
+        registry.markUsed(1, LOGIN);
+        now.set(BUCKET + 1);
+
+        assertEquals(MarkResult.OWNED, registry.markUsed(1, LOGIN));
+        assertEquals(MarkResult.PRESENT, registry.markUsed(1, OTHER_LOGIN));
+    }
+
+    @Test
+    void tokenIsForgottenAfterTtl() {
+        LocalCaptchaTokenRegistry registry = createRegistry(TTL, 16);
+
+        registry.markUsed(1, LOGIN);
+        now.set(TTL - 1);
+        assertEquals(MarkResult.PRESENT, registry.markUsed(1, OTHER_LOGIN));
+
+        now.set(TTL + BUCKET);
+        assertEquals(MarkResult.ADDED, registry.markUsed(1, OTHER_LOGIN));
+        assertFalse(registry.isSaturated());
+    }
+
+    @Test
+    void tokenIsForgottenAfterIdlePeriod() {
+        LocalCaptchaTokenRegistry registry = createRegistry(TTL, 16);
+
+        registry.markUsed(1, LOGIN);
+        // no tokens are marked for a long time, so the buckets are rotated only once
+        now.set(TTL * 10);
+
+        assertEquals(MarkResult.ADDED, registry.markUsed(1, OTHER_LOGIN));
+    }
+
+    @Test
+    void rejectedTokenIsNotOwnedByLogin() {
+        LocalCaptchaTokenRegistry registry = createRegistry(TTL, 16);
+
+        registry.markUsed(1, LOGIN);
+        registry.reject(1);
+
+        assertEquals(MarkResult.PRESENT, registry.markUsed(1, LOGIN));
+    }
+
+    @Test
+    void fullRegistryRotatesEarlyInsteadOfRejectingTokens() {
+        LocalCaptchaTokenRegistry registry = createRegistry(TTL, 16);
+        for (long token = 1; token <= BUCKET_TOKENS; token++) {
+            assertEquals(MarkResult.ADDED, registry.markUsed(token, LOGIN));
+        }
+        assertFalse(registry.isSaturated());
+
+        assertEquals(MarkResult.ADDED, registry.markUsed(BUCKET_TOKENS + 1, LOGIN));
+        assertTrue(registry.isSaturated());
+        assertEquals(MarkResult.PRESENT, registry.markUsed(1, OTHER_LOGIN));
+
+        // tokens of the oldest bucket are forgotten before the ttl when all buckets are filled again
+        for (long token = BUCKET_TOKENS + 2; token <= BUCKET_TOKENS * (LocalCaptchaTokenRegistry.BUCKETS + 1); token++) {
+            assertEquals(MarkResult.ADDED, registry.markUsed(token, LOGIN));
+        }
+        assertEquals(MarkResult.ADDED, registry.markUsed(1, OTHER_LOGIN));
+        assertTrue(registry.markUsed(null, "server-key", "new-token", "auth-session.tab"));
+    }
+
+    @Test
+    void saturationEndsWithBucketPeriodWithoutEarlyRotation() {
+        LocalCaptchaTokenRegistry registry = createRegistry(TTL, 16);
+        for (long token = 1; token <= BUCKET_TOKENS + 1; token++) {
+            registry.markUsed(token, LOGIN);
+        }
+        assertTrue(registry.isSaturated());
+
+        now.set(BUCKET);
+        registry.markUsed(BUCKET_TOKENS + 2, LOGIN);
+
+        assertFalse(registry.isSaturated());
+        assertEquals(MarkResult.PRESENT, registry.markUsed(BUCKET_TOKENS + 1, OTHER_LOGIN));
+    }
+
+    @Test
+    void concurrentLoginsAddTokenOnce() throws Exception {
+        LocalCaptchaTokenRegistry registry = createRegistry(TTL, 1 << 16);
+        int threads = 8;
+        int tokens = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> added = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                long login = CaptchaTokenRegistry.loginHash("auth-session-" + thread);
+                added.add(executor.submit(() -> {
+                    start.await();
+                    int count = 0;
+                    for (long token = 1; token <= tokens; token++) {
+                        if (registry.markUsed(token, login) == MarkResult.ADDED) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }));
+            }
+            start.countDown();
+            int total = 0;
+            for (Future<Integer> count : added) {
+                total += count.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(tokens, total);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void clearForgetsTokens() {
+        LocalCaptchaTokenRegistry registry = createRegistry(TTL, 16);
+        registry.markUsed(1, LOGIN);
+        now.set(BUCKET);
+        registry.markUsed(2, LOGIN);
+
+        registry.clear();
+
+        assertEquals(MarkResult.ADDED, registry.markUsed(1, OTHER_LOGIN));
+        assertEquals(MarkResult.ADDED, registry.markUsed(2, OTHER_LOGIN));
+    }
+
+    @Test
+    void disabledRegistryAcceptsAnyToken() {
+        LocalCaptchaTokenRegistry registry = createRegistry(0, 16);
+
+        assertFalse(registry.isEnabled());
+        assertEquals(MarkResult.ADDED, registry.markUsed(1, LOGIN));
+        assertEquals(MarkResult.ADDED, registry.markUsed(1, OTHER_LOGIN));
+    }
+
+    private LocalCaptchaTokenRegistry createRegistry(long ttl, int maxTokens) {
+        System.setProperty(CONFIG_PREFIX + CaptchaTokenRegistry.SPI_TOKEN_REGISTRY_TTL,
+                Long.toString(TimeUnit.MILLISECONDS.toSeconds(ttl)));
+        System.setProperty(CONFIG_PREFIX + CaptchaTokenRegistry.SPI_TOKEN_REGISTRY_MAX_TOKENS, Integer.toString(maxTokens));
+        return new LocalCaptchaTokenRegistry(new Config.SystemPropertiesScope(CONFIG_PREFIX), now::get);
+    }
+
+}
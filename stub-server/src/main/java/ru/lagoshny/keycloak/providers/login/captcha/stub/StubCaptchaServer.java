@@ -0,0 +1,257 @@
+package ru.lagoshny.keycloak.providers.login.captcha.stub;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stub of captcha apis for load and failure-injection tests without the internet.
+ * <p>
+ * It serves google siteverify (ReCaptchaV2 and ReCaptchaV3) and yandex validate endpoints with the same request
+ * and response contracts, keycloak is pointed to it through the validation url of the {@code Captcha Login Form} settings.
+ * <p>
+ * Any token passes, except tokens with special prefixes:
+ * <ul>
+ *     <li>{@link #INVALID_TOKEN_PREFIX} is rejected as invalid;</li>
+ *     <li>{@link #ERROR_TOKEN_PREFIX} is answered with http 500;</li>
+ *     <li>{@link #TIMEOUT_TOKEN_PREFIX} is answered after the timeout latency;</li>
+ *     <li>{@link #SCORE_TOKEN_PREFIX} followed by a number, e.g. {@code score-0.3-any}, has this ReCaptchaV3 score.</li>
+ * </ul>
+ * Injected errors ({@link StubCaptchaServerConfig#getErrorRate()}) are spread evenly over requests,
+ * so test runs are repeatable.
+ */
+public final class StubCaptchaServer implements Closeable {
+
+    public static final String GOOGLE_VALIDATE_PATH = "/recaptcha/api/siteverify";
+
+    public static final String YANDEX_VALIDATE_PATH = "/validate";
+
+    public static final String INVALID_TOKEN_PREFIX = "invalid";
+
+    public static final String ERROR_TOKEN_PREFIX = "error";
+
+    public static final String TIMEOUT_TOKEN_PREFIX = "timeout";
+
+    public static final String SCORE_TOKEN_PREFIX = "score-";
+
+    private static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+    private final StubCaptchaServerConfig config;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final Set<String> verifiedTokens = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    private final AtomicLong rejectedTokens = new AtomicLong();
+
+    public StubCaptchaServer(StubCaptchaServerConfig config) throws IOException {
+        this.config = config;
+        this.executor = Executors.newFixedThreadPool(config.getThreads());
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getPort()), 1024);
+        this.server.setExecutor(executor);
+        this.server.createContext(GOOGLE_VALIDATE_PATH, exchange -> handle(exchange, false));
+        this.server.createContext(YANDEX_VALIDATE_PATH, exchange -> handle(exchange, true));
+        this.server.start();
+    }
+
+    /**
+     * Starts the stub until the process is stopped, options are described by {@link StubCaptchaServerConfig#fromArgs}.
+     */
+    public static void main(String[] args) throws IOException {
+        StubCaptchaServerConfig config = StubCaptchaServerConfig.fromArgs(args);
+        StubCaptchaServer server = new StubCaptchaServer(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        System.out.println("Stub captcha server started with " + config);
+        System.out.println("Google validation url: " + server.getGoogleValidateUrl());
+        System.out.println("Yandex validation url: " + server.getYandexValidateUrl());
+    }
+
+    public String getGoogleValidateUrl() {
+        return getBaseUrl() + GOOGLE_VALIDATE_PATH;
+    }
+
+    public String getYandexValidateUrl() {
+        return getBaseUrl() + YANDEX_VALIDATE_PATH;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    public long getRejectedTokens() {
+        return rejectedTokens.get();
+    }
+
+    private String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange, boolean yandex) throws IOException {
+        try (exchange) {
+            Map<String, String> params = readParams(exchange);
+            String token = params.get(yandex ? "token" : "response");
+            long requestNumber = requests.getAndIncrement();
+
+            long latency = token != null && token.startsWith(TIMEOUT_TOKEN_PREFIX) ? config.getTimeoutLatency() : config.getLatency();
+            if (config.getLatencyJitter() > 0) {
+                latency += ThreadLocalRandom.current().nextLong(config.getLatencyJitter() + 1);
+            }
+            sleep(latency);
+
+            if (isInjectedError(requestNumber) || token != null && token.startsWith(ERROR_TOKEN_PREFIX)) {
+                injectedErrors.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+
+            String error = validate(params.get("secret"), token);
+            if (error != null) {
+                rejectedTokens.incrementAndGet();
+            }
+            String response = yandex ? yandexResponse(error) : googleResponse(error, token);
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * @return google error code of the token, {@code null} if the token passes
+     */
+    private String validate(String secret, String token) {
+        if (secret == null || secret.isEmpty()) {
+            return "missing-input-secret";
+        }
+        if (config.getServerKey() != null && !config.getServerKey().equals(secret)) {
+            return "invalid-input-secret";
+        }
+        if (token == null || token.isEmpty()) {
+            return "missing-input-response";
+        }
+        if (token.startsWith(INVALID_TOKEN_PREFIX)) {
+            return "invalid-input-response";
+        }
+        if (config.isRejectDuplicates()) {
+            if (verifiedTokens.size() >= config.getMaxTokens()) {
+                verifiedTokens.clear();
+            }
+            if (!verifiedTokens.add(token)) {
+                return "timeout-or-duplicate";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Spreads errors evenly: request fails when it moves the expected error count to the next integer.
+     */
+    private boolean isInjectedError(long requestNumber) {
+        double errorRate = config.getErrorRate();
+        return errorRate > 0 && (long) ((requestNumber + 1) * errorRate) > (long) (requestNumber * errorRate);
+    }
+
+    private String googleResponse(String error, String token) {
+        if (error != null) {
+            return "{\"success\":false,\"error-codes\":[\"" + error + "\"]}";
+        }
+        return "{\"success\":true,\"challenge_ts\":\"" + Instant.now().toString() + "\""
+                + ",\"hostname\":\"" + escape(config.getHostname()) + "\""
+                + ",\"score\":" + score(token)
+                + ",\"action\":\"" + escape(config.getAction()) + "\"}";
+    }
+
+    private String yandexResponse(String error) {
+        if (error != null) {
+            return "{\"status\":\"failed\",\"message\":\"" + error + "\"}";
+        }
+        return "{\"status\":\"ok\",\"message\":\"\",\"host\":\"" + escape(config.getHostname()) + "\"}";
+    }
+
+    private double score(String token) {
+        if (token.startsWith(SCORE_TOKEN_PREFIX)) {
+            int end = token.indexOf('-', SCORE_TOKEN_PREFIX.length());
+            try {
+                return Double.parseDouble(token.substring(SCORE_TOKEN_PREFIX.length(), end < 0 ? token.length() : end));
+            } catch (NumberFormatException e) {
+                // not a score token, use the default score
+            }
+        }
+        return config.getScore();
+    }
+
+    private static Map<String, String> readParams(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseParams(exchange.getRequestURI().getRawQuery(), params);
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_REQUEST_SIZE);
+            parseParams(new String(body, StandardCharsets.UTF_8), params);
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return params;
+    }
+
+    private static void parseParams(String query, Map<String, String> params) {
+        if (query == null || query.isEmpty()) {
+            return;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,240 @@
+package ru.lagoshny.keycloak.providers.login.captcha.stub;
+
+/**
+ * Settings of {@link StubCaptchaServer}, can be read from command line options, e.g. {@code -latency 50 -error-rate 0.05}.
+ */
+public class StubCaptchaServerConfig {
+
+    /**
+     * Port to listen, {@code 0} to pick a free one.
+     */
+    private int port;
+
+    /**
+     * Threads that serve requests, limits concurrent requests the stub can wait on.
+     */
+    private int threads = 64;
+
+    /**
+     * Time in milliseconds to wait before each response, emulates captcha api latency.
+     */
+    private long latency;
+
+    /**
+     * Max random time in milliseconds added to the latency.
+     */
+    private long latencyJitter;
+
+    /**
+     * Fraction of requests from {@code 0} to {@code 1} answered with http 500.
+     */
+    private double errorRate;
+
+    /**
+     * Time in milliseconds to wait before the response to {@link StubCaptchaServer#TIMEOUT_TOKEN_PREFIX} tokens.
+     */
+    private long timeoutLatency = 10_000L;
+
+    /**
+     * Score of ReCaptchaV3 tokens without {@link StubCaptchaServer#SCORE_TOKEN_PREFIX}.
+     */
+    private double score = 0.9;
+
+    /**
+     * Action of ReCaptchaV3 tokens.
+     */
+    private String action = "submit";
+
+    /**
+     * Hostname of the page where tokens are issued.
+     */
+    private String hostname = "localhost";
+
+    /**
+     * Server key that requests must pass, {@code null} to accept any key.
+     */
+    private String serverKey;
+
+    /**
+     * Rejects token that was already verified, same as real captcha apis do.
+     */
+    private boolean rejectDuplicates;
+
+    /**
+     * Max remembered verified tokens to reject duplicates.
+     */
+    private int maxTokens = 100_000;
+
+    /**
+     * @param args options as {@code -name value} pairs, names are the kebab case setting names, e.g. {@code -error-rate}
+     */
+    public static StubCaptchaServerConfig fromArgs(String[] args) {
+        StubCaptchaServerConfig config = new StubCaptchaServerConfig();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("-") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected '-option value', got: " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i].substring(1)) {
+                case "port":
+                    config.setPort(Integer.parseInt(value));
+                    break;
+                case "threads":
+                    config.setThreads(Integer.parseInt(value));
+                    break;
+                case "latency":
+                    config.setLatency(Long.parseLong(value));
+                    break;
+                case "latency-jitter":
+                    config.setLatencyJitter(Long.parseLong(value));
+                    break;
+                case "error-rate":
+                    config.setErrorRate(Double.parseDouble(value));
+                    break;
+                case "timeout-latency":
+                    config.setTimeoutLatency(Long.parseLong(value));
+                    break;
+                case "score":
+                    config.setScore(Double.parseDouble(value));
+                    break;
+                case "action":
+                    config.setAction(value);
+                    break;
+                case "hostname":
+                    config.setHostname(value);
+                    break;
+                case "server-key":
+                    config.setServerKey(value);
+                    break;
+                case "reject-duplicates":
+                    config.setRejectDuplicates(Boolean.parseBoolean(value));
+                    break;
+                case "max-tokens":
+                    config.setMaxTokens(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public StubCaptchaServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public StubCaptchaServerConfig setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    public StubCaptchaServerConfig setLatency(long latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    public long getLatencyJitter() {
+        return latencyJitter;
+    }
+
+    public StubCaptchaServerConfig setLatencyJitter(long latencyJitter) {
+        this.latencyJitter = latencyJitter;
+        return this;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public StubCaptchaServerConfig setErrorRate(double errorRate) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("Error rate must be from 0 to 1: " + errorRate);
+        }
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    public long getTimeoutLatency() {
+        return timeoutLatency;
+    }
+
+    public StubCaptchaServerConfig setTimeoutLatency(long timeoutLatency) {
+        this.timeoutLatency = timeoutLatency;
+        return this;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    public StubCaptchaServerConfig setScore(double score) {
+        this.score = score;
+        return this;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public StubCaptchaServerConfig setAction(String action) {
+        this.action = action;
+        return this;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public StubCaptchaServerConfig setHostname(String hostname) {
+        this.hostname = hostname;
+        return this;
+    }
+
+    public String getServerKey() {
+        return serverKey;
+    }
+
+    public StubCaptchaServerConfig setServerKey(String serverKey) {
+        this.serverKey = serverKey;
+        return this;
+    }
+
+    public boolean isRejectDuplicates() {
+        return rejectDuplicates;
+    }
+
+    public StubCaptchaServerConfig setRejectDuplicates(boolean rejectDuplicates) {
+        this.rejectDuplicates = rejectDuplicates;
+        return this;
+    }
+
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    public StubCaptchaServerConfig setMaxTokens(int maxTokens) {
+        this.maxTokens = maxTokens;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return StubCaptchaServerConfig.class.getSimpleName() + "[port=" + port + ", threads=" + threads
+                + ", latency=" + latency + ", latencyJitter=" + latencyJitter + ", errorRate=" + errorRate
+                + ", timeoutLatency=" + timeoutLatency + ", score=" + score + ", action='" + action
+                + "', hostname='" + hostname + "', rejectDuplicates=" + rejectDuplicates + "]";
+    }
+}